@@ -0,0 +1,145 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Validation of the storage accounts used by builds, remembered so that
+ * builds do not probe the account before each transfer. A validation is
+ * trusted for a while, then refreshed in the background while builds keep
+ * relying on it; only an account not validated for much longer is probed
+ * again before the build goes on.
+ *
+ * Failures are not remembered: a failed validation or transfer drops the
+ * account, which the next build validates again. The delays are set in
+ * milliseconds with the system properties
+ * {@code com.microsoftopentechnologies.windowsazurestorage.AccountValidator.refreshAfter}
+ * and {@code com.microsoftopentechnologies.windowsazurestorage.AccountValidator.expireAfter}.
+ */
+final class AccountValidator {
+
+	private static final Logger LOGGER = Logger.getLogger(AccountValidator.class.getName());
+
+	private static final long REFRESH_AFTER = Long.getLong(
+			AccountValidator.class.getName() + ".refreshAfter",
+			TimeUnit.MINUTES.toMillis(5));
+
+	private static final long EXPIRE_AFTER = Long.getLong(
+			AccountValidator.class.getName() + ".expireAfter",
+			TimeUnit.MINUTES.toMillis(30));
+
+	/* Time of the last successful validation, by account */
+	private static final ConcurrentMap<String, Long> VALIDATED = new ConcurrentHashMap<String, Long>();
+
+	/* Accounts being validated in the background */
+	private static final Set<String> REFRESHING = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private static ExecutorService refresher;
+
+	private AccountValidator() {
+	}
+
+	/**
+	 * Checks that the credentials of an account are valid, unless they were
+	 * recently found to be.
+	 *
+	 * @param accName
+	 *            storage account name
+	 * @param key
+	 *            storage account access key
+	 * @param blobURL
+	 *            blob service endpoint url
+	 * @throws WAStorageException
+	 *             if the credentials are not valid
+	 */
+	static void validate(final String accName, final String key,
+			final String blobURL) throws WAStorageException {
+		final String account = getAccount(accName, key, blobURL);
+		Long validated = VALIDATED.get(account);
+		long age = validated == null ? Long.MAX_VALUE : System.currentTimeMillis() - validated;
+		if (age < EXPIRE_AFTER) {
+			if (age >= REFRESH_AFTER && REFRESHING.add(account)) {
+				getRefresher().execute(new Runnable() {
+					public void run() {
+						try {
+							WAStorageClient.validateStorageAccount(accName,
+									key, blobURL, true);
+							VALIDATED.put(account, System.currentTimeMillis());
+						} catch (WAStorageException e) {
+							LOGGER.log(Level.WARNING, "Validation of storage account "
+									+ accName + " failed", e);
+							VALIDATED.remove(account);
+						} finally {
+							REFRESHING.remove(account);
+						}
+					}
+				});
+			}
+			return;
+		}
+
+		// Builds retry transient failures, unlike the configuration check
+		WAStorageClient.validateStorageAccount(accName, key, blobURL, true);
+		VALIDATED.put(account, System.currentTimeMillis());
+	}
+
+	/**
+	 * Drops the validation of an account after a failed transfer.
+	 *
+	 * @param accName
+	 * @param key
+	 * @param blobURL
+	 */
+	static void invalidate(String accName, String key, String blobURL) {
+		VALIDATED.remove(getAccount(accName, key, blobURL));
+	}
+
+	/**
+	 * Drops all the validations, after a change of the storage accounts.
+	 */
+	static void invalidateAll() {
+		VALIDATED.clear();
+	}
+
+	private static String getAccount(String accName, String key,
+			String blobURL) {
+		// A new key of the same account is validated again
+		return accName + "\n" + blobURL + "\n" + DigestUtils.sha256Hex(key);
+	}
+
+	private static synchronized ExecutorService getRefresher() {
+		if (refresher == null) {
+			refresher = Executors.newSingleThreadExecutor(new NamingThreadFactory(
+					new DaemonThreadFactory(), "Azure storage account validation"));
+		}
+		return refresher;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pack of small files, uploaded as a single blob. The files are simply
+ * concatenated, and an index blob next to the pack gives the blob name,
+ * offset, length and MD5 of each of them.
+ *
+ * Packs of a file set are named
+ * {@code <virtual path>.azpack/<file set id>-<n>.azpack}, their index has the
+ * same name followed by {@code .idx}.
+ */
+public final class ArtifactPack {
+
+	public static final String DIRECTORY = ".azpack/";
+
+	public static final String PACK_SUFFIX = ".azpack";
+
+	public static final String INDEX_SUFFIX = ".azpack.idx";
+
+	private static final String FIELD_SEPARATOR = "\t";
+
+	private static final String LINE_SEPARATOR = "\n";
+
+	private ArtifactPack() {
+	}
+
+	/**
+	 * @param virtualPath
+	 *            common virtual path of the file set, or null
+	 * @param fileSetId
+	 *            identifies the file set among those sharing the path
+	 * @return prefix of the names of the packs of the file set
+	 */
+	public static String getPrefix(String virtualPath, String fileSetId) {
+		return (virtualPath == null ? "" : virtualPath) + DIRECTORY
+				+ fileSetId + "-";
+	}
+
+	/**
+	 * @param name
+	 * @return true if the blob is a pack or a pack index
+	 */
+	public static boolean isPackBlob(String name) {
+		return name.startsWith(DIRECTORY) || name.contains("/" + DIRECTORY);
+	}
+
+	/**
+	 * @param name
+	 * @return true if the blob is a pack index
+	 */
+	public static boolean isIndex(String name) {
+		return isPackBlob(name) && name.endsWith(INDEX_SUFFIX);
+	}
+
+	/**
+	 * @param packName
+	 * @return name of the index of a pack
+	 */
+	public static String getIndexName(String packName) {
+		return packName + INDEX_SUFFIX.substring(PACK_SUFFIX.length());
+	}
+
+	/**
+	 * @param indexName
+	 * @return name of the pack described by an index
+	 */
+	public static String getPackName(String indexName) {
+		return indexName.substring(0, indexName.length()
+				- (INDEX_SUFFIX.length() - PACK_SUFFIX.length()));
+	}
+
+	/**
+	 * @param entries
+	 * @return content of the index blob
+	 */
+	public static String formatIndex(List<Entry> entries) {
+		StringBuilder index = new StringBuilder();
+		for (Entry entry : entries) {
+			index.append(entry.getOffset()).append(FIELD_SEPARATOR)
+					.append(entry.getLength()).append(FIELD_SEPARATOR)
+					.append(entry.getContentMD5()).append(FIELD_SEPARATOR)
+					.append(entry.getName()).append(LINE_SEPARATOR);
+		}
+		return index.toString();
+	}
+
+	/**
+	 * @param index
+	 *            content of an index blob
+	 * @return the entries of the pack, in pack order
+	 */
+	public static List<Entry> parseIndex(String index) {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (String line : index.split(LINE_SEPARATOR)) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split(FIELD_SEPARATOR, 4);
+			entries.add(new Entry(fields[3], Long.parseLong(fields[0]),
+					Long.parseLong(fields[1]), fields[2]));
+		}
+		return entries;
+	}
+
+	/**
+	 * File stored in a pack.
+	 */
+	public static final class Entry implements Serializable {
+
+		private static final long serialVersionUID = 3150713271453862137L;
+
+		private final String name;
+
+		private final long offset;
+
+		private final long length;
+
+		private final String contentMD5;
+
+		public Entry(String name, long offset, long length, String contentMD5) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.contentMD5 = contentMD5;
+		}
+
+		/**
+		 * @return blob name of the file
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public String getContentMD5() {
+			return contentMD5;
+		}
+
+		/**
+		 * @param newName
+		 * @return the same entry under another name
+		 */
+		public Entry rename(String newName) {
+			return new Entry(newName, offset, length, contentMD5);
+		}
+	}
+}
@@ -11,11 +11,75 @@ public class AzureBlob implements Serializable {
 	private final String blobName;
 
 	private final String blobURL;
+
+	/* Content addressed storage of the blob content, if any */
+	private final String contentContainerName;
+
+	private final String contentBlobName;
+
+	private final String contentBlobURL;
+
+	/* Range of the content in a pack, null when not packed */
+	private final Long contentOffset;
+
+	private final Long contentLength;
+
+	/* Properties of the content once uploaded, null when unknown */
+	private final Long length;
+
+	private final String contentMD5;
+
+	private final String etag;
 	
 	public AzureBlob(String containerName, String blobName, String blobURL) {
+		this(containerName, blobName, blobURL, null, null, null);
+	}
+
+	public AzureBlob(String containerName, String blobName, String blobURL,
+			String contentContainerName, String contentBlobName,
+			String contentBlobURL) {
+		this(containerName, blobName, blobURL, contentContainerName,
+				contentBlobName, contentBlobURL, null, null);
+	}
+
+	public AzureBlob(String containerName, String blobName, String blobURL,
+			String contentContainerName, String contentBlobName,
+			String contentBlobURL, Long contentOffset, Long contentLength) {
+		this(containerName, blobName, blobURL, contentContainerName,
+				contentBlobName, contentBlobURL, contentOffset, contentLength,
+				null, null, null);
+	}
+
+	private AzureBlob(String containerName, String blobName, String blobURL,
+			String contentContainerName, String contentBlobName,
+			String contentBlobURL, Long contentOffset, Long contentLength,
+			Long length, String contentMD5, String etag) {
 		this.containerName = containerName;
 		this.blobName = blobName;
 		this.blobURL = blobURL;
+		this.contentContainerName = contentContainerName;
+		this.contentBlobName = contentBlobName;
+		this.contentBlobURL = contentBlobURL;
+		this.contentOffset = contentOffset;
+		this.contentLength = contentLength;
+		this.length = length;
+		this.contentMD5 = contentMD5;
+		this.etag = etag;
+	}
+
+	/**
+	 * @param length
+	 *            length of the content, or null
+	 * @param contentMD5
+	 *            MD5 of the content, or null
+	 * @param etag
+	 *            ETag of the blob, or null
+	 * @return the same blob with the properties of its uploaded content
+	 */
+	public AzureBlob withProperties(Long length, String contentMD5, String etag) {
+		return new AzureBlob(containerName, blobName, blobURL,
+				contentContainerName, contentBlobName, contentBlobURL,
+				contentOffset, contentLength, length, contentMD5, etag);
 	}
 
 	public String getContainerName() {
@@ -30,6 +94,53 @@ public class AzureBlob implements Serializable {
 		return blobURL;
 	}
 
+	/**
+	 * @return true if the blob only references a content stored in a
+	 *         content addressed store
+	 */
+	public boolean isContentAddressed() {
+		return contentBlobName != null && contentOffset == null;
+	}
+
+	/**
+	 * @return true if the blob is stored in a pack of small files
+	 */
+	public boolean isPacked() {
+		return contentBlobName != null && contentOffset != null;
+	}
+
+	public String getContentContainerName() {
+		return contentContainerName;
+	}
+
+	public String getContentBlobName() {
+		return contentBlobName;
+	}
+
+	public String getContentBlobURL() {
+		return contentBlobURL;
+	}
+
+	public Long getContentOffset() {
+		return contentOffset;
+	}
+
+	public Long getContentLength() {
+		return contentLength;
+	}
+
+	public Long getLength() {
+		return length;
+	}
+
+	public String getContentMD5() {
+		return contentMD5;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
 	@Override
 	public String toString() {
 		return "AzureBlob [containerName=" + containerName + ",blobName=" + blobName + ", blobURL="
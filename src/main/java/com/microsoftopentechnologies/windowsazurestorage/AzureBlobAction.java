@@ -123,6 +123,27 @@ public class AzureBlobAction implements RunAction2 {
 		for (AzureBlob blob : individualBlobs) {
 			if (blob.getBlobName().equals(blobName)) {
 				try {
+					if (blob.isPacked()) {
+						// Packs hold many files, the range of this one is
+						// served through Jenkins
+						response.setContentType("application/octet-stream");
+						response.setHeader("Content-Disposition", "attachment; filename=\""
+								+ blobName.substring(blobName.lastIndexOf('/') + 1).replace("\"", "") + "\"");
+						response.setHeader("Content-Length", String.valueOf(blob.getContentLength()));
+						WAStorageClient.downloadRange(accountInfo, blob.getContentContainerName(),
+								blob.getContentBlobName(), blob.getContentOffset(),
+								blob.getContentLength(), response.getOutputStream());
+						return;
+					}
+					if (blob.isContentAddressed()) {
+						// Serve the shared content under the name of the artifact
+						response.sendRedirect2(blob.getContentBlobURL() + "?"
+								+ WAStorageClient.generateBlobSASURL(accountInfo,
+										blob.getContentContainerName(),
+										blob.getContentBlobName(),
+										blobName.substring(blobName.lastIndexOf('/') + 1)));
+						return;
+					}
 					response.sendRedirect2(blob.getBlobURL()+"?"+getSASURL(blob.getContainerName(), accountInfo));
 				} catch(Exception e) {
 					response.sendError(500, "Error occurred while downloading artifact "+e.getMessage());
@@ -16,16 +16,21 @@
 package com.microsoftopentechnologies.windowsazurestorage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import com.microsoftopentechnologies.windowsazurestorage.helper.ArchiveFormat;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Utils;
 
 import hudson.Extension;
@@ -44,6 +49,10 @@ import javax.annotation.CheckForNull;
 
 public class AzureStorageBuilder extends Builder {
 
+	public static final int DEFAULT_DOWNLOAD_CONCURRENCY = 8;
+
+	private static final int MAX_DOWNLOAD_CONCURRENCY = 64;
+
 	private String storageAccName;
 	private String containerName;
 	private String includeFilesPattern;
@@ -51,6 +60,18 @@ public class AzureStorageBuilder extends Builder {
 	private String downloadDirLoc;
 	private boolean flattenDirectories;
 	private boolean includeArchiveZips;
+	private boolean extractArchives;
+	private boolean downloadFromAgent;
+	/** Number of blobs downloaded concurrently, null for the default. */
+	private Integer downloadConcurrency;
+	private boolean incremental;
+	private boolean useCache;
+	/** Zip archive blob the files are taken out of, null for none. */
+	private String zipArchiveName;
+	/** Virtual path whose upload manifests list the blobs, null for none. */
+	private String manifestPath;
+	/** Content store containers the blobs may reference, null for none. */
+	private String contentStoreContainers;
 
 	@DataBoundConstructor
 	public AzureStorageBuilder(String storageAccName, String containerName,
@@ -113,6 +134,83 @@ public class AzureStorageBuilder extends Builder {
 		this.includeArchiveZips = includeArchiveZips;
 	}
 	
+	public boolean isExtractArchives() {
+		return extractArchives;
+	}
+
+	@DataBoundSetter
+	public void setExtractArchives(final boolean extractArchives) {
+		this.extractArchives = extractArchives;
+	}
+
+	public boolean isDownloadFromAgent() {
+		return downloadFromAgent;
+	}
+
+	@DataBoundSetter
+	public void setDownloadFromAgent(final boolean downloadFromAgent) {
+		this.downloadFromAgent = downloadFromAgent;
+	}
+
+	public int getDownloadConcurrency() {
+		return downloadConcurrency == null ? DEFAULT_DOWNLOAD_CONCURRENCY
+				: downloadConcurrency;
+	}
+
+	@DataBoundSetter
+	public void setDownloadConcurrency(final int downloadConcurrency) {
+		this.downloadConcurrency = Math.max(1,
+				Math.min(MAX_DOWNLOAD_CONCURRENCY, downloadConcurrency));
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	@DataBoundSetter
+	public void setIncremental(final boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public boolean isUseCache() {
+		return useCache;
+	}
+
+	@DataBoundSetter
+	public void setUseCache(final boolean useCache) {
+		this.useCache = useCache;
+	}
+
+	public String getZipArchiveName() {
+		return zipArchiveName;
+	}
+
+	@DataBoundSetter
+	public void setZipArchiveName(final String zipArchiveName) {
+		this.zipArchiveName = Utils.isNullOrEmpty(zipArchiveName) ? null
+				: zipArchiveName.trim();
+	}
+
+	public String getManifestPath() {
+		return manifestPath;
+	}
+
+	@DataBoundSetter
+	public void setManifestPath(final String manifestPath) {
+		this.manifestPath = Utils.isNullOrEmpty(manifestPath) ? null
+				: manifestPath.trim();
+	}
+
+	public String getContentStoreContainers() {
+		return contentStoreContainers;
+	}
+
+	@DataBoundSetter
+	public void setContentStoreContainers(final String contentStoreContainers) {
+		this.contentStoreContainers = Utils.isNullOrEmpty(contentStoreContainers)
+				? null : contentStoreContainers.trim();
+	}
+
 	public boolean isFlattenDirectories() {
 		return flattenDirectories;
 	}
@@ -157,13 +255,18 @@ public class AzureStorageBuilder extends Builder {
 				expIncludePattern = "**/*";
 			}
 			
-			// Exclude archive.zip by default.
-			if (!includeArchiveZips) {
+			// Exclude the archives by default.
+			if (!includeArchiveZips && !extractArchives) {
+				List<String> archiveNames = new ArrayList<String>();
+				for (ArchiveFormat format : ArchiveFormat.values()) {
+					archiveNames.add(format.getFileName());
+				}
+				String archiveExcludes = StringUtils.join(archiveNames, ',');
 				if (expExcludePattern != null) {
-					expExcludePattern += ",archive.zip";
+					expExcludePattern += "," + archiveExcludes;
 				}
 				else {
-					expExcludePattern = "archive.zip";
+					expExcludePattern = archiveExcludes;
 				}
 			}
 
@@ -171,6 +274,27 @@ public class AzureStorageBuilder extends Builder {
 			String downloadDir = Utils.replaceTokens(build, listener,
 					downloadDirLoc);
 
+			// Resolve the archive to take the files out of
+			String expZipArchiveName = Utils.replaceTokens(build, listener,
+					zipArchiveName);
+
+			// Resolve the path of the manifests listing the blobs
+			String expManifestPath = Utils.replaceTokens(build, listener,
+					manifestPath);
+
+			// Resolve the content stores the blobs may reference
+			List<String> storeContainers = new ArrayList<String>();
+			String expStoreContainers = Utils.replaceTokens(build, listener,
+					contentStoreContainers);
+			if (expStoreContainers != null) {
+				for (String storeContainer : expStoreContainers.split(",")) {
+					if (!Utils.isNullOrEmpty(storeContainer.trim())) {
+						storeContainers.add(storeContainer.trim().toLowerCase(
+								Locale.ENGLISH));
+					}
+				}
+			}
+
 			// Validate input data
 			if (!validateData(build, listener, strAcc, expContainerName)) {
 				return true; // returning true so that build can continue.
@@ -178,7 +302,10 @@ public class AzureStorageBuilder extends Builder {
 
 			int filesDownloaded = WAStorageClient.download(build, listener,
 					strAcc, expContainerName, expIncludePattern, expExcludePattern, 
-					downloadDir, flattenDirectories);
+					downloadDir, flattenDirectories, extractArchives,
+					downloadFromAgent, getDownloadConcurrency(), incremental,
+					useCache, expZipArchiveName, expManifestPath,
+					storeContainers);
 
 			if (filesDownloaded == 0) { // Mark build unstable if no files are
 										// downloaded
@@ -226,7 +353,7 @@ public class AzureStorageBuilder extends Builder {
 
 		// Check if storage account credentials are valid
 		try {
-			WAStorageClient.validateStorageAccount(strAcc.getStorageAccName(),
+			AccountValidator.validate(strAcc.getStorageAccName(),
 					strAcc.getStorageAccountKey(), strAcc.getBlobEndPointURL());
 		} catch (Exception e) {
 			listener.getLogger().println(Messages.Client_SA_val_fail());
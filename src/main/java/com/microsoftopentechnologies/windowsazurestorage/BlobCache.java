@@ -0,0 +1,313 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of blob contents on the node that downloads them, shared by all the
+ * builds running on the node. Entries are keyed by the URI of the blob
+ * (account, container and name) and the version of its content, so a blob
+ * that changes is simply cached again under a new key. The least recently
+ * used entries are deleted once the cache grows over its maximum size.
+ *
+ * Files are filled from the cache with a hard link when the file system
+ * allows it, a copy otherwise. Cached files are read-only so that a build
+ * cannot change them through a link. Concurrent requests for the same entry
+ * wait for a single download.
+ *
+ * The directory and the maximum size are set with the system properties
+ * {@code com.microsoftopentechnologies.windowsazurestorage.BlobCache.dir}
+ * and {@code com.microsoftopentechnologies.windowsazurestorage.BlobCache.maxSize}
+ * of the node.
+ */
+public final class BlobCache {
+
+	private static final String DIRECTORY = System.getProperty(
+			BlobCache.class.getName() + ".dir",
+			new File(System.getProperty("java.io.tmpdir"), "azure-blob-cache")
+					.getPath());
+
+	private static final long MAX_SIZE = Long.getLong(
+			BlobCache.class.getName() + ".maxSize",
+			10L * 1024 * 1024 * 1024);
+
+	private static final String PART_SUFFIX = ".part";
+
+	private static BlobCache instance;
+
+	private final File directory;
+
+	private final long maxSize;
+
+	/* Length of the entries, least recently used first */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+
+	/* Number of files being filled from each entry, not to evict */
+	private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+
+	private final ConcurrentMap<String, FutureTask<File>> loading = new ConcurrentHashMap<String, FutureTask<File>>();
+
+	private long size;
+
+	/**
+	 * Loads the content of a blob into a file of the cache.
+	 */
+	public interface Loader {
+		/**
+		 * @param file
+		 *            file to write, in the cache directory
+		 * @throws Exception
+		 */
+		void load(File file) throws Exception;
+	}
+
+	BlobCache(File directory, long maxSize) throws IOException {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		if (!directory.isDirectory() && !directory.mkdirs()
+				&& !directory.isDirectory()) {
+			throw new IOException("Failed to create directory " + directory);
+		}
+
+		// Entries left by a previous run, oldest used first
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && !file.getName().endsWith(PART_SUFFIX);
+			}
+		});
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long diff = a.lastModified() - b.lastModified();
+					return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+				}
+			});
+			for (File file : files) {
+				entries.put(file.getName(), file.length());
+				size += file.length();
+			}
+		}
+	}
+
+	/**
+	 * @return the cache of this node
+	 * @throws IOException
+	 */
+	public static synchronized BlobCache getInstance() throws IOException {
+		if (instance == null) {
+			instance = new BlobCache(new File(DIRECTORY), MAX_SIZE);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param blobURI
+	 *            URI of the blob, including its account and container
+	 * @param version
+	 *            identifies the content of the blob, such as its ETag
+	 * @return key of the cache entry
+	 */
+	public static String getKey(String blobURI, String version) {
+		return DigestUtils.sha256Hex(blobURI + "\n" + version);
+	}
+
+	/**
+	 * Fills a file with the content of a cache entry, loading the entry
+	 * first if the cache does not have it.
+	 *
+	 * @param key
+	 * @param target
+	 *            file to fill, replaced if it exists
+	 * @param loader
+	 *            loads the entry if it is missing
+	 * @return true if the entry was already cached
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean fill(String key, File target, Loader loader)
+			throws IOException, InterruptedException {
+		boolean cached = acquire(key);
+		try {
+			if (!cached) {
+				load(key, loader);
+			}
+			link(new File(directory, key), target);
+			return cached;
+		} finally {
+			release(key);
+		}
+	}
+
+	/**
+	 * Marks an entry in use, before it is loaded or linked.
+	 *
+	 * @return true if the entry is cached
+	 */
+	private synchronized boolean acquire(String key) {
+		Integer count = inUse.get(key);
+		inUse.put(key, count == null ? 1 : count + 1);
+
+		File file = new File(directory, key);
+		if (entries.get(key) == null) {
+			return false;
+		}
+		if (!file.isFile()) {
+			// Deleted behind our back
+			size -= entries.remove(key);
+			return false;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+
+	private synchronized void release(String key) {
+		int count = inUse.get(key);
+		if (count == 1) {
+			inUse.remove(key);
+		} else {
+			inUse.put(key, count - 1);
+		}
+		evict();
+	}
+
+	/**
+	 * Loads an entry, the callers asking for the same entry at the same time
+	 * waiting for the first one to load it.
+	 */
+	private void load(final String key, final Loader loader)
+			throws IOException, InterruptedException {
+		FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+			public File call() throws Exception {
+				File file = new File(directory, key);
+				if (contains(key)) {
+					// Loaded by a request that just finished
+					return file;
+				}
+				File part = new File(directory, key + "."
+						+ UUID.randomUUID() + PART_SUFFIX);
+				try {
+					loader.load(part);
+					part.setReadOnly();
+					Files.move(part.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					part.delete();
+				}
+				added(key, file.length());
+				return file;
+			}
+		});
+		FutureTask<File> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+		try {
+			running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	private synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	private synchronized void added(String key, long length) {
+		Long previous = entries.put(key, length);
+		size += length - (previous == null ? 0 : previous);
+	}
+
+	/**
+	 * Deletes the least recently used entries not in use until the cache
+	 * fits in its maximum size.
+	 */
+	private synchronized void evict() {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (inUse.containsKey(entry.getKey())) {
+				continue;
+			}
+			File file = new File(directory, entry.getKey());
+			// The mode is shared with the links to the file, it is only
+			// changed where read-only files cannot be deleted
+			if (!file.delete() && file.exists()) {
+				file.setWritable(true);
+				file.delete();
+			}
+			if (!file.exists()) {
+				size -= entry.getValue();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Hard links a cached file to the target, or copies it if the link
+	 * cannot be made, across file systems for example.
+	 */
+	private static void link(File cached, File target) throws IOException {
+		File parent = target.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()
+				&& !parent.isDirectory()) {
+			throw new IOException("Failed to create directory " + parent);
+		}
+		Files.deleteIfExists(target.toPath());
+		try {
+			Files.createLink(target.toPath(), cached.toPath());
+			return;
+		} catch (IOException e) {
+			// Not supported here, copied instead
+		} catch (UnsupportedOperationException e) {
+			// Not supported here, copied instead
+		}
+		Files.copy(cached.toPath(), target.toPath());
+		target.setWritable(true);
+	}
+}
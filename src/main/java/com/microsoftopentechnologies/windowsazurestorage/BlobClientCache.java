@@ -0,0 +1,132 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blob service clients of the controller, shared by all the builds, and the
+ * containers known to exist. A client is created once per account, endpoint
+ * and retry policy instead of once per transfer, and a container found or
+ * created is not checked again until its entry expires.
+ *
+ * Clients are not changed once created, so they are safe to share between
+ * threads. Both caches are cleared when the storage accounts are configured
+ * again. The time containers are remembered is set in milliseconds with the
+ * system property
+ * {@code com.microsoftopentechnologies.windowsazurestorage.BlobClientCache.containerTTL}.
+ */
+final class BlobClientCache {
+
+	private static final long CONTAINER_TTL = Long.getLong(
+			BlobClientCache.class.getName() + ".containerTTL",
+			TimeUnit.MINUTES.toMillis(10));
+
+	private static final ConcurrentMap<String, CloudBlobClient> CLIENTS = new ConcurrentHashMap<String, CloudBlobClient>();
+
+	/* Expiry time of the containers known to exist, by URI */
+	private static final ConcurrentMap<String, Long> CONTAINERS = new ConcurrentHashMap<String, Long>();
+
+	private BlobClientCache() {
+	}
+
+	/**
+	 * @param accName
+	 *            storage account name
+	 * @param key
+	 *            storage account access key
+	 * @param blobURL
+	 *            blob service endpoint url
+	 * @param allowRetry
+	 *            false for a client that does not retry failed requests
+	 * @return the shared client of the account
+	 * @throws URISyntaxException
+	 */
+	static CloudBlobClient getClient(String accName, String key,
+			String blobURL, boolean allowRetry) throws URISyntaxException {
+		// Keyed by a digest of the access key, a new key gets a new client
+		String cacheKey = accName + "\n" + blobURL + "\n" + allowRetry + "\n"
+				+ DigestUtils.sha256Hex(key);
+		CloudBlobClient client = CLIENTS.get(cacheKey);
+		if (client == null) {
+			client = WAStorageClient.getCloudStorageAccount(accName, key,
+					blobURL).createCloudBlobClient();
+			if (!allowRetry) {
+				// Setting no retry policy
+				client.getDefaultRequestOptions().setRetryPolicyFactory(
+						new RetryNoRetry());
+			}
+			CloudBlobClient existing = CLIENTS.putIfAbsent(cacheKey, client);
+			if (existing != null) {
+				client = existing;
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * @param container
+	 * @return true if the container was found or created recently
+	 */
+	static boolean isKnownContainer(CloudBlobContainer container) {
+		String uri = container.getUri().toString();
+		Long expiry = CONTAINERS.get(uri);
+		if (expiry == null) {
+			return false;
+		}
+		if (expiry < System.currentTimeMillis()) {
+			CONTAINERS.remove(uri, expiry);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers that a container exists.
+	 *
+	 * @param container
+	 */
+	static void addContainer(CloudBlobContainer container) {
+		CONTAINERS.put(container.getUri().toString(),
+				System.currentTimeMillis() + CONTAINER_TTL);
+	}
+
+	/**
+	 * Forgets a container, deleted or found missing.
+	 *
+	 * @param container
+	 */
+	static void removeContainer(CloudBlobContainer container) {
+		CONTAINERS.remove(container.getUri().toString());
+	}
+
+	/**
+	 * Drops all the clients and containers, after a change of the storage
+	 * accounts.
+	 */
+	static void invalidate() {
+		CLIENTS.clear();
+		CONTAINERS.clear();
+	}
+}
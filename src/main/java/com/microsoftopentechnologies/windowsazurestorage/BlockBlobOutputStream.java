@@ -0,0 +1,222 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RangeWorkers;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+/**
+ * Output stream that stages everything written to it as blocks of a block
+ * blob. Blocks are uploaded in the background while the producer keeps
+ * writing, and {@link #commit()} commits the block list once the content is
+ * complete. Closing the stream without committing leaves the existing blob
+ * untouched.
+ *
+ * The staging workers are taken from the {@link RangeWorkers} budget of the
+ * JVM when the stream is opened, each with room for a block being uploaded
+ * and one waiting, and given back once the stream is committed or closed.
+ */
+public class BlockBlobOutputStream extends OutputStream {
+
+	/* Largest block accepted by the storage service version in use */
+	public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	/* Budget of a staging worker, its block and the one queued behind it */
+	private static final int WORKER_BUFFER_SIZE = 2 * BLOCK_SIZE;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final CloudBlockBlob blob;
+
+	private final BlobRequestOptions options;
+
+	private final TransferPool<Void> stagingPool;
+
+	private final int workers;
+
+	private final List<BlockEntry> blockList = new ArrayList<BlockEntry>();
+
+	/* Keeps the blocks of concurrent uploads to the same blob apart */
+	private final String blockIdPrefix = UUID.randomUUID().toString();
+
+	private final MessageDigest md5;
+
+	private byte[] buffer = new byte[BLOCK_SIZE];
+
+	private int count;
+
+	private long length;
+
+	private boolean closed;
+
+	/**
+	 * @param blob
+	 *            destination blob, with its properties already set
+	 * @param options
+	 * @param concurrency
+	 *            maximum number of blocks staged concurrently, fewer if the
+	 *            worker budget is short
+	 * @throws IOException
+	 */
+	public BlockBlobOutputStream(CloudBlockBlob blob,
+			BlobRequestOptions options, int concurrency) throws IOException {
+		this.blob = blob;
+		this.options = options;
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		try {
+			this.workers = RangeWorkers.acquire(concurrency, WORKER_BUFFER_SIZE);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+		this.stagingPool = new TransferPool<Void>("Azure block staging",
+				workers, workers);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		md5.update(b, off, len);
+		length += len;
+
+		while (len > 0) {
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == buffer.length) {
+				stageBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Waits for all blocks to be staged and commits the block list, along
+	 * with the blob properties and the MD5 of the whole content.
+	 * 
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void commit() throws StorageException, IOException,
+			InterruptedException {
+		ensureOpen();
+		if (count > 0) {
+			stageBuffer();
+		}
+
+		try {
+			stagingPool.awaitResults();
+		} catch (WAStorageException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(e.getMessage(), cause);
+		}
+
+		blob.getProperties().setContentMD5(Base64.encode(md5.digest()));
+		blob.commitBlockList(blockList, null, options, null);
+		closed = true;
+		RangeWorkers.release(workers, WORKER_BUFFER_SIZE);
+	}
+
+	/**
+	 * Releases the stream. Blocks staged by a stream that was not committed
+	 * are discarded by the storage service.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			stagingPool.cancel();
+			RangeWorkers.release(workers, WORKER_BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream to blob " + blob.getName()
+					+ " is closed");
+		}
+
+		Throwable failure = stagingPool.getFailure();
+		if (failure != null) {
+			throw new IOException(failure.getMessage(), failure);
+		}
+	}
+
+	private void stageBuffer() throws IOException {
+		final String blockId = Base64.encode(String.format("%s-%08d",
+				blockIdPrefix, blockList.size()).getBytes(UTF8));
+		final byte[] data = buffer;
+		final int dataLength = count;
+
+		blockList.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+		buffer = new byte[BLOCK_SIZE];
+		count = 0;
+
+		try {
+			stagingPool.submit(dataLength, new Callable<Void>() {
+				public Void call() throws Exception {
+					blob.uploadBlock(blockId, new ByteArrayInputStream(data, 0,
+							dataLength), dataLength, null, options, null);
+					return null;
+				}
+			});
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+	}
+}
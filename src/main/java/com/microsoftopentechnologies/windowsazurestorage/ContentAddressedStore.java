@@ -0,0 +1,452 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferPool;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Container holding file contents under the hash of the content, shared by
+ * all the jobs that publish to it. The blobs of a job only hold a reference
+ * to the content, so identical files are stored, and uploaded, once.
+ *
+ * Blob names are {@code sha256/<first two hex digits>/<hex digest>}. The
+ * existence of the contents of a batch of files is checked by shard: the
+ * shards holding several unknown names of the batch are listed, a page of
+ * 5000 names answering for all of them, the others get one request per
+ * name. Shards are listed for no more pages than they have names to check,
+ * so a large store costs at most what checking each name would. The names
+ * found are remembered for a while, in a bounded cache, for the next
+ * publishes.
+ */
+public class ContentAddressedStore {
+
+	/** Metadata of a reference blob: container of the content */
+	public static final String STORE_METADATA = "contentstore";
+
+	/** Metadata of a reference blob: name of the content blob */
+	public static final String KEY_METADATA = "contentkey";
+
+	/** Metadata of a reference blob: length of the content */
+	public static final String LENGTH_METADATA = "contentlength";
+
+	/** Metadata of a reference blob: base64 encoded MD5 of the content */
+	public static final String MD5_METADATA = "contentmd5";
+
+	private static final String KEY_PREFIX = "sha256/";
+
+	/* Shards with fewer unknown names of a batch are not listed */
+	static final int MIN_LISTED_KEYS = 4;
+
+	private static final int LIST_PAGE_SIZE = 5000;
+
+	/* Bounds the memory used by the names of known contents */
+	private static final int MAX_KNOWN_KEYS = 100000;
+
+	/* Contents can be removed from the store, they are checked again after */
+	private static final long KNOWN_KEY_TTL = TimeUnit.HOURS.toMillis(1);
+
+	/* Blob URIs of the contents known to exist, least recently used first */
+	private static final KnownKeys KNOWN_KEYS = new KnownKeys();
+
+	private final CloudBlobContainer container;
+
+	private final BlobRequestOptions options;
+
+	private final int threads;
+
+	/**
+	 * @param container
+	 *            container of the store
+	 * @param options
+	 * @param threads
+	 *            number of concurrent existence checks
+	 */
+	public ContentAddressedStore(CloudBlobContainer container,
+			BlobRequestOptions options, int threads) {
+		this.container = container;
+		this.options = options;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param sha256
+	 *            hex SHA-256 digest of a content
+	 * @return name of the blob holding the content
+	 */
+	public static String getKey(String sha256) {
+		return KEY_PREFIX + sha256.substring(0, 2) + "/" + sha256;
+	}
+
+	/**
+	 * @return container of the store
+	 */
+	public CloudBlobContainer getContainer() {
+		return container;
+	}
+
+	/**
+	 * @param key
+	 * @return blob holding the content
+	 * @throws URISyntaxException
+	 * @throws StorageException
+	 */
+	public CloudBlockBlob getBlob(String key) throws URISyntaxException,
+			StorageException {
+		return container.getBlockBlobReference(key);
+	}
+
+	/**
+	 * Finds the contents that are not in the store yet, listing the shards
+	 * holding several unknown names of the batch and checking the others
+	 * one by one, concurrently.
+	 *
+	 * @param keys
+	 * @return the keys of the missing contents
+	 * @throws StorageException
+	 * @throws URISyntaxException
+	 * @throws WAStorageException
+	 * @throws InterruptedException
+	 */
+	public Set<String> findMissing(Collection<String> keys)
+			throws StorageException, URISyntaxException, WAStorageException,
+			InterruptedException {
+		Set<String> missing = new LinkedHashSet<String>();
+		for (String key : keys) {
+			if (!KNOWN_KEYS.contains(getUri(key))) {
+				missing.add(key);
+			}
+		}
+		if (missing.isEmpty()) {
+			return missing;
+		}
+		if (missing.size() == 1) {
+			String key = missing.iterator().next();
+			if (getBlob(key).exists(null, options, null)) {
+				added(key);
+				missing.clear();
+			}
+			return missing;
+		}
+
+		List<SortedSet<String>> shards = new ArrayList<SortedSet<String>>();
+		List<String> sparse = new ArrayList<String>();
+		for (SortedSet<String> shard : groupByShard(missing).values()) {
+			if (shard.size() >= MIN_LISTED_KEYS) {
+				shards.add(shard);
+			} else {
+				sparse.addAll(shard);
+			}
+		}
+		int tasks = shards.size() + sparse.size();
+		TransferPool<Collection<String>> checkPool = new TransferPool<Collection<String>>(
+				"Azure content check", Math.min(threads, tasks), tasks);
+		try {
+			for (final SortedSet<String> shard : shards) {
+				checkPool.submit(0, new Callable<Collection<String>>() {
+					public Collection<String> call() throws Exception {
+						return findExisting(shard);
+					}
+				});
+			}
+			for (final String key : sparse) {
+				final CloudBlockBlob blob = getBlob(key);
+				checkPool.submit(0, new Callable<Collection<String>>() {
+					public Collection<String> call() throws Exception {
+						return blob.exists(null, options, null) ? Collections
+								.singleton(key) : null;
+					}
+				});
+			}
+			for (Collection<String> existing : checkPool.awaitResults()) {
+				for (String key : existing) {
+					added(key);
+					missing.remove(key);
+				}
+			}
+		} finally {
+			checkPool.cancel();
+		}
+		return missing;
+	}
+
+	/**
+	 * Lists a shard to find which of its keys exist. Listing stops once it
+	 * took as many pages as there are keys, or once a single key is left
+	 * after the names listed; the keys left are checked one by one.
+	 *
+	 * @param keys
+	 *            keys of the same shard
+	 * @return the keys that exist
+	 * @throws StorageException
+	 * @throws URISyntaxException
+	 */
+	private Collection<String> findExisting(SortedSet<String> keys)
+			throws StorageException, URISyntaxException {
+		String shard = keys.first().substring(0,
+				keys.first().lastIndexOf('/') + 1);
+		List<String> existing = new ArrayList<String>();
+		ResultContinuation token = null;
+		String last = null;
+		int pages = 0;
+		SortedSet<String> left = keys;
+		do {
+			ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(
+					shard, true, EnumSet.noneOf(BlobListingDetails.class),
+					LIST_PAGE_SIZE, token, options, null);
+			pages++;
+			for (ListBlobItem item : segment.getResults()) {
+				if (item instanceof CloudBlob) {
+					String name = ((CloudBlob) item).getName();
+					if (keys.contains(name)) {
+						existing.add(name);
+					}
+					last = name;
+				}
+			}
+			token = segment.getHasMoreResults() ? segment
+					.getContinuationToken() : null;
+			left = token == null ? new TreeSet<String>() : getKeysAfter(
+					keys, last);
+		} while (token != null && pages < keys.size() && left.size() > 1);
+
+		for (String key : left) {
+			if (getBlob(key).exists(null, options, null)) {
+				existing.add(key);
+			}
+		}
+		return existing;
+	}
+
+	/**
+	 * @param keys
+	 * @return the keys by shard, each shard in listing order
+	 */
+	static Map<String, SortedSet<String>> groupByShard(Collection<String> keys) {
+		Map<String, SortedSet<String>> shards = new TreeMap<String, SortedSet<String>>();
+		for (String key : keys) {
+			String shard = key.substring(0, key.lastIndexOf('/') + 1);
+			SortedSet<String> shardKeys = shards.get(shard);
+			if (shardKeys == null) {
+				shardKeys = new TreeSet<String>();
+				shards.put(shard, shardKeys);
+			}
+			shardKeys.add(key);
+		}
+		return shards;
+	}
+
+	/**
+	 * @param keys
+	 *            keys of a shard
+	 * @param last
+	 *            last name listed, or null if none was
+	 * @return the keys a listing did not reach yet
+	 */
+	static SortedSet<String> getKeysAfter(SortedSet<String> keys, String last) {
+		if (last == null) {
+			return keys;
+		}
+		// The service lists names in order
+		return keys.tailSet(last + "\0");
+	}
+
+	/**
+	 * Writes the reference from a blob of a job to a content of the store.
+	 *
+	 * @param blob
+	 *            blob of the job, with its properties already set
+	 * @param key
+	 * @param length
+	 *            length of the content, for downloads to pick how to fetch
+	 *            it without reading the content blob first
+	 * @param contentMD5
+	 *            base64 encoded MD5 of the content, or null
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	public void writeReference(CloudBlockBlob blob, String key, long length,
+			String contentMD5) throws StorageException, IOException {
+		blob.getMetadata().put(STORE_METADATA, container.getName());
+		blob.getMetadata().put(KEY_METADATA, key);
+		blob.getMetadata().put(LENGTH_METADATA, String.valueOf(length));
+		if (contentMD5 != null) {
+			blob.getMetadata().put(MD5_METADATA, contentMD5);
+		}
+		blob.uploadFromByteArray(new byte[0], 0, 0, null, options, null);
+	}
+
+	/**
+	 * Returns the blob holding the content of a blob, following the
+	 * reference to a content addressed store if the blob is one.
+	 *
+	 * @param blob
+	 * @param stores
+	 *            containers of the stores by name, with their own
+	 *            credentials, or null to use those of the blob
+	 * @return the blob itself, or the content it references
+	 * @throws StorageException
+	 * @throws URISyntaxException
+	 * @throws WAStorageException
+	 *             if the store is not one of the given stores
+	 */
+	public static CloudBlob resolve(CloudBlob blob,
+			Map<String, CloudBlobContainer> stores) throws StorageException,
+			URISyntaxException, WAStorageException {
+		// References are empty, no need to look at the metadata of others
+		if (blob.getProperties().getLength() != 0) {
+			return blob;
+		}
+		// Unless the listing already returned the metadata
+		if (!blob.getMetadata().containsKey(KEY_METADATA)) {
+			blob.downloadAttributes();
+		}
+		String store = blob.getMetadata().get(STORE_METADATA);
+		String key = blob.getMetadata().get(KEY_METADATA);
+		if (store == null || key == null) {
+			return blob;
+		}
+		return getStoreContainer(blob.getServiceClient(), store, stores)
+				.getBlockBlobReference(key);
+	}
+
+	/**
+	 * @param reference
+	 *            blob referencing a content, with its metadata
+	 * @return length of the content, or null if the reference predates it
+	 */
+	public static Long getReferencedLength(CloudBlob reference) {
+		String length = reference.getMetadata().get(LENGTH_METADATA);
+		if (length == null) {
+			return null;
+		}
+		try {
+			return Long.valueOf(length);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param reference
+	 *            blob referencing a content, with its metadata
+	 * @return base64 encoded MD5 of the content, or null
+	 */
+	public static String getReferencedMD5(CloudBlob reference) {
+		return reference.getMetadata().get(MD5_METADATA);
+	}
+
+	/**
+	 * @param client
+	 *            client of the container holding the references
+	 * @param name
+	 *            name of the store container
+	 * @param stores
+	 *            containers of the stores by name, with their own
+	 *            credentials, or null to use those of the client
+	 * @return container of the store
+	 * @throws URISyntaxException
+	 * @throws StorageException
+	 * @throws WAStorageException
+	 *             if the store is not one of the given stores
+	 */
+	public static CloudBlobContainer getStoreContainer(CloudBlobClient client,
+			String name, Map<String, CloudBlobContainer> stores)
+			throws URISyntaxException, StorageException, WAStorageException {
+		if (stores == null) {
+			return client.getContainerReference(name);
+		}
+		CloudBlobContainer container = stores.get(name);
+		if (container == null) {
+			throw new WAStorageException(
+					Messages.AzureStorageBuilder_store_not_signed(name));
+		}
+		return container;
+	}
+
+	/**
+	 * Records a content uploaded to the store.
+	 *
+	 * @param key
+	 */
+	public void added(String key) {
+		KNOWN_KEYS.add(getUri(key));
+	}
+
+	private String getUri(String key) {
+		return container.getUri().toString() + "/" + key;
+	}
+
+	/**
+	 * Names known to exist, each for {@link #KNOWN_KEY_TTL} after it was
+	 * last seen, evicting the least recently used past {@link #MAX_KNOWN_KEYS}.
+	 */
+	static final class KnownKeys {
+
+		private final Map<String, Long> expiries = new LinkedHashMap<String, Long>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > MAX_KNOWN_KEYS;
+			}
+		};
+
+		synchronized boolean contains(String name) {
+			Long expiry = expiries.get(name);
+			if (expiry == null) {
+				return false;
+			}
+			if (expiry < System.currentTimeMillis()) {
+				expiries.remove(name);
+				return false;
+			}
+			return true;
+		}
+
+		synchronized void add(String name) {
+			expiries.put(name, System.currentTimeMillis() + KNOWN_KEY_TTL);
+		}
+	}
+}
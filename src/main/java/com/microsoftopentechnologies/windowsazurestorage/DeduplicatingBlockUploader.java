@@ -0,0 +1,192 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.ContentDefinedChunker;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Uploads a file as a block blob made of content defined chunks, each block
+ * identified by the SHA-256 of its content. Blocks already committed in the
+ * previous version of the blob are reused as they are, only the new blocks
+ * are staged. A few changed megabytes in a large artifact only cost a few
+ * blocks.
+ */
+public class DeduplicatingBlockUploader {
+
+	private final CloudBlockBlob blob;
+
+	private final BlobRequestOptions options;
+
+	private final int concurrency;
+
+	private int reusedBlocks;
+
+	private int stagedBlocks;
+
+	private long stagedBytes;
+
+	/**
+	 * @param blob
+	 *            destination blob, with its properties already set
+	 * @param options
+	 * @param concurrency
+	 *            number of blocks staged concurrently
+	 */
+	public DeduplicatingBlockUploader(CloudBlockBlob blob,
+			BlobRequestOptions options, int concurrency) {
+		this.blob = blob;
+		this.options = options;
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Uploads the content of a stream, replacing the blob.
+	 *
+	 * @param in
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void upload(InputStream in) throws StorageException, IOException,
+			InterruptedException {
+		Set<String> committed = getCommittedBlockIds();
+		Set<String> staged = new HashSet<String>();
+		List<BlockEntry> blockList = new ArrayList<BlockEntry>();
+
+		MessageDigest md5 = getDigest("MD5");
+		MessageDigest sha256 = getDigest("SHA-256");
+
+		TransferPool<Void> stagingPool = new TransferPool<Void>(
+				"Azure block staging", concurrency, concurrency);
+		try {
+			ContentDefinedChunker chunker = new ContentDefinedChunker(in);
+			byte[] chunk;
+			while ((chunk = chunker.next()) != null) {
+				if (stagingPool.hasFailed()) {
+					break;
+				}
+				md5.update(chunk);
+				final String blockId = Base64.encode(sha256.digest(chunk));
+
+				if (committed.contains(blockId)) {
+					blockList.add(new BlockEntry(blockId, BlockSearchMode.COMMITTED));
+					reusedBlocks++;
+					continue;
+				}
+
+				blockList.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+				if (!staged.add(blockId)) {
+					// Repeated within the file, staged once
+					continue;
+				}
+				stagedBlocks++;
+				stagedBytes += chunk.length;
+
+				final byte[] data = chunk;
+				stagingPool.submit(data.length, new Callable<Void>() {
+					public Void call() throws Exception {
+						blob.uploadBlock(blockId, new ByteArrayInputStream(data),
+								data.length, null, options, null);
+						return null;
+					}
+				});
+			}
+			stagingPool.awaitResults();
+		} catch (WAStorageException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(e.getMessage(), cause);
+		} finally {
+			stagingPool.cancel();
+		}
+
+		blob.getProperties().setContentMD5(Base64.encode(md5.digest()));
+		blob.commitBlockList(blockList, null, options, null);
+	}
+
+	/**
+	 * @return number of blocks taken from the previous version of the blob
+	 */
+	public int getReusedBlocks() {
+		return reusedBlocks;
+	}
+
+	/**
+	 * @return number of blocks uploaded
+	 */
+	public int getStagedBlocks() {
+		return stagedBlocks;
+	}
+
+	/**
+	 * @return number of bytes uploaded
+	 */
+	public long getStagedBytes() {
+		return stagedBytes;
+	}
+
+	private Set<String> getCommittedBlockIds() throws StorageException {
+		Set<String> blockIds = new HashSet<String>();
+		try {
+			for (BlockEntry block : blob.downloadBlockList(
+					BlockListingFilter.COMMITTED, null, options, null)) {
+				blockIds.add(block.getId());
+			}
+		} catch (StorageException e) {
+			if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND
+					&& !StorageErrorCodeStrings.BLOB_NOT_FOUND.equals(e.getErrorCode())) {
+				throw e;
+			}
+			// First upload of the blob
+		}
+		return blockIds;
+	}
+
+	private static MessageDigest getDigest(String algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+}
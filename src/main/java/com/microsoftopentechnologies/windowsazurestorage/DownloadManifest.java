@@ -0,0 +1,201 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.blob.CloudBlob;
+import hudson.FilePath;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records, in the download directory, the version of the blob each file
+ * was downloaded from, so that the next download only fetches the blobs
+ * that changed. A file is up to date when it still has the length it was
+ * downloaded with and the blob still has the same ETag or the same content
+ * MD5. Both come with the listing, checking them costs no request.
+ *
+ * The manifest is a text file, one line per file: ETag, content MD5,
+ * length and file name, separated by tabs.
+ */
+public class DownloadManifest {
+
+	public static final String FILE_NAME = ".azure-download-manifest";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String FIELD_SEPARATOR = "\t";
+
+	private static final String LINE_SEPARATOR = "\n";
+
+	/* Stands for a missing ETag or MD5 */
+	private static final String NONE = "-";
+
+	private final FilePath downloadDir;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	private DownloadManifest(FilePath downloadDir) {
+		this.downloadDir = downloadDir;
+	}
+
+	/**
+	 * @param downloadDir
+	 * @return the manifest of the directory, empty if it has none
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static DownloadManifest load(FilePath downloadDir)
+			throws IOException, InterruptedException {
+		DownloadManifest manifest = new DownloadManifest(downloadDir);
+		FilePath file = downloadDir.child(FILE_NAME);
+		if (!file.exists()) {
+			return manifest;
+		}
+		InputStream in = file.read();
+		try {
+			for (String line : IOUtils.toString(in, UTF8.name()).split(LINE_SEPARATOR)) {
+				String[] fields = line.split(FIELD_SEPARATOR, 4);
+				if (fields.length == 4) {
+					manifest.entries.put(fields[3], new Entry(fields[0],
+							fields[1], Long.parseLong(fields[2])));
+				}
+			}
+		} catch (NumberFormatException e) {
+			// Unreadable, everything is downloaded again
+			manifest.entries.clear();
+		} finally {
+			in.close();
+		}
+		return manifest;
+	}
+
+	/**
+	 * Writes the manifest to the download directory.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void save() throws IOException, InterruptedException {
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			content.append(entry.getValue().etag).append(FIELD_SEPARATOR)
+					.append(entry.getValue().contentMD5).append(FIELD_SEPARATOR)
+					.append(entry.getValue().length).append(FIELD_SEPARATOR)
+					.append(entry.getKey()).append(LINE_SEPARATOR);
+		}
+		OutputStream out = downloadDir.child(FILE_NAME).write();
+		try {
+			out.write(content.toString().getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param name
+	 *            name of the file in the download directory
+	 * @param file
+	 * @param etag
+	 *            ETag of the blob, or null
+	 * @param contentMD5
+	 *            MD5 of the content of the blob, or null
+	 * @return true if the file was downloaded from the same content and has
+	 *         not been changed since
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean isUnchanged(String name, FilePath file, String etag,
+			String contentMD5) throws IOException, InterruptedException {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			return false;
+		}
+		if (!(etag != null && etag.equals(entry.etag))
+				&& !(contentMD5 != null && contentMD5.equals(entry.contentMD5))) {
+			return false;
+		}
+		long length = file.length();
+		if (length != entry.length || (length == 0 && !file.exists())) {
+			return false;
+		}
+		skipped.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Forgets a file, before it is downloaded again.
+	 *
+	 * @param name
+	 */
+	public void remove(String name) {
+		entries.remove(name);
+	}
+
+	/**
+	 * Records a downloaded file.
+	 *
+	 * @param name
+	 * @param etag
+	 * @param contentMD5
+	 * @param length
+	 *            length of the downloaded file
+	 */
+	public void record(String name, String etag, String contentMD5, long length) {
+		entries.put(name, new Entry(etag == null ? NONE : etag,
+				contentMD5 == null ? NONE : contentMD5, length));
+	}
+
+	/**
+	 * @return number of files found up to date
+	 */
+	public int getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * @param blob
+	 *            listed blob, with its metadata
+	 * @return what identifies the content of a blob: the key of the content
+	 *         for a reference to a content addressed store, the content MD5
+	 *         otherwise
+	 */
+	public static String getContentVersion(CloudBlob blob) {
+		String key = blob.getMetadata().get(ContentAddressedStore.KEY_METADATA);
+		return key != null ? key : blob.getProperties().getContentMD5();
+	}
+
+	private static final class Entry {
+		private final String etag;
+		private final String contentMD5;
+		private final long length;
+
+		Entry(String etag, String contentMD5, long length) {
+			this.etag = etag;
+			this.contentMD5 = contentMD5;
+			this.length = length;
+		}
+	}
+}
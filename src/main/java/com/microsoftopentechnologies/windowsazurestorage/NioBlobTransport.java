@@ -0,0 +1,709 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.StorageCredentials;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+import com.microsoftopentechnologies.windowsazurestorage.helper.NioHttpClient;
+import com.microsoftopentechnologies.windowsazurestorage.helper.NioHttpClient.Request;
+import com.microsoftopentechnologies.windowsazurestorage.helper.NioHttpClient.Response;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Blob operations of the plugin sent through a {@link NioHttpClient}
+ * instead of the blocking connections of the SDK: staging blocks,
+ * committing a block list, getting a range, listing, deleting and copying
+ * blobs. A transfer keeps many requests in flight from the thread running
+ * it, without a thread per request.
+ *
+ * Blobs and containers are SDK references, the requests being authorized
+ * with the credentials of their client: signed with the shared key of the
+ * account, or with the shared access signature appended to the URI. Failed
+ * requests are retried with an exponential backoff, like the default retry
+ * policy of the SDK; errors of the service are reported as
+ * {@link StorageException}.
+ *
+ * The transport is used when the system property
+ * {@code com.microsoftopentechnologies.windowsazurestorage.NioBlobTransport.enabled}
+ * is true on the node running the transfer. It does not go through HTTP
+ * proxies. The connections kept per host are set with the system property
+ * {@code com.microsoftopentechnologies.windowsazurestorage.NioBlobTransport.maxConnections}.
+ */
+public class NioBlobTransport {
+
+	private static final String PROPERTY_PREFIX = NioBlobTransport.class.getName();
+
+	private static final boolean ENABLED = Boolean.getBoolean(PROPERTY_PREFIX + ".enabled");
+
+	private static final int MAX_CONNECTIONS = Integer.getInteger(
+			PROPERTY_PREFIX + ".maxConnections", 32);
+
+	/* Time a request can go without sending or receiving data */
+	private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+	private static final int MAX_ATTEMPTS = 3;
+
+	private static final long RETRY_BACKOFF_MILLIS = 2000;
+
+	private static final int MAX_LIST_RESULTS = 5000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static NioBlobTransport instance;
+
+	private final NioHttpClient client;
+
+	private final ScheduledExecutorService retries;
+
+	private NioBlobTransport() throws IOException {
+		this.client = new NioHttpClient("Azure NIO transport", MAX_CONNECTIONS,
+				TIMEOUT_MILLIS);
+		this.retries = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(
+				new DaemonThreadFactory(), "Azure NIO transport retry"));
+	}
+
+	/**
+	 * @return true if transfers go through this transport
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * @return the transport shared by the transfers of this node
+	 * @throws IOException
+	 */
+	public static synchronized NioBlobTransport getInstance() throws IOException {
+		if (instance == null) {
+			instance = new NioBlobTransport();
+		}
+		return instance;
+	}
+
+	/**
+	 * Receives the outcome of an operation, on the thread of the transport:
+	 * implementations must not block.
+	 *
+	 * @param <T>
+	 *            result of the operation
+	 */
+	public interface Callback<T> {
+		void completed(T result);
+
+		/**
+		 * @param e
+		 *            {@link StorageException} for an error of the service,
+		 *            {@link IOException} otherwise
+		 */
+		void failed(Exception e);
+	}
+
+	/**
+	 * Callback waited for by the thread that started the operation.
+	 *
+	 * @param <T>
+	 */
+	public static final class Completion<T> implements Callback<T> {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private T result;
+
+		private Exception failure;
+
+		public void completed(T result) {
+			this.result = result;
+			done.countDown();
+		}
+
+		public void failed(Exception e) {
+			this.failure = e;
+			done.countDown();
+		}
+
+		/**
+		 * @return the result of the operation
+		 * @throws StorageException
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		public T get() throws StorageException, IOException,
+				InterruptedException {
+			done.await();
+			if (failure instanceof StorageException) {
+				throw (StorageException) failure;
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure != null) {
+				throw new IOException(failure.getMessage(), failure);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Stages a block of a block blob.
+	 *
+	 * @param blob
+	 * @param blockId
+	 *            id of the block, base64 encoded
+	 * @param data
+	 *            not copied, must not change until the operation completes
+	 * @param length
+	 * @param callback
+	 */
+	public void putBlock(final CloudBlockBlob blob, final String blockId,
+			final byte[] data, final int length, Callback<Void> callback) {
+		execute(new Operation<Void>(201) {
+			@Override
+			Request newRequest() throws Exception {
+				return authorize(blob.getServiceClient().getCredentials(),
+						new Request("PUT", withQuery(blob.getUri(),
+								"comp=block&blockid=" + encode(blockId)))
+								.body(data, 0, length));
+			}
+		}, callback);
+	}
+
+	/**
+	 * Commits the blocks of a block blob, with the content type, cache
+	 * control and MD5 set in the properties of the blob.
+	 *
+	 * @param blob
+	 * @param blockIds
+	 *            ids of the uncommitted blocks, base64 encoded
+	 * @param callback
+	 *            receives the ETag of the blob
+	 */
+	public void putBlockList(final CloudBlockBlob blob,
+			final List<String> blockIds, Callback<String> callback) {
+		StringBuilder xml = new StringBuilder(
+				"<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+		for (String blockId : blockIds) {
+			xml.append("<Latest>").append(blockId).append("</Latest>");
+		}
+		xml.append("</BlockList>");
+		final byte[] body = xml.toString().getBytes(UTF8);
+
+		execute(new Operation<String>(201) {
+			@Override
+			Request newRequest() throws Exception {
+				Request request = new Request("PUT", withQuery(blob.getUri(),
+						"comp=blocklist")).body(body, 0, body.length);
+				BlobProperties properties = blob.getProperties();
+				if (properties.getContentType() != null) {
+					request.header("x-ms-blob-content-type", properties.getContentType());
+				}
+				if (properties.getCacheControl() != null) {
+					request.header("x-ms-blob-cache-control", properties.getCacheControl());
+				}
+				if (properties.getContentMD5() != null) {
+					request.header("x-ms-blob-content-md5", properties.getContentMD5());
+				}
+				return authorize(blob.getServiceClient().getCredentials(), request);
+			}
+
+			@Override
+			String parse(Response response) {
+				return response.getHeader("ETag");
+			}
+		}, callback);
+	}
+
+	/**
+	 * Gets a range of a blob.
+	 *
+	 * @param blob
+	 * @param offset
+	 * @param length
+	 * @param etag
+	 *            ETag the blob must still have, or null
+	 * @param callback
+	 *            receives the content of the range
+	 */
+	public void getRange(final CloudBlob blob, final long offset,
+			final int length, final String etag, Callback<byte[]> callback) {
+		execute(new Operation<byte[]>(200, 206) {
+			@Override
+			Request newRequest() throws Exception {
+				Request request = new Request("GET", blob.getUri()).header(
+						"x-ms-range", "bytes=" + offset + "-" + (offset + length - 1));
+				if (etag != null) {
+					request.header("If-Match", etag);
+				}
+				return authorize(blob.getServiceClient().getCredentials(), request);
+			}
+
+			@Override
+			byte[] parse(Response response) {
+				return response.getBody();
+			}
+		}, callback);
+	}
+
+	/**
+	 * Lists a page of the blobs of a container.
+	 *
+	 * @param container
+	 * @param prefix
+	 *            prefix of the names, or null
+	 * @param marker
+	 *            marker of the page, null for the first one
+	 * @param callback
+	 */
+	public void listBlobs(final CloudBlobContainer container,
+			final String prefix, final String marker,
+			Callback<BlobPage> callback) {
+		execute(new Operation<BlobPage>(200) {
+			@Override
+			Request newRequest() throws Exception {
+				String query = "restype=container&comp=list&maxresults="
+						+ MAX_LIST_RESULTS;
+				if (prefix != null && !prefix.isEmpty()) {
+					query += "&prefix=" + encode(prefix);
+				}
+				if (marker != null) {
+					query += "&marker=" + encode(marker);
+				}
+				return authorize(container.getServiceClient().getCredentials(),
+						new Request("GET", withQuery(container.getUri(), query)));
+			}
+
+			@Override
+			BlobPage parse(Response response) throws Exception {
+				return BlobPage.parse(response.getBody());
+			}
+		}, callback);
+	}
+
+	/**
+	 * Deletes a blob. A blob already missing counts as deleted.
+	 *
+	 * @param blob
+	 * @param callback
+	 */
+	public void delete(final CloudBlob blob, Callback<Void> callback) {
+		execute(new Operation<Void>(202, 404) {
+			@Override
+			Request newRequest() throws Exception {
+				return authorize(blob.getServiceClient().getCredentials(),
+						new Request("DELETE", blob.getUri()));
+			}
+		}, callback);
+	}
+
+	/**
+	 * Starts a server side copy of a blob of the same account.
+	 *
+	 * @param source
+	 * @param target
+	 * @param callback
+	 *            receives the status of the copy, success or pending
+	 */
+	public void copy(final CloudBlob source, final CloudBlob target,
+			Callback<String> callback) {
+		execute(new Operation<String>(202) {
+			@Override
+			Request newRequest() throws Exception {
+				URI sourceUri = source.getServiceClient().getCredentials()
+						.transformUri(source.getUri());
+				return authorize(target.getServiceClient().getCredentials(),
+						new Request("PUT", target.getUri()).header(
+								"x-ms-copy-source", sourceUri.toString()).body(
+								new byte[0], 0, 0));
+			}
+
+			@Override
+			String parse(Response response) {
+				return response.getHeader("x-ms-copy-status");
+			}
+		}, callback);
+	}
+
+	/**
+	 * Page of a blob listing.
+	 */
+	public static final class BlobPage {
+
+		private final List<Item> blobs;
+
+		private final String nextMarker;
+
+		BlobPage(List<Item> blobs, String nextMarker) {
+			this.blobs = blobs;
+			this.nextMarker = nextMarker;
+		}
+
+		public List<Item> getBlobs() {
+			return blobs;
+		}
+
+		/**
+		 * @return marker of the next page, or null for the last one
+		 */
+		public String getNextMarker() {
+			return nextMarker;
+		}
+
+		static BlobPage parse(byte[] xml) throws Exception {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			Document document = factory.newDocumentBuilder().parse(
+					new ByteArrayInputStream(xml));
+
+			List<Item> blobs = new ArrayList<Item>();
+			NodeList nodes = document.getElementsByTagName("Blob");
+			for (int i = 0; i < nodes.getLength(); i++) {
+				Element blob = (Element) nodes.item(i);
+				String length = getText(blob, "Content-Length");
+				blobs.add(new Item(getText(blob, "Name"),
+						length == null ? 0 : Long.parseLong(length),
+						getText(blob, "Etag"), getText(blob, "Content-MD5")));
+			}
+			String nextMarker = getText(document.getDocumentElement(), "NextMarker");
+			return new BlobPage(blobs, nextMarker);
+		}
+
+		private static String getText(Element parent, String name) {
+			NodeList nodes = parent.getElementsByTagName(name);
+			if (nodes.getLength() == 0) {
+				return null;
+			}
+			String text = nodes.item(0).getTextContent();
+			return text == null || text.isEmpty() ? null : text;
+		}
+	}
+
+	/**
+	 * Blob of a listing.
+	 */
+	public static final class Item {
+
+		private final String name;
+
+		private final long length;
+
+		private final String etag;
+
+		private final String contentMD5;
+
+		Item(String name, long length, String etag, String contentMD5) {
+			this.name = name;
+			this.length = length;
+			this.etag = etag;
+			this.contentMD5 = contentMD5;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return MD5 of the content, or null if the blob has none
+		 */
+		public String getContentMD5() {
+			return contentMD5;
+		}
+	}
+
+	/**
+	 * Request of an operation, built again for each attempt to renew its
+	 * date and signature, and the reading of its response.
+	 *
+	 * @param <T>
+	 */
+	private abstract static class Operation<T> {
+
+		private final int[] expectedStatuses;
+
+		Operation(int... expectedStatuses) {
+			this.expectedStatuses = expectedStatuses;
+		}
+
+		abstract Request newRequest() throws Exception;
+
+		T parse(Response response) throws Exception {
+			return null;
+		}
+
+		boolean isExpected(int status) {
+			for (int expected : expectedStatuses) {
+				if (status == expected) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private <T> void execute(Operation<T> operation, Callback<T> callback) {
+		execute(operation, callback, 1);
+	}
+
+	private <T> void execute(final Operation<T> operation,
+			final Callback<T> callback, final int attempt) {
+		Request request;
+		try {
+			request = operation.newRequest();
+		} catch (Exception e) {
+			callback.failed(e instanceof StorageException || e instanceof IOException
+					? e : new IOException(e.getMessage(), e));
+			return;
+		}
+
+		client.execute(request, new NioHttpClient.Callback() {
+			public void completed(Response response) {
+				if (operation.isExpected(response.getStatus())) {
+					T result;
+					try {
+						result = operation.parse(response);
+					} catch (Exception e) {
+						callback.failed(new IOException("Invalid response: "
+								+ e.getMessage(), e));
+						return;
+					}
+					callback.completed(result);
+					return;
+				}
+				StorageException error = toStorageException(response);
+				if (isRetryable(response.getStatus())) {
+					retry(error);
+				} else {
+					callback.failed(error);
+				}
+			}
+
+			public void failed(Exception e) {
+				retry(e);
+			}
+
+			private void retry(Exception e) {
+				if (attempt >= MAX_ATTEMPTS) {
+					callback.failed(e);
+					return;
+				}
+				long backoff = RETRY_BACKOFF_MILLIS << (2 * (attempt - 1));
+				retries.schedule(new Runnable() {
+					public void run() {
+						execute(operation, callback, attempt + 1);
+					}
+				}, backoff, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	private static boolean isRetryable(int status) {
+		return status == 408 || (status >= 500 && status != 501 && status != 505);
+	}
+
+	private static StorageException toStorageException(Response response) {
+		String code = response.getHeader("x-ms-error-code");
+		String message = null;
+		byte[] body = response.getBody();
+		if (body != null && body.length > 0) {
+			String text = new String(body, UTF8);
+			int start = text.indexOf("<Message>");
+			int end = text.indexOf("</Message>");
+			if (start != -1 && end > start) {
+				message = StringEscapeUtils.unescapeXml(text.substring(
+						start + "<Message>".length(), end));
+			}
+		}
+		if (code == null) {
+			code = String.valueOf(response.getStatus());
+		}
+		if (message == null) {
+			message = "The server returned status " + response.getStatus();
+		}
+		return new StorageException(code, message, response.getStatus(), null, null);
+	}
+
+	/**
+	 * Appends the shared access signature of the credentials to the URI of
+	 * the request, or signs it with the shared key of the account.
+	 */
+	private static Request authorize(StorageCredentials credentials,
+			Request request) throws URISyntaxException, StorageException,
+			InvalidKeyException {
+		String date = newDateFormat().format(new Date());
+		URI uri = credentials == null ? request.getUri()
+				: credentials.transformUri(request.getUri());
+		Request authorized = new Request(request.getMethod(), uri);
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			authorized.header(header.getKey(), header.getValue());
+		}
+		authorized.header("x-ms-date", date);
+		authorized.header("x-ms-version", Constants.HeaderConstants.TARGET_STORAGE_VERSION);
+		if (request.getBody() != null) {
+			authorized.body(request.getBody(), request.getBodyOffset(),
+					request.getBodyLength());
+		}
+
+		if (credentials instanceof StorageCredentialsAccountAndKey) {
+			StorageCredentialsAccountAndKey key = (StorageCredentialsAccountAndKey) credentials;
+			String signature;
+			byte[] stringToSign = getStringToSign(authorized,
+					key.getAccountName()).getBytes(UTF8);
+			// The MAC of the credentials is shared, as in the SDK
+			synchronized (key) {
+				Mac mac = key.getHmac256();
+				signature = Base64.encode(mac.doFinal(stringToSign));
+			}
+			authorized.header("Authorization", "SharedKey "
+					+ key.getAccountName() + ":" + signature);
+		}
+		return authorized;
+	}
+
+	/**
+	 * String signed with the shared key, for version 2015-02-21 and later of
+	 * the service.
+	 */
+	static String getStringToSign(Request request, String accountName) {
+		Map<String, String> headers = new TreeMap<String, String>();
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			headers.put(header.getKey().toLowerCase(Locale.ENGLISH),
+					header.getValue().trim());
+		}
+		int length = request.getBodyLength();
+
+		StringBuilder s = new StringBuilder(request.getMethod()).append('\n');
+		s.append(getHeader(headers, "content-encoding")).append('\n');
+		s.append(getHeader(headers, "content-language")).append('\n');
+		s.append(length == 0 ? "" : String.valueOf(length)).append('\n');
+		s.append(getHeader(headers, "content-md5")).append('\n');
+		s.append(getHeader(headers, "content-type")).append('\n');
+		// The date is in x-ms-date
+		s.append('\n');
+		s.append(getHeader(headers, "if-modified-since")).append('\n');
+		s.append(getHeader(headers, "if-match")).append('\n');
+		s.append(getHeader(headers, "if-none-match")).append('\n');
+		s.append(getHeader(headers, "if-unmodified-since")).append('\n');
+		s.append(getHeader(headers, "range")).append('\n');
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if (header.getKey().startsWith("x-ms-")) {
+				s.append(header.getKey()).append(':').append(header.getValue())
+						.append('\n');
+			}
+		}
+
+		URI uri = request.getUri();
+		s.append('/').append(accountName).append(uri.getRawPath());
+		Map<String, List<String>> parameters = new TreeMap<String, List<String>>();
+		if (uri.getRawQuery() != null) {
+			for (String parameter : uri.getRawQuery().split("&")) {
+				int equals = parameter.indexOf('=');
+				String name = decode(equals == -1 ? parameter : parameter.substring(0, equals))
+						.toLowerCase(Locale.ENGLISH);
+				String value = equals == -1 ? "" : decode(parameter.substring(equals + 1));
+				List<String> values = parameters.get(name);
+				if (values == null) {
+					values = new ArrayList<String>();
+					parameters.put(name, values);
+				}
+				values.add(value);
+			}
+		}
+		for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+			Collections.sort(parameter.getValue());
+			s.append('\n').append(parameter.getKey()).append(':');
+			for (int i = 0; i < parameter.getValue().size(); i++) {
+				if (i > 0) {
+					s.append(',');
+				}
+				s.append(parameter.getValue().get(i));
+			}
+		}
+		return s.toString();
+	}
+
+	private static String getHeader(Map<String, String> headers, String name) {
+		String value = headers.get(name);
+		return value == null ? "" : value;
+	}
+
+	private static SimpleDateFormat newDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+
+	private static URI withQuery(URI uri, String query) throws URISyntaxException {
+		String base = uri.toString();
+		return new URI(base + (uri.getRawQuery() == null ? "?" : "&") + query);
+	}
+
+	private static String encode(String value) throws UnsupportedEncodingException {
+		return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlobDirectory;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lists all the blobs under a prefix with several concurrent listings.
+ * The namespace is partitioned by virtual directories: the top levels are
+ * listed hierarchically until there are enough directories to keep all the
+ * workers busy, then each directory is listed flat on its own. The blobs
+ * found by all the listings are merged into a single stream, in no
+ * particular order.
+ *
+ * Only blobs are returned. The lister must be closed, which stops the
+ * listings if the stream was not read to the end.
+ */
+public class ParallelBlobLister implements Iterable<ListBlobItem>, Closeable {
+
+	/* Deepest level of virtual directories used as partitions */
+	private static final int MAX_PARTITION_DEPTH = 3;
+
+	/* Listed blobs waiting for the reader */
+	private static final int QUEUE_CAPACITY = 10000;
+
+	private static final Object END = new Object();
+
+	private final CloudBlobContainer container;
+
+	private final String prefix;
+
+	private final int concurrency;
+
+	private final EnumSet<BlobListingDetails> details;
+
+	private final BlobRequestOptions options;
+
+	private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(
+			QUEUE_CAPACITY);
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/* Listings not finished yet, the partitioning counting as one */
+	private final AtomicInteger pendingListings = new AtomicInteger(1);
+
+	private ExecutorService executor;
+
+	/**
+	 * @param container
+	 * @param prefix
+	 *            prefix of the blobs to list, empty for the whole container
+	 * @param concurrency
+	 *            number of concurrent listings
+	 * @param details
+	 *            details returned with the blobs
+	 * @param options
+	 */
+	public ParallelBlobLister(CloudBlobContainer container, String prefix,
+			int concurrency, EnumSet<BlobListingDetails> details,
+			BlobRequestOptions options) {
+		this.container = container;
+		this.prefix = prefix;
+		this.concurrency = Math.max(1, concurrency);
+		this.details = details;
+		this.options = options;
+	}
+
+	/**
+	 * Starts the listings. Can only be called once.
+	 */
+	public synchronized Iterator<ListBlobItem> iterator() {
+		if (executor != null) {
+			throw new IllegalStateException("Listing already started");
+		}
+		// One more thread for the partitioning, which waits for the others
+		executor = Executors.newFixedThreadPool(concurrency + 1,
+				new NamingThreadFactory(new DaemonThreadFactory(),
+						"Azure blob listing"));
+		executor.submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				run(new Callable<Void>() {
+					public Void call() throws Exception {
+						partition();
+						return null;
+					}
+				});
+				return null;
+			}
+		});
+		return new BlobIterator();
+	}
+
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Lists the top levels hierarchically, in parallel, until there are
+	 * enough directories, then starts a flat listing per directory.
+	 */
+	private void partition() throws Exception {
+		List<String> partitions = new ArrayList<String>();
+		partitions.add(prefix);
+
+		for (int depth = 0; depth < MAX_PARTITION_DEPTH
+				&& partitions.size() < concurrency; depth++) {
+			List<Future<List<String>>> levels = new ArrayList<Future<List<String>>>();
+			for (final String partition : partitions) {
+				levels.add(executor.submit(new Callable<List<String>>() {
+					public List<String> call() throws Exception {
+						return listLevel(partition);
+					}
+				}));
+			}
+			partitions = new ArrayList<String>();
+			for (Future<List<String>> level : levels) {
+				try {
+					partitions.addAll(level.get());
+				} catch (ExecutionException e) {
+					throw (Exception) e.getCause();
+				}
+			}
+		}
+
+		for (final String partition : partitions) {
+			pendingListings.incrementAndGet();
+			executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					run(new Callable<Void>() {
+						public Void call() throws Exception {
+							for (ListBlobItem blobItem : container.listBlobs(partition, true,
+									details, options, null)) {
+								queue.put(blobItem);
+							}
+							return null;
+						}
+					});
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Lists one level of a virtual directory, passing on its blobs.
+	 *
+	 * @param directory
+	 * @return prefixes of the sub directories
+	 */
+	private List<String> listLevel(String directory) throws Exception {
+		List<String> subDirectories = new ArrayList<String>();
+		for (ListBlobItem blobItem : container.listBlobs(directory, false,
+				details, options, null)) {
+			if (blobItem instanceof CloudBlob) {
+				queue.put(blobItem);
+			} else if (blobItem instanceof CloudBlobDirectory) {
+				subDirectories.add(((CloudBlobDirectory) blobItem).getPrefix());
+			}
+		}
+		return subDirectories;
+	}
+
+	/**
+	 * Runs a listing, recording its failure and ending the stream after the
+	 * last listing.
+	 */
+	private void run(Callable<Void> listing) throws InterruptedException {
+		try {
+			listing.call();
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Throwable t) {
+			failure.compareAndSet(null, t);
+			queue.clear();
+			queue.put(END);
+			return;
+		}
+		if (pendingListings.decrementAndGet() == 0) {
+			queue.put(END);
+		}
+	}
+
+	private final class BlobIterator implements Iterator<ListBlobItem> {
+
+		private Object next;
+
+		public boolean hasNext() {
+			if (next == null) {
+				try {
+					next = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw (NoSuchElementException) new NoSuchElementException(
+							"Interrupted while listing blobs").initCause(e);
+				}
+			}
+			if (next == END) {
+				Throwable cause = failure.get();
+				if (cause != null) {
+					throw (NoSuchElementException) new NoSuchElementException(
+							"Failed to list blobs: " + cause.getMessage()).initCause(cause);
+				}
+				return false;
+			}
+			return true;
+		}
+
+		public ListBlobItem next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ListBlobItem blobItem = (ListBlobItem) next;
+			next = null;
+			return blobItem;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.core.Base64;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RangeWorkers;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferPool;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a large blob to a local file, with several workers each getting
+ * a range of the blob and writing it at its position in the file. The file
+ * is sized up front, so the ranges can be written in any order through the
+ * same file channel.
+ *
+ * All ranges are read with a condition on the ETag of the blob, a blob
+ * replaced during the download fails it instead of mixing two versions.
+ * The length of the file and, when the blob has one, the MD5 of the whole
+ * content are checked at the end, each range being added to the digest in
+ * blob order.
+ *
+ * With the {@link NioBlobTransport} enabled, the ranges are requested
+ * through the transport instead, as many of them in flight as the
+ * concurrency, and written by the calling thread as they arrive.
+ *
+ * Either way, the ranges held in memory count against the
+ * {@link RangeWorkers} budget of the JVM, the download gets fewer workers
+ * than its concurrency while other large transfers use the budget.
+ */
+public class ParallelFileDownloader {
+
+	/* Size of the range each worker gets at a time */
+	static final int RANGE_SIZE = 8 * 1024 * 1024;
+
+	private final CloudBlob blob;
+
+	private final BlobRequestOptions options;
+
+	private final int concurrency;
+
+	/* Next range to claim by a worker */
+	private final AtomicInteger nextRange = new AtomicInteger();
+
+	private final Object digestLock = new Object();
+
+	/* Next range to add to the digest */
+	private int digestedRanges;
+
+	/* Set when a worker fails, so that the others stop */
+	private boolean failed;
+
+	private MessageDigest md5;
+
+	/**
+	 * @param blob
+	 *            blob to download
+	 * @param options
+	 * @param concurrency
+	 *            maximum number of ranges downloaded concurrently
+	 */
+	public ParallelFileDownloader(CloudBlob blob, BlobRequestOptions options,
+			int concurrency) {
+		this.blob = blob;
+		this.options = options;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Downloads the blob to a new file, replacing the file if it exists.
+	 *
+	 * @param file
+	 * @param length
+	 *            length of the blob
+	 * @param etag
+	 *            ETag of the blob, or null to download whatever version is
+	 *            current
+	 * @param contentMD5
+	 *            MD5 of the blob content, or null if the blob has none
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void download(File file, final long length, String etag,
+			String contentMD5) throws StorageException, IOException,
+			InterruptedException {
+		if (contentMD5 != null) {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()
+				&& !parent.isDirectory()) {
+			throw new IOException("Failed to create directory " + parent);
+		}
+
+		// Never written in place, the file may be linked to the blob cache
+		Files.deleteIfExists(file.toPath());
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			FileChannel channel = raf.getChannel();
+			int rangeCount = (int) ((length + RANGE_SIZE - 1) / RANGE_SIZE);
+
+			int workers = RangeWorkers.acquire(Math.min(concurrency, rangeCount),
+					RANGE_SIZE);
+			try {
+				if (NioBlobTransport.isEnabled()) {
+					downloadNonBlocking(channel, length, rangeCount, etag, workers);
+				} else {
+					downloadConcurrently(channel, length, rangeCount, etag, workers);
+				}
+			} finally {
+				RangeWorkers.release(workers, RANGE_SIZE);
+			}
+
+			if (channel.size() != length) {
+				throw new IOException("Downloaded " + channel.size()
+						+ " bytes of blob " + blob.getName() + " instead of "
+						+ length);
+			}
+			if (md5 != null) {
+				String actualMD5 = Base64.encode(md5.digest());
+				if (!actualMD5.equals(contentMD5)) {
+					throw new IOException("MD5 of blob " + blob.getName()
+							+ " is " + contentMD5 + ", downloaded content has "
+							+ actualMD5);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Downloads the ranges with workers, each writing the ranges it claims.
+	 */
+	private void downloadConcurrently(final FileChannel channel,
+			final long length, final int rangeCount, String etag, int workers)
+			throws StorageException, IOException, InterruptedException {
+		final AccessCondition condition = etag == null ? null
+				: AccessCondition.generateIfMatchCondition(etag);
+		TransferPool<Void> downloadPool = new TransferPool<Void>(
+				"Azure range download", Math.max(1, workers), Math.max(1, workers));
+		try {
+			for (int i = 0; i < workers; i++) {
+				downloadPool.submit(0, new Callable<Void>() {
+					public Void call() throws Exception {
+						downloadRanges(channel, length, rangeCount, condition);
+						return null;
+					}
+				});
+			}
+			downloadPool.awaitResults();
+		} catch (WAStorageException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(e.getMessage(), cause);
+		} finally {
+			downloadPool.cancel();
+		}
+	}
+
+	/**
+	 * Requests the ranges through the non-blocking transport and writes them
+	 * from this thread as they arrive. Ranges arriving ahead of the digest
+	 * are kept until it gets to them, and count against the ranges in
+	 * flight.
+	 */
+	private void downloadNonBlocking(FileChannel channel, long length,
+			int rangeCount, String etag, int workers) throws StorageException,
+			IOException, InterruptedException {
+		NioBlobTransport transport = NioBlobTransport.getInstance();
+		final BlockingQueue<Range> arrived = new LinkedBlockingQueue<Range>();
+		Map<Integer, byte[]> undigested = new HashMap<Integer, byte[]>();
+		int requested = 0;
+		int written = 0;
+		int inFlight = 0;
+		while (written < rangeCount) {
+			while (requested < rangeCount
+					&& inFlight + undigested.size() < workers) {
+				final int index = requested++;
+				long position = (long) index * RANGE_SIZE;
+				int rangeLength = (int) Math.min(RANGE_SIZE, length - position);
+				transport.getRange(blob, position, rangeLength, etag,
+						new NioBlobTransport.Callback<byte[]>() {
+							public void completed(byte[] data) {
+								arrived.add(new Range(index, data, null));
+							}
+
+							public void failed(Exception e) {
+								arrived.add(new Range(index, null, e));
+							}
+						});
+				inFlight++;
+			}
+
+			Range range = arrived.take();
+			inFlight--;
+			if (range.failure instanceof StorageException) {
+				throw (StorageException) range.failure;
+			}
+			if (range.failure instanceof IOException) {
+				throw (IOException) range.failure;
+			}
+			if (range.failure != null) {
+				throw new IOException(range.failure.getMessage(), range.failure);
+			}
+
+			long position = (long) range.index * RANGE_SIZE;
+			if (range.data.length != Math.min(RANGE_SIZE, length - position)) {
+				throw new EOFException("Blob " + blob.getName()
+						+ " shrank during download");
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(range.data);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+			written++;
+
+			if (md5 != null) {
+				undigested.put(range.index, range.data);
+				byte[] next;
+				while ((next = undigested.remove(digestedRanges)) != null) {
+					md5.update(next);
+					digestedRanges++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claims ranges one after the other until none is left, downloading each
+	 * of them to its position in the file.
+	 */
+	private void downloadRanges(FileChannel channel, long length,
+			int rangeCount, AccessCondition condition)
+			throws StorageException, IOException, InterruptedException {
+		try {
+			downloadClaimedRanges(channel, length, rangeCount, condition);
+		} catch (StorageException e) {
+			abort();
+			throw e;
+		} catch (IOException e) {
+			abort();
+			throw e;
+		} catch (InterruptedException e) {
+			abort();
+			throw e;
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
+	}
+
+	private void downloadClaimedRanges(FileChannel channel, long length,
+			int rangeCount, AccessCondition condition)
+			throws StorageException, IOException, InterruptedException {
+		byte[] data = new byte[(int) Math.min(RANGE_SIZE, length)];
+		int index;
+		while ((index = nextRange.getAndIncrement()) < rangeCount) {
+			long position = (long) index * RANGE_SIZE;
+			int rangeLength = (int) Math.min(RANGE_SIZE, length - position);
+
+			int read = blob.downloadRangeToByteArray(position,
+					(long) rangeLength, data, 0, condition, options, null);
+			if (read != rangeLength) {
+				throw new EOFException("Blob " + blob.getName()
+						+ " shrank during download");
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, rangeLength);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+			digest(index, data, rangeLength);
+		}
+	}
+
+	/**
+	 * Adds a range to the MD5 once all the ranges before it have been added.
+	 * Ranges are claimed in order, so the wait is short.
+	 */
+	private void digest(int index, byte[] data, int rangeLength)
+			throws IOException, InterruptedException {
+		if (md5 == null) {
+			return;
+		}
+		synchronized (digestLock) {
+			while (digestedRanges != index) {
+				if (failed) {
+					throw new IOException("Download of blob " + blob.getName()
+							+ " aborted");
+				}
+				digestLock.wait();
+			}
+			md5.update(data, 0, rangeLength);
+			digestedRanges++;
+			digestLock.notifyAll();
+		}
+	}
+
+	private void abort() {
+		synchronized (digestLock) {
+			failed = true;
+			digestLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Range arrived from the transport, or its failure.
+	 */
+	private static final class Range {
+
+		private final int index;
+
+		private final byte[] data;
+
+		private final Exception failure;
+
+		Range(int index, byte[] data, Exception failure) {
+			this.index = index;
+			this.data = data;
+			this.failure = failure;
+		}
+	}
+}
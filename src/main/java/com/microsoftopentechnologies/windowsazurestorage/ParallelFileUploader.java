@@ -0,0 +1,317 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.RangeWorkers;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Uploads a large local file as a block blob, with several workers reading
+ * blocks of the file at their own position and staging them concurrently.
+ * Nothing is shared between the workers but the file channel, which allows
+ * concurrent positional reads, so disk reads and uploads both proceed in
+ * parallel. The block list is committed once all blocks are staged.
+ *
+ * The MD5 of the whole file is still computed, each block being added to
+ * the digest in file order before it is staged.
+ *
+ * With the {@link NioBlobTransport} enabled, the blocks are read in order
+ * by the calling thread and staged through the transport instead, as many
+ * of them in flight as the concurrency.
+ *
+ * Either way, the blocks held in memory count against the
+ * {@link RangeWorkers} budget of the JVM.
+ */
+public class ParallelFileUploader {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final CloudBlockBlob blob;
+
+	private final BlobRequestOptions options;
+
+	private final int concurrency;
+
+	/* Keeps the blocks of concurrent uploads to the same blob apart */
+	private final String blockIdPrefix = UUID.randomUUID().toString();
+
+	/* Next block to claim by a worker */
+	private final AtomicInteger nextBlock = new AtomicInteger();
+
+	private final Object digestLock = new Object();
+
+	/* Next block to add to the digest */
+	private int digestedBlocks;
+
+	/* Set when a worker fails, so that the others stop */
+	private boolean failed;
+
+	private MessageDigest md5;
+
+	/**
+	 * @param blob
+	 *            destination blob, with its properties already set
+	 * @param options
+	 * @param concurrency
+	 *            maximum number of blocks read and staged concurrently
+	 */
+	public ParallelFileUploader(CloudBlockBlob blob,
+			BlobRequestOptions options, int concurrency) {
+		this.blob = blob;
+		this.options = options;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Uploads the content of a file, replacing the blob.
+	 *
+	 * @param file
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void upload(File file) throws StorageException, IOException,
+			InterruptedException {
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long length = channel.size();
+			final int blockCount = (int) ((length + BlockBlobOutputStream.BLOCK_SIZE - 1)
+					/ BlockBlobOutputStream.BLOCK_SIZE);
+
+			List<BlockEntry> blockList = new ArrayList<BlockEntry>(blockCount);
+			for (int i = 0; i < blockCount; i++) {
+				blockList.add(new BlockEntry(getBlockId(i),
+						BlockSearchMode.UNCOMMITTED));
+			}
+
+			int workers = RangeWorkers.acquire(Math.min(concurrency, blockCount),
+					BlockBlobOutputStream.BLOCK_SIZE);
+			try {
+				if (NioBlobTransport.isEnabled()) {
+					stageBlocksNonBlocking(channel, length, blockCount, workers);
+				} else {
+					stageBlocksConcurrently(channel, length, blockCount, workers);
+				}
+			} finally {
+				RangeWorkers.release(workers, BlockBlobOutputStream.BLOCK_SIZE);
+			}
+
+			blob.getProperties().setContentMD5(Base64.encode(md5.digest()));
+			blob.commitBlockList(blockList, null, options, null);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Stages the blocks with workers, each reading the blocks it claims.
+	 */
+	private void stageBlocksConcurrently(final FileChannel channel,
+			final long length, final int blockCount, int workers)
+			throws StorageException, IOException, InterruptedException {
+		TransferPool<Void> stagingPool = new TransferPool<Void>(
+				"Azure block staging", workers, workers);
+		try {
+			for (int i = 0; i < workers; i++) {
+				stagingPool.submit(0, new Callable<Void>() {
+					public Void call() throws Exception {
+						stageBlocks(channel, length, blockCount);
+						return null;
+					}
+				});
+			}
+			stagingPool.awaitResults();
+		} catch (WAStorageException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(e.getMessage(), cause);
+		} finally {
+			stagingPool.cancel();
+		}
+	}
+
+	/**
+	 * Reads the blocks in order from this thread and stages them through the
+	 * non-blocking transport, waiting for a staged block before reading one
+	 * more once as many as the workers are in flight.
+	 */
+	private void stageBlocksNonBlocking(FileChannel channel, long length,
+			int blockCount, int workers) throws StorageException, IOException,
+			InterruptedException {
+		NioBlobTransport transport = NioBlobTransport.getInstance();
+		final Semaphore inFlight = new Semaphore(workers);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		for (int index = 0; index < blockCount && failure.get() == null; index++) {
+			inFlight.acquire();
+			long position = (long) index * BlockBlobOutputStream.BLOCK_SIZE;
+			int blockLength = (int) Math.min(BlockBlobOutputStream.BLOCK_SIZE,
+					length - position);
+			byte[] data;
+			try {
+				data = readBlock(channel, position, blockLength);
+			} catch (IOException e) {
+				inFlight.release();
+				failure.compareAndSet(null, e);
+				break;
+			}
+			md5.update(data);
+			transport.putBlock(blob, getBlockId(index), data, blockLength,
+					new NioBlobTransport.Callback<Void>() {
+						public void completed(Void result) {
+							inFlight.release();
+						}
+
+						public void failed(Exception e) {
+							failure.compareAndSet(null, e);
+							inFlight.release();
+						}
+					});
+		}
+		// Waits for the blocks in flight
+		inFlight.acquire(workers);
+
+		Exception e = failure.get();
+		if (e instanceof StorageException) {
+			throw (StorageException) e;
+		}
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		}
+		if (e != null) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Claims blocks one after the other until none is left, reading each of
+	 * them at its position in the file and staging it.
+	 */
+	private void stageBlocks(FileChannel channel, long length, int blockCount)
+			throws StorageException, IOException, InterruptedException {
+		try {
+			stageClaimedBlocks(channel, length, blockCount);
+		} catch (StorageException e) {
+			abort();
+			throw e;
+		} catch (IOException e) {
+			abort();
+			throw e;
+		} catch (InterruptedException e) {
+			abort();
+			throw e;
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		}
+	}
+
+	private void stageClaimedBlocks(FileChannel channel, long length,
+			int blockCount) throws StorageException, IOException,
+			InterruptedException {
+		int index;
+		while ((index = nextBlock.getAndIncrement()) < blockCount) {
+			long position = (long) index * BlockBlobOutputStream.BLOCK_SIZE;
+			int blockLength = (int) Math.min(BlockBlobOutputStream.BLOCK_SIZE,
+					length - position);
+
+			byte[] data = readBlock(channel, position, blockLength);
+
+			digest(index, data);
+			blob.uploadBlock(getBlockId(index), new ByteArrayInputStream(data),
+					blockLength, null, options, null);
+		}
+	}
+
+	private static byte[] readBlock(FileChannel channel, long position,
+			int blockLength) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(blockLength);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new EOFException("File shrank during upload");
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Adds a block to the MD5 once all the blocks before it have been added.
+	 * Blocks are claimed in order, so the wait is short.
+	 */
+	private void digest(int index, byte[] data) throws IOException,
+			InterruptedException {
+		synchronized (digestLock) {
+			while (digestedBlocks != index) {
+				if (failed) {
+					throw new IOException("Upload of blob " + blob.getName()
+							+ " aborted");
+				}
+				digestLock.wait();
+			}
+			md5.update(data);
+			digestedBlocks++;
+			digestLock.notifyAll();
+		}
+	}
+
+	private void abort() {
+		synchronized (digestLock) {
+			failed = true;
+			digestLock.notifyAll();
+		}
+	}
+
+	private String getBlockId(int index) {
+		return Base64.encode(String.format("%s-%08d", blockIdPrefix, index)
+				.getBytes(UTF8));
+	}
+}
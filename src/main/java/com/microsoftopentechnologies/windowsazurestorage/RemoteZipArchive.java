@@ -0,0 +1,532 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Zip archive stored in a blob, read with range requests. The central
+ * directory is read from the end of the blob, then only the entries asked
+ * for are fetched. Entries close to each other in the archive are fetched
+ * with the same requests, the gap between them being read and skipped.
+ *
+ * All requests are made on the ETag the blob had when its directory was
+ * read, an archive replaced in between fails the extraction.
+ */
+public class RemoteZipArchive {
+
+	/* Entries separated by less are fetched as a single range */
+	static final long MAX_GAP = 256 * 1024;
+
+	/* Size of each request of a range */
+	private static final int READ_SIZE = 4 * 1024 * 1024;
+
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int ZIP64_END_SIG = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	private static final int END_SIG = 0x06054b50;
+
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	private static final int END_LENGTH = 22;
+	private static final int ZIP64_LOCATOR_LENGTH = 20;
+	private static final int ZIP64_END_LENGTH = 56;
+	private static final int LOCAL_HEADER_LENGTH = 30;
+	private static final int CENTRAL_HEADER_LENGTH = 46;
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final CloudBlob blob;
+
+	private final BlobRequestOptions options;
+
+	private AccessCondition condition;
+
+	private long length;
+
+	/**
+	 * @param blob
+	 *            blob holding the archive
+	 * @param options
+	 */
+	public RemoteZipArchive(CloudBlob blob, BlobRequestOptions options) {
+		this.blob = blob;
+		this.options = options;
+	}
+
+	/**
+	 * @return length of the archive, once its entries have been read
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	void setLength(long length) {
+		this.length = length;
+	}
+
+	/**
+	 * Reads the central directory of the archive.
+	 *
+	 * @return the entries of the archive, in archive order
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	public List<Entry> getEntries() throws StorageException, IOException {
+		blob.downloadAttributes(null, options, null);
+		length = blob.getProperties().getLength();
+		condition = AccessCondition.generateIfMatchCondition(blob
+				.getProperties().getEtag());
+		return readEntries();
+	}
+
+	/**
+	 * Reads the central directory once the length of the archive is known.
+	 *
+	 * @return the entries of the archive, in archive order
+	 * @throws IOException
+	 */
+	List<Entry> readEntries() throws IOException {
+		// The end record is followed by the archive comment at most
+		long tailOffset = Math.max(0, length - END_LENGTH - MAX_COMMENT_LENGTH
+				- ZIP64_LOCATOR_LENGTH);
+		byte[] tail = read(tailOffset, (int) (length - tailOffset));
+
+		int end = findEnd(tail);
+		if (end == -1) {
+			throw new IOException("Blob " + blob.getName()
+					+ " is not a zip archive");
+		}
+		long count = getShort(tail, end + 10);
+		long directoryLength = getInt(tail, end + 12);
+		long directoryOffset = getInt(tail, end + 16);
+		if (count == ZIP64_MAGIC_COUNT || directoryLength == ZIP64_MAGIC
+				|| directoryOffset == ZIP64_MAGIC) {
+			int locator = end - ZIP64_LOCATOR_LENGTH;
+			if (locator < 0 || getInt(tail, locator) != ZIP64_LOCATOR_SIG) {
+				throw new IOException("Zip64 end locator of blob "
+						+ blob.getName() + " not found");
+			}
+			byte[] zip64End = read(getLong(tail, locator + 8), ZIP64_END_LENGTH);
+			if (getInt(zip64End, 0) != ZIP64_END_SIG) {
+				throw new IOException("Zip64 end record of blob "
+						+ blob.getName() + " not found");
+			}
+			count = getLong(zip64End, 32);
+			directoryLength = getLong(zip64End, 40);
+			directoryOffset = getLong(zip64End, 48);
+		}
+		if (directoryLength > Integer.MAX_VALUE) {
+			throw new IOException("Central directory of blob " + blob.getName()
+					+ " is too large");
+		}
+
+		byte[] directory;
+		if (directoryOffset >= tailOffset
+				&& directoryOffset + directoryLength <= length) {
+			directory = Arrays.copyOfRange(tail,
+					(int) (directoryOffset - tailOffset),
+					(int) (directoryOffset - tailOffset + directoryLength));
+		} else {
+			directory = read(directoryOffset, (int) directoryLength);
+		}
+		List<Entry> entries = parseDirectory(directory, count);
+
+		// An entry spans up to the next one, its data descriptor included
+		List<Entry> byOffset = new ArrayList<Entry>(entries);
+		Collections.sort(byOffset, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.offset < b.offset ? -1 : (a.offset > b.offset ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < byOffset.size(); i++) {
+			byOffset.get(i).end = i + 1 < byOffset.size() ? byOffset.get(i + 1).offset
+					: directoryOffset;
+		}
+		return entries;
+	}
+
+	/**
+	 * Groups entries to fetch with a single range, when the gap between them
+	 * is small.
+	 *
+	 * @param entries
+	 * @return the groups, each in archive order
+	 */
+	public static List<List<Entry>> coalesce(List<Entry> entries) {
+		List<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.offset < b.offset ? -1 : (a.offset > b.offset ? 1 : 0);
+			}
+		});
+		List<List<Entry>> groups = new ArrayList<List<Entry>>();
+		List<Entry> group = null;
+		for (Entry entry : sorted) {
+			if (group == null
+					|| entry.offset - group.get(group.size() - 1).end > MAX_GAP) {
+				group = new ArrayList<Entry>();
+				groups.add(group);
+			}
+			group.add(entry);
+		}
+		return groups;
+	}
+
+	/**
+	 * @param group
+	 *            entries in archive order, as returned by coalesce
+	 * @return number of bytes fetched to extract the group
+	 */
+	public static long getRangeLength(List<Entry> group) {
+		return group.get(group.size() - 1).end - group.get(0).offset;
+	}
+
+	/**
+	 * Fetches a group of entries with a single range and hands the content
+	 * of each of them to the handler, checking its CRC once read.
+	 *
+	 * @param group
+	 *            entries in archive order, as returned by coalesce
+	 * @param handler
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void extract(List<Entry> group, EntryHandler handler)
+			throws IOException, InterruptedException {
+		long start = group.get(0).offset;
+		RangeInputStream in = new RangeInputStream(start,
+				group.get(group.size() - 1).end);
+		for (Entry entry : group) {
+			skipFully(in, entry.offset - in.position);
+
+			byte[] header = new byte[LOCAL_HEADER_LENGTH];
+			readFully(in, header);
+			if (getInt(header, 0) != LOCAL_HEADER_SIG) {
+				throw new IOException("Bad local header for " + entry.name
+						+ " in blob " + blob.getName());
+			}
+			// The local extra field may differ from the central one
+			skipFully(in, getShort(header, 26) + getShort(header, 28));
+
+			InputStream data = new BoundedInputStream(in, entry.compressedSize);
+			Inflater inflater = null;
+			if (entry.method == ZipEntry.DEFLATED) {
+				// Raw inflate wants an extra byte past the end
+				inflater = new Inflater(true);
+				data = new InflaterInputStream(new SequenceInputStream(data,
+						new ByteArrayInputStream(new byte[1])), inflater);
+			} else if (entry.method != ZipEntry.STORED) {
+				throw new IOException("Compression method " + entry.method
+						+ " of " + entry.name + " is not supported");
+			}
+			CheckedInputStream checked = new CheckedInputStream(data, new CRC32());
+			try {
+				InputStream content = new BoundedInputStream(checked, entry.size);
+				handler.entry(entry, content);
+				// Whatever the handler left
+				skipFully(content, Long.MAX_VALUE);
+			} finally {
+				if (inflater != null) {
+					inflater.end();
+				}
+			}
+			if (checked.getChecksum().getValue() != entry.crc) {
+				throw new IOException("CRC mismatch for " + entry.name
+						+ " in blob " + blob.getName());
+			}
+		}
+	}
+
+	private static int findEnd(byte[] tail) {
+		for (int pos = tail.length - END_LENGTH; pos >= 0; pos--) {
+			if (getInt(tail, pos) == END_SIG
+					&& pos + END_LENGTH + getShort(tail, pos + 20) == tail.length) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	private List<Entry> parseDirectory(byte[] directory, long count)
+			throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		int pos = 0;
+		for (long i = 0; i < count; i++) {
+			if (pos + CENTRAL_HEADER_LENGTH > directory.length
+					|| getInt(directory, pos) != CENTRAL_HEADER_SIG) {
+				throw new IOException("Bad central directory in blob "
+						+ blob.getName());
+			}
+			int method = getShort(directory, pos + 10);
+			long crc = getInt(directory, pos + 16);
+			long compressedSize = getInt(directory, pos + 20);
+			long size = getInt(directory, pos + 24);
+			int nameLength = getShort(directory, pos + 28);
+			int extraLength = getShort(directory, pos + 30);
+			int commentLength = getShort(directory, pos + 32);
+			long offset = getInt(directory, pos + 42);
+			String name = new String(directory, pos + CENTRAL_HEADER_LENGTH,
+					nameLength, UTF8);
+
+			// Zip64 values come in this order, only those that did not fit
+			int extra = pos + CENTRAL_HEADER_LENGTH + nameLength;
+			int extraEnd = extra + extraLength;
+			while (extra + 4 <= extraEnd) {
+				int id = getShort(directory, extra);
+				int fieldLength = getShort(directory, extra + 2);
+				if (id == ZIP64_EXTRA_ID) {
+					int field = extra + 4;
+					if (size == ZIP64_MAGIC) {
+						size = getLong(directory, field);
+						field += 8;
+					}
+					if (compressedSize == ZIP64_MAGIC) {
+						compressedSize = getLong(directory, field);
+						field += 8;
+					}
+					if (offset == ZIP64_MAGIC) {
+						offset = getLong(directory, field);
+					}
+				}
+				extra += 4 + fieldLength;
+			}
+
+			entries.add(new Entry(name, method, crc, compressedSize, size,
+					offset));
+			pos = extraEnd + commentLength;
+		}
+		return entries;
+	}
+
+	byte[] read(long offset, int count) throws IOException {
+		byte[] data = new byte[count];
+		int pos = 0;
+		while (pos < count) {
+			try {
+				int n = blob.downloadRangeToByteArray(offset + pos,
+						(long) (count - pos), data, pos, condition, options, null);
+				if (n <= 0) {
+					throw new EOFException("Unexpected end of blob "
+							+ blob.getName());
+				}
+				pos += n;
+			} catch (StorageException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		return data;
+	}
+
+	private static void readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int n = in.read(buffer, total, buffer.length - total);
+			if (n == -1) {
+				throw new EOFException();
+			}
+			total += n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long count)
+			throws IOException {
+		byte[] buffer = null;
+		while (count > 0) {
+			long n = in.skip(count);
+			if (n <= 0) {
+				// Some streams only skip by reading
+				if (buffer == null) {
+					buffer = new byte[8192];
+				}
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+				if (read == -1) {
+					return;
+				}
+				n = read;
+			}
+			count -= n;
+		}
+	}
+
+	private static int getShort(byte[] b, int pos) {
+		return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8);
+	}
+
+	private static long getInt(byte[] b, int pos) {
+		return getShort(b, pos) | ((long) getShort(b, pos + 2) << 16);
+	}
+
+	private static long getLong(byte[] b, int pos) {
+		return getInt(b, pos) | (getInt(b, pos + 4) << 32);
+	}
+
+	/**
+	 * Receives the content of the entries.
+	 */
+	public interface EntryHandler {
+		/**
+		 * @param entry
+		 * @param content
+		 *            uncompressed content of the entry, not to close
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		void entry(Entry entry, InputStream content) throws IOException,
+				InterruptedException;
+	}
+
+	/**
+	 * File stored in the archive.
+	 */
+	public static final class Entry {
+
+		private final String name;
+
+		private final int method;
+
+		private final long crc;
+
+		private final long compressedSize;
+
+		private final long size;
+
+		/* Offset of the local header */
+		private final long offset;
+
+		/* Offset of the next entry or of the central directory */
+		private long end;
+
+		Entry(String name, int method, long crc, long compressedSize,
+				long size, long offset) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.offset = offset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+	}
+
+	/**
+	 * Reads a range of the blob with requests of a bounded size, so that
+	 * the range is never buffered whole.
+	 */
+	private final class RangeInputStream extends InputStream {
+
+		private final long end;
+
+		private long position;
+
+		private byte[] buffer = new byte[0];
+
+		private int bufferPos;
+
+		/* Offset of the first byte of the buffer */
+		private long bufferOffset;
+
+		RangeInputStream(long start, long end) {
+			this.position = start;
+			this.bufferOffset = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (bufferPos == buffer.length) {
+				if (position >= end) {
+					return -1;
+				}
+				buffer = RemoteZipArchive.this.read(position,
+						(int) Math.min(READ_SIZE, end - position));
+				bufferOffset = position;
+				bufferPos = 0;
+			}
+			int n = Math.min(len, buffer.length - bufferPos);
+			System.arraycopy(buffer, bufferPos, b, off, n);
+			bufferPos += n;
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.min(n, end - position);
+			if (skipped <= 0) {
+				return 0;
+			}
+			position += skipped;
+			if (position < bufferOffset + buffer.length) {
+				bufferPos = (int) (position - bufferOffset);
+			} else {
+				// Past the buffer, the next read starts a new request
+				buffer = new byte[0];
+				bufferPos = 0;
+			}
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shared access signatures handed out for download links, reused until they
+ * get too close to their expiry. A signature is only handed out during the
+ * first part of its validity, so a link followed right after the redirect
+ * always has time to start. The least recently used signatures are dropped
+ * once the cache is full.
+ */
+final class SignatureCache {
+
+	private final int maxEntries;
+
+	/* Signatures with the time they must be renewed at, least recently used first */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * @param maxEntries
+	 *            number of signatures kept
+	 */
+	SignatureCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > SignatureCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 *            identifies the resource and the access granted
+	 * @return a signature that can still be handed out, or null
+	 */
+	synchronized String get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.renewAt <= System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.signature;
+	}
+
+	/**
+	 * @param key
+	 * @param signature
+	 * @param reuseMillis
+	 *            time the signature can be handed out for
+	 */
+	synchronized void put(String key, String signature, long reuseMillis) {
+		entries.put(key, new Entry(signature, System.currentTimeMillis()
+				+ reuseMillis));
+	}
+
+	/**
+	 * Drops all the signatures, after a change of the storage accounts.
+	 */
+	synchronized void clear() {
+		entries.clear();
+	}
+
+	private static final class Entry {
+
+		private final String signature;
+
+		private final long renewAt;
+
+		Entry(String signature, long renewAt) {
+			this.signature = signature;
+			this.renewAt = renewAt;
+		}
+	}
+}
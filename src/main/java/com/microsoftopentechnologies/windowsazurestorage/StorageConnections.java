@@ -0,0 +1,358 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferPool;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Connections of the node to the storage. The SDK goes through
+ * {@link HttpsURLConnection}, whose keep-alive cache keeps
+ * {@code http.maxConnections} idle connections per host, five by default,
+ * so that concurrent transfers beyond that keep opening new connections and
+ * redoing TLS handshakes; nodes with larger transfers raise it with
+ * {@code -Dhttp.maxConnections}. Before a transfer to a host that had no
+ * request lately, as many connections as the cache keeps are opened up
+ * front, so that the workers find them in the cache.
+ *
+ * Storage requests also go through a shared socket factory that applies
+ * the socket buffer size set with the system property
+ * {@code com.microsoftopentechnologies.windowsazurestorage.StorageConnections.socketBufferSize},
+ * none by default to keep the automatic tuning of the operating system.
+ * Requests and TLS handshakes are counted by host; connections of plain
+ * http requests are not seen.
+ */
+final class StorageConnections {
+
+	private static final Logger LOGGER = Logger.getLogger(StorageConnections.class.getName());
+
+	private static final int SOCKET_BUFFER_SIZE = Integer.getInteger(
+			StorageConnections.class.getName() + ".socketBufferSize", 0);
+
+	/* Idle connections kept by the JVM per host */
+	private static final int MAX_IDLE_CONNECTIONS = Integer.getInteger(
+			"http.maxConnections", 5);
+
+	/* Connections opened up front at most */
+	private static final int MAX_PREWARMED = 16;
+
+	/*
+	 * Time the JVM keeps an idle connection when the server does not say,
+	 * connections of a host used since are still cached
+	 */
+	private static final long KEEP_ALIVE_MILLIS = 5000;
+
+	private static final ConcurrentMap<String, Host> HOSTS = new ConcurrentHashMap<String, Host>();
+
+	private static boolean installed;
+
+	private StorageConnections() {
+	}
+
+	/**
+	 * Prepares the connections of this node for a transfer.
+	 *
+	 * @param container
+	 *            container of the transfer
+	 * @param concurrency
+	 *            number of requests of the transfer running at the same time
+	 * @return counts of the host of the container before the transfer
+	 */
+	static Counts prepare(CloudBlobContainer container, int concurrency) {
+		install();
+		String host = container.getUri().getHost();
+		if (System.currentTimeMillis() - getCounters(host).lastRequest > KEEP_ALIVE_MILLIS) {
+			prewarm(container, Math.min(concurrency,
+					Math.min(MAX_IDLE_CONNECTIONS, MAX_PREWARMED)));
+		}
+		return Counts.current(host);
+	}
+
+	private static synchronized void install() {
+		if (installed) {
+			return;
+		}
+		final SSLSocketFactory factory = new TunedSocketFactory(
+				HttpsURLConnection.getDefaultSSLSocketFactory());
+		// Fired once the connection object is set up, before it connects
+		OperationContext.getGlobalSendingRequestEventHandler().addListener(
+				new StorageEvent<SendingRequestEvent>() {
+					@Override
+					public void eventOccurred(SendingRequestEvent event) {
+						Object connection = event.getConnectionObject();
+						if (connection instanceof HttpURLConnection) {
+							requestSent(((HttpURLConnection) connection).getURL());
+						}
+						if (connection instanceof HttpsURLConnection) {
+							// A single factory, the keep-alive cache is
+							// keyed by it
+							((HttpsURLConnection) connection).setSSLSocketFactory(factory);
+						}
+					}
+				});
+		installed = true;
+	}
+
+	static void requestSent(URL url) {
+		Host host = getCounters(url.getHost());
+		host.requests.incrementAndGet();
+		if ("https".equalsIgnoreCase(url.getProtocol())) {
+			host.secureRequests.incrementAndGet();
+		}
+		host.lastRequest = System.currentTimeMillis();
+	}
+
+	static void handshakeCompleted(String host) {
+		if (host != null) {
+			getCounters(host).handshakes.incrementAndGet();
+		}
+	}
+
+	private static Host getCounters(String name) {
+		String key = name.toLowerCase(Locale.ENGLISH);
+		Host host = HOSTS.get(key);
+		if (host == null) {
+			Host added = new Host();
+			host = HOSTS.putIfAbsent(key, added);
+			if (host == null) {
+				host = added;
+			}
+		}
+		return host;
+	}
+
+	/**
+	 * Opens connections with concurrent requests, which leave them in the
+	 * keep-alive cache. The outcome of the requests does not matter.
+	 */
+	private static void prewarm(final CloudBlobContainer container,
+			int connections) {
+		if (connections < 2) {
+			return;
+		}
+		final BlobRequestOptions options = new BlobRequestOptions();
+		TransferPool<Void> pool = new TransferPool<Void>(
+				"Azure connection warm-up", connections, connections);
+		try {
+			for (int i = 0; i < connections; i++) {
+				pool.submit(0, new Callable<Void>() {
+					public Void call() throws Exception {
+						try {
+							container.exists(null, options, null);
+						} catch (StorageException e) {
+							// Refused by the signature of the node, still
+							// connected
+						}
+						return null;
+					}
+				});
+			}
+			pool.awaitResults();
+		} catch (WAStorageException e) {
+			LOGGER.log(Level.FINE, "Connection warm-up failed", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.cancel();
+		}
+	}
+
+	/**
+	 * Counters of a storage host.
+	 */
+	private static final class Host {
+
+		private final AtomicLong requests = new AtomicLong();
+
+		private final AtomicLong secureRequests = new AtomicLong();
+
+		private final AtomicLong handshakes = new AtomicLong();
+
+		private volatile long lastRequest;
+	}
+
+	/**
+	 * Storage requests and TLS handshakes of this node to a host, including
+	 * those of concurrent transfers to the same host.
+	 */
+	static final class Counts {
+
+		private final String host;
+
+		private final long requests;
+
+		private final long secureRequests;
+
+		private final long handshakes;
+
+		private Counts(String host, long requests, long secureRequests,
+				long handshakes) {
+			this.host = host;
+			this.requests = requests;
+			this.secureRequests = secureRequests;
+			this.handshakes = handshakes;
+		}
+
+		static Counts current(String host) {
+			Host counters = getCounters(host);
+			return new Counts(host, counters.requests.get(),
+					counters.secureRequests.get(), counters.handshakes.get());
+		}
+
+		/**
+		 * @return the counts of the same host since these ones
+		 */
+		Counts sinceThen() {
+			Counts now = current(host);
+			return new Counts(host, now.requests - requests,
+					now.secureRequests - secureRequests, now.handshakes
+							- handshakes);
+		}
+
+		String getHost() {
+			return host;
+		}
+
+		long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return requests sent over TLS, whose connections are seen
+		 */
+		long getSecureRequests() {
+			return secureRequests;
+		}
+
+		/**
+		 * @return requests sent over TLS on a connection of the keep-alive
+		 *         cache, each new connection shaking hands once
+		 */
+		long getPooled() {
+			return Math.max(0, secureRequests - handshakes);
+		}
+
+		long getHandshakes() {
+			return handshakes;
+		}
+	}
+
+	/**
+	 * Socket factory applying the buffer size and counting handshakes.
+	 */
+	private static final class TunedSocketFactory extends SSLSocketFactory {
+
+		private final SSLSocketFactory factory;
+
+		TunedSocketFactory(SSLSocketFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return factory.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return factory.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			// Not connected yet, the buffer size is used for the window scale
+			return opened(tune(factory.createSocket()));
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port,
+				boolean autoClose) throws IOException {
+			tune(s);
+			return opened(factory.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return opened(tune(factory.createSocket(host, port)));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port,
+				InetAddress localHost, int localPort) throws IOException {
+			return opened(tune(factory.createSocket(host, port, localHost,
+					localPort)));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port)
+				throws IOException {
+			return opened(tune(factory.createSocket(host, port)));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port,
+				InetAddress localAddress, int localPort) throws IOException {
+			return opened(tune(factory.createSocket(address, port,
+					localAddress, localPort)));
+		}
+
+		private static Socket tune(Socket socket) throws IOException {
+			if (SOCKET_BUFFER_SIZE > 0) {
+				socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+				socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+			}
+			return socket;
+		}
+
+		private static Socket opened(Socket socket) {
+			if (socket instanceof SSLSocket) {
+				((SSLSocket) socket).addHandshakeCompletedListener(
+						new HandshakeCompletedListener() {
+							public void handshakeCompleted(HandshakeCompletedEvent event) {
+								StorageConnections.handshakeCompleted(event
+										.getSession().getPeerHost());
+							}
+						});
+			}
+			return socket;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Manifest of the blobs written by an upload, stored as a gzipped blob next
+ * to them. Each line gives the length, MD5, ETag and content location of a
+ * blob, so that a download can find the blobs it needs without listing the
+ * container.
+ *
+ * The manifest of a file set is named
+ * {@code <virtual path>.azmanifest/<file set id>.tsv.gz}, the upload of the
+ * same file set replacing it.
+ */
+public final class UploadManifest {
+
+	public static final String DIRECTORY = ".azmanifest/";
+
+	public static final String SUFFIX = ".tsv.gz";
+
+	private static final String FIELD_SEPARATOR = "\t";
+
+	private static final String LINE_SEPARATOR = "\n";
+
+	/* Written for the fields without value */
+	private static final String NONE = "-";
+
+	private UploadManifest() {
+	}
+
+	/**
+	 * @param virtualPath
+	 *            common virtual path of the file set, or null
+	 * @param fileSetId
+	 *            identifies the file set among those sharing the path
+	 * @return name of the manifest of the file set
+	 */
+	public static String getName(String virtualPath, String fileSetId) {
+		return getPrefix(virtualPath) + fileSetId + SUFFIX;
+	}
+
+	/**
+	 * @param virtualPath
+	 *            virtual path of an upload, or null
+	 * @return prefix of the names of the manifests of the uploads to the path
+	 */
+	public static String getPrefix(String virtualPath) {
+		return (virtualPath == null ? "" : virtualPath) + DIRECTORY;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the blob is a manifest
+	 */
+	public static boolean isManifestBlob(String name) {
+		return name.startsWith(DIRECTORY) || name.contains("/" + DIRECTORY);
+	}
+
+	/**
+	 * Writes the manifest of uploaded blobs, replacing the previous one.
+	 *
+	 * @param manifestBlob
+	 * @param blobs
+	 *            uploaded blobs
+	 * @param options
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	public static void write(CloudBlockBlob manifestBlob, List<AzureBlob> blobs,
+			BlobRequestOptions options) throws StorageException, IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (AzureBlob blob : blobs) {
+			entries.add(new Entry(blob.getBlobName(), blob.getLength(),
+					blob.getContentMD5(), blob.getEtag(),
+					blob.getContentContainerName(), blob.getContentBlobName(),
+					blob.getContentOffset()));
+		}
+		byte[] data = format(entries);
+		manifestBlob.getProperties().setContentType("application/gzip");
+		manifestBlob.uploadFromByteArray(data, 0, data.length, null, options, null);
+	}
+
+	/**
+	 * @param manifestBlob
+	 * @param options
+	 * @return the entries of a manifest
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	public static List<Entry> read(CloudBlob manifestBlob,
+			BlobRequestOptions options) throws StorageException, IOException {
+		InputStream in = manifestBlob.openInputStream(null, options, null);
+		try {
+			return parse(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param entries
+	 * @return gzipped content of the manifest
+	 * @throws IOException
+	 */
+	static byte[] format(List<Entry> entries) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		Writer out = new OutputStreamWriter(new GZIPOutputStream(data), "UTF-8");
+		try {
+			for (Entry entry : entries) {
+				out.append(toField(entry.getLength())).append(FIELD_SEPARATOR)
+						.append(toField(entry.getContentMD5())).append(FIELD_SEPARATOR)
+						.append(toField(entry.getEtag())).append(FIELD_SEPARATOR)
+						.append(toField(entry.getContentContainerName())).append(FIELD_SEPARATOR)
+						.append(toField(entry.getContentBlobName())).append(FIELD_SEPARATOR)
+						.append(toField(entry.getContentOffset())).append(FIELD_SEPARATOR)
+						.append(entry.getName()).append(LINE_SEPARATOR);
+			}
+		} finally {
+			out.close();
+		}
+		return data.toByteArray();
+	}
+
+	/**
+	 * @param in
+	 *            gzipped content of the manifest, not closed
+	 * @return the entries of the manifest
+	 * @throws IOException
+	 */
+	static List<Entry> parse(InputStream in) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(in), "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split(FIELD_SEPARATOR, 7);
+			if (fields.length < 7) {
+				throw new IOException("Invalid manifest line: " + line);
+			}
+			entries.add(new Entry(fields[6], toLong(fields[0]),
+					toString(fields[1]), toString(fields[2]),
+					toString(fields[3]), toString(fields[4]), toLong(fields[5])));
+		}
+		return entries;
+	}
+
+	private static String toField(Object value) {
+		return value == null ? NONE : value.toString();
+	}
+
+	private static String toString(String field) {
+		return NONE.equals(field) ? null : field;
+	}
+
+	private static Long toLong(String field) {
+		return NONE.equals(field) ? null : Long.valueOf(field);
+	}
+
+	/**
+	 * Blob listed in a manifest.
+	 */
+	public static final class Entry implements Serializable {
+
+		private static final long serialVersionUID = -6302786152829817734L;
+
+		private final String name;
+
+		private final Long length;
+
+		private final String contentMD5;
+
+		private final String etag;
+
+		private final String contentContainerName;
+
+		private final String contentBlobName;
+
+		private final Long contentOffset;
+
+		public Entry(String name, Long length, String contentMD5, String etag,
+				String contentContainerName, String contentBlobName,
+				Long contentOffset) {
+			this.name = name;
+			this.length = length;
+			this.contentMD5 = contentMD5;
+			this.etag = etag;
+			this.contentContainerName = contentContainerName;
+			this.contentBlobName = contentBlobName;
+			this.contentOffset = contentOffset;
+		}
+
+		/**
+		 * @return name of the blob
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return length of the content, null if unknown
+		 */
+		public Long getLength() {
+			return length;
+		}
+
+		public String getContentMD5() {
+			return contentMD5;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return true if the blob only references a content stored in a
+		 *         content addressed store
+		 */
+		public boolean isContentAddressed() {
+			return contentBlobName != null && contentOffset == null;
+		}
+
+		/**
+		 * @return true if the blob is stored in a pack of small files
+		 */
+		public boolean isPacked() {
+			return contentBlobName != null && contentOffset != null;
+		}
+
+		public String getContentContainerName() {
+			return contentContainerName;
+		}
+
+		public String getContentBlobName() {
+			return contentBlobName;
+		}
+
+		public Long getContentOffset() {
+			return contentOffset;
+		}
+	}
+}
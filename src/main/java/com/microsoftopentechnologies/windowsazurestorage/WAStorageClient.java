@@ -15,29 +15,71 @@
 package com.microsoftopentechnologies.windowsazurestorage;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.SharedAccessPolicy;
 import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.StorageCredentialsSharedAccessSignature;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.*;
+import com.microsoft.azure.storage.core.Base64;
 import com.microsoftopentechnologies.windowsazurestorage.WAStoragePublisher.UploadType;
 import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
 import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import com.microsoftopentechnologies.windowsazurestorage.helper.ArchiveExtractor;
+import com.microsoftopentechnologies.windowsazurestorage.helper.ArchiveFormat;
+import com.microsoftopentechnologies.windowsazurestorage.helper.Archiver;
+import com.microsoftopentechnologies.windowsazurestorage.helper.TransferPool;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Utils;
 import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.util.DirScanner.Glob;
+import hudson.util.FileVisitor;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DurationFormatUtils;
 import org.springframework.util.AntPathMatcher;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 public class WAStorageClient {
@@ -54,6 +96,60 @@ public class WAStorageClient {
 
 	private static final String fpSeparator = ",";
 
+	/* Public access of a container, set when it is created */
+	private static final String PUBLIC_ACCESS_HEADER = "x-ms-blob-public-access";
+
+	/* Number of files uploaded concurrently */
+	private static final int UPLOAD_THREADS = Integer.getInteger(
+			WAStorageClient.class.getName() + ".uploadThreads", 8);
+
+	/* Maximum number of scanned files waiting for an upload worker */
+	private static final int UPLOAD_QUEUE_CAPACITY = 10000;
+
+	/* Deletions in flight at most through the non-blocking transport */
+	private static final int MAX_NIO_DELETES = 512;
+
+	/* Maximum number of listed blobs waiting for a download worker */
+	private static final int DOWNLOAD_QUEUE_CAPACITY = 10000;
+
+	/* Lifetime of the signatures handed to agents for direct transfers */
+	private static final int AGENT_SAS_VALIDITY_MINUTES = Integer.getInteger(
+			WAStorageClient.class.getName() + ".agentSasValidityMinutes", 180);
+
+	private static final int SAS_CLOCK_SKEW_MINUTES = 5;
+
+	/*
+	 * Lifetime of the signatures of download links, which are handed out
+	 * during the first half of it
+	 */
+	private static final int LINK_SAS_VALIDITY_MINUTES = Integer.getInteger(
+			WAStorageClient.class.getName() + ".linkSasValidityMinutes", 60);
+
+	private static final SignatureCache LINK_SIGNATURES = new SignatureCache(1000);
+
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+	/* In AUTO mode, smaller files are uploaded in packs */
+	private static final long PACK_THRESHOLD = Long.getLong(
+			WAStorageClient.class.getName() + ".packThreshold", 1024 * 1024);
+
+	/* Size of the packs of small files */
+	private static final long PACK_SIZE = Long.getLong(
+			WAStorageClient.class.getName() + ".packSize", 64 * 1024 * 1024);
+
+	/* Smaller files are uploaded whole even when deduplicating blocks */
+	private static final long DEDUPLICATION_THRESHOLD = 16 * 1024 * 1024;
+
+	/*
+	 * Larger files are read and staged, or downloaded by ranges, in parallel
+	 * on the node holding them. The request options do not split requests,
+	 * so this is the size up to which the client library sends a blob with
+	 * a single request, anything larger would be staged one block at a time.
+	 */
+	private static final long LARGE_FILE_THRESHOLD = Long.getLong(
+			WAStorageClient.class.getName() + ".largeFileThreshold",
+			32 * 1024 * 1024);
+
 	/**
 	 * This method validates Storage Account credentials by checking for a dummy
 	 * conatiner existence.
@@ -67,11 +163,30 @@ public class WAStorageClient {
 	public static boolean validateStorageAccount(
 			final String storageAccountName, final String storageAccountKey,
 			final String blobEndPointURL) throws WAStorageException {
+		return validateStorageAccount(storageAccountName, storageAccountKey,
+				blobEndPointURL, false);
+	}
+
+	/**
+	 * Validates Storage Account credentials by checking for a dummy container
+	 * existence.
+	 * 
+	 * @param storageAccountName
+	 * @param storageAccountKey
+	 * @param blobEndPointURL
+	 * @param allowRetry
+	 *            if true, transient failures are retried
+	 * @return true if valid
+	 * @throws WAStorageException
+	 */
+	static boolean validateStorageAccount(final String storageAccountName,
+			final String storageAccountKey, final String blobEndPointURL,
+			boolean allowRetry) throws WAStorageException {
 		try {
 			// Get container reference
 			CloudBlobContainer container = getBlobContainerReference(
 					storageAccountName, storageAccountKey, blobEndPointURL,
-					TEST_CNT_NAME, false, false, null);
+					TEST_CNT_NAME, false, allowRetry, null);
 			container.exists();
 
 		} catch (Exception e) {
@@ -81,6 +196,29 @@ public class WAStorageClient {
 		return true;
 	}
 
+	/**
+	 * @param accName
+	 *            storage account name
+	 * @param key
+	 *            storage account primary access key
+	 * @param blobURL
+	 *            blob service endpoint url
+	 * @return the storage account, with its custom endpoints if any
+	 * @throws URISyntaxException
+	 */
+	static CloudStorageAccount getCloudStorageAccount(String accName,
+			String key, String blobURL) throws URISyntaxException {
+		StorageCredentialsAccountAndKey credentials = new StorageCredentialsAccountAndKey(
+				accName, key);
+
+		if (Utils.isNullOrEmpty(blobURL) || blobURL.equals(Utils.DEF_BLOB_URL)) {
+			return new CloudStorageAccount(credentials);
+		}
+		return new CloudStorageAccount(credentials, new URI(blobURL), new URI(
+				getCustomURI(accName, QUEUE, blobURL)), new URI(getCustomURI(
+				accName, TABLE, blobURL)));
+	}
+
 	/**
 	 * Returns reference of Windows Azure cloud blob container.
 	 * 
@@ -107,48 +245,38 @@ public class WAStorageClient {
 			boolean createCnt, boolean allowRetry, Boolean cntPubAccess)
 			throws URISyntaxException, StorageException {
 
-		CloudStorageAccount cloudStorageAccount;
 		CloudBlobClient serviceClient;
 		CloudBlobContainer container;
-		StorageCredentialsAccountAndKey credentials;
-
-		credentials = new StorageCredentialsAccountAndKey(accName, key);
-
-		if (Utils.isNullOrEmpty(blobURL) || blobURL.equals(Utils.DEF_BLOB_URL)) {
-			cloudStorageAccount = new CloudStorageAccount(credentials);
-		} else {
-			cloudStorageAccount = new CloudStorageAccount(credentials, new URI(
-					blobURL), new URI(getCustomURI(accName, QUEUE, blobURL)),
-					new URI(getCustomURI(accName, TABLE, blobURL)));
-		}
 
-		serviceClient = cloudStorageAccount.createCloudBlobClient();
-		if (!allowRetry) {
-			// Setting no retry policy
-			RetryNoRetry rnr = new RetryNoRetry();
-			serviceClient.getDefaultRequestOptions().setRetryPolicyFactory(rnr);
-		}
+		serviceClient = BlobClientCache.getClient(accName, key, blobURL,
+				allowRetry);
 
 		container = serviceClient.getContainerReference(containerName);
 
-		boolean cntExists = container.exists();
-
-		if (createCnt && !cntExists) {
-			container.createIfNotExists();
+		// Existing containers are the common case, they are only created
+		// when the cache does not know them yet. Creating is optimistic, a
+		// single request that fails if the container already exists; a new
+		// container gets its public access with the same request.
+		if (!createCnt || BlobClientCache.isKnownContainer(container)) {
+			return container;
 		}
-
-		// Apply permissions only if container is created newly
-		if (!cntExists && cntPubAccess != null) {
-			// Set access permissions on container.
-			BlobContainerPermissions cntPerm;
-			cntPerm = new BlobContainerPermissions();
-			if (cntPubAccess) {
-				cntPerm.setPublicAccess(BlobContainerPublicAccessType.CONTAINER);
-			} else {
-				cntPerm.setPublicAccess(BlobContainerPublicAccessType.OFF);
+		OperationContext context = new OperationContext();
+		if (cntPubAccess != null && cntPubAccess) {
+			HashMap<String, String> headers = new HashMap<String, String>();
+			headers.put(PUBLIC_ACCESS_HEADER, "container");
+			context.setUserHeaders(headers);
+		}
+		try {
+			container.create(null, context);
+		} catch (StorageException e) {
+			// Permissions are only applied to new containers
+			if (e.getHttpStatusCode() != HttpURLConnection.HTTP_CONFLICT
+					|| !StorageErrorCodeStrings.CONTAINER_ALREADY_EXISTS
+							.equals(e.getErrorCode())) {
+				throw e;
 			}
-			container.uploadPermissions(cntPerm);
 		}
+		BlobClientCache.addContainer(container);
 
 		return container;
 	}
@@ -168,6 +296,62 @@ public class WAStorageClient {
 		}
 	}
 
+	/**
+	 * Generates a shared access signature for a container. The signature is
+	 * computed locally from the account key.
+	 * 
+	 * @param container
+	 *            container reference created with the account key
+	 * @param permissions
+	 * @param validityMinutes
+	 * @return SAS token
+	 * @throws InvalidKeyException
+	 * @throws StorageException
+	 */
+	private static String generateContainerSAS(CloudBlobContainer container,
+			EnumSet<SharedAccessBlobPermissions> permissions,
+			int validityMinutes) throws InvalidKeyException, StorageException {
+		return container.generateSharedAccessSignature(createPolicy(
+				permissions, validityMinutes), null);
+	}
+
+	/**
+	 * @param blob
+	 *            blob reference created with the account key
+	 * @param permissions
+	 * @param validityMinutes
+	 * @return SAS token
+	 * @throws InvalidKeyException
+	 * @throws StorageException
+	 */
+	private static String generateBlobSAS(CloudBlob blob,
+			EnumSet<SharedAccessBlobPermissions> permissions,
+			int validityMinutes) throws InvalidKeyException, StorageException {
+		return blob.generateSharedAccessSignature(createPolicy(permissions,
+				validityMinutes), null);
+	}
+
+	private static SharedAccessBlobPolicy createPolicy(
+			EnumSet<SharedAccessBlobPermissions> permissions,
+			int validityMinutes) {
+		SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+		setValidity(policy, validityMinutes);
+		policy.setPermissions(permissions);
+		return policy;
+	}
+
+	private static void setValidity(SharedAccessPolicy policy,
+			int validityMinutes) {
+		GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		calendar.setTime(new Date());
+
+		// Allow for clock skew between the controller and Azure
+		calendar.add(Calendar.MINUTE, -SAS_CLOCK_SKEW_MINUTES);
+		policy.setSharedAccessStartTime(calendar.getTime());
+		calendar.add(Calendar.MINUTE, SAS_CLOCK_SKEW_MINUTES + validityMinutes);
+		policy.setSharedAccessExpiryTime(calendar.getTime());
+	}
+
 	/*
 	 * public static List<String> getContainersList( StorageAccountInfo
 	 * storageAccount, boolean allowRetry) throws URISyntaxException,
@@ -252,10 +436,117 @@ public class WAStorageClient {
 	private static void upload(BuildListener listener, CloudBlockBlob blob, FilePath src) 
 			throws StorageException, IOException, InterruptedException {
 		long startTime = System.currentTimeMillis();
+		long length = src.length();
+		if (length >= LARGE_FILE_THRESHOLD) {
+			uploadLargeFile(blob, src);
+		} else {
+			InputStream inputStream = src.read();
+			try {
+				blob.upload(inputStream, length, null,
+						getBlobRequestOptions(), null);
+			} finally {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+
+				}
+			}
+		}
+		long endTime = System.currentTimeMillis();
+		listener.getLogger().println("Uploaded blob with uri "+ blob.getUri() + " in " + getTime(endTime - startTime));
+	}
+
+	/**
+	 * Uploads a large file with several workers reading and staging its
+	 * blocks. The transfer runs on the node that holds the file, a remote
+	 * node gets a signature that only allows writing the blob.
+	 * 
+	 * @param blob
+	 *            destination blob, with its properties already set
+	 * @param src
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void uploadLargeFile(CloudBlockBlob blob, FilePath src)
+			throws StorageException, IOException, InterruptedException {
+		if (!src.isRemote()) {
+			new ParallelFileUploader(blob, getBlobRequestOptions(),
+					UPLOAD_THREADS).upload(new File(src.getRemote()));
+			return;
+		}
+
+		String sas;
+		try {
+			sas = generateBlobSAS(blob,
+					EnumSet.of(SharedAccessBlobPermissions.WRITE),
+					AGENT_SAS_VALIDITY_MINUTES);
+		} catch (InvalidKeyException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		src.act(new UploadLargeFileCallable(blob.getUri(), sas, blob
+				.getProperties().getContentType(), blob.getProperties()
+				.getCacheControl()));
+	}
+
+	/**
+	 * Uploads a large file from the node that holds it.
+	 */
+	private static final class UploadLargeFileCallable extends
+			MasterToSlaveFileCallable<Void> {
+
+		private static final long serialVersionUID = 7120443856321958021L;
+
+		private final URI blobURI;
+		private final String sas;
+		private final String contentType;
+		private final String cacheControl;
+
+		UploadLargeFileCallable(URI blobURI, String sas, String contentType,
+				String cacheControl) {
+			this.blobURI = blobURI;
+			this.sas = sas;
+			this.contentType = contentType;
+			this.cacheControl = cacheControl;
+		}
+
+		public Void invoke(File file, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			try {
+				CloudBlockBlob blob = new CloudBlockBlob(blobURI,
+						new StorageCredentialsSharedAccessSignature(sas));
+				blob.getProperties().setContentType(contentType);
+				blob.getProperties().setCacheControl(cacheControl);
+				new ParallelFileUploader(blob, getBlobRequestOptions(),
+						UPLOAD_THREADS).upload(file);
+				return null;
+			} catch (StorageException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Uploads a file in content defined blocks, reusing the blocks already
+	 * committed in the previous version of the blob.
+	 * 
+	 * @param listener
+	 * @param blob
+	 * @param src
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void uploadDeduplicated(BuildListener listener,
+			CloudBlockBlob blob, FilePath src) throws StorageException,
+			IOException, InterruptedException {
+		long startTime = System.currentTimeMillis();
+		BlobRequestOptions options = getBlobRequestOptions();
+		DeduplicatingBlockUploader uploader = new DeduplicatingBlockUploader(
+				blob, options, UPLOAD_THREADS);
 		InputStream inputStream = src.read();
 		try {
-			blob.upload(inputStream, src.length(), null,
-					getBlobRequestOptions(), null);
+			uploader.upload(inputStream);
 		} finally {
 			try {
 				inputStream.close();
@@ -264,9 +555,102 @@ public class WAStorageClient {
 			}
 		}
 		long endTime = System.currentTimeMillis();
+		listener.getLogger().println("Uploaded blob with uri "+ blob.getUri()
+				+ " in " + getTime(endTime - startTime) + ", "
+				+ uploader.getStagedBlocks() + " new blocks ("
+				+ uploader.getStagedBytes() + " bytes), "
+				+ uploader.getReusedBlocks() + " reused blocks");
+	}
+
+	/**
+	 * Archives the matching workspace files straight into the blocks of a
+	 * block blob. Blocks are staged while the archive is still being produced and
+	 * the block list is committed once it is complete, so no temporary
+	 * archive is written to disk. The archive is compressed on all the cores
+	 * of the node that holds the workspace.
+	 * 
+	 * @param listener
+	 * @param blob
+	 * @param workspacePath
+	 * @param includes
+	 *            files to archive
+	 * @param excludes
+	 * @param compressionLevel
+	 *            0 stores the files without compression
+	 * @param archiveFormat
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void uploadArchive(BuildListener listener,
+			CloudBlockBlob blob, FilePath workspacePath, String includes,
+			String excludes, int compressionLevel, ArchiveFormat archiveFormat)
+			throws StorageException, IOException,
+			InterruptedException {
+		long startTime = System.currentTimeMillis();
+		BlobRequestOptions options = getBlobRequestOptions();
+		BlockBlobOutputStream blobStream = new BlockBlobOutputStream(blob,
+				options, UPLOAD_THREADS);
+		try {
+			// The archiver closes its stream, the blob is only committed
+			// below once the whole archive has been received.
+			OutputStream out = new CloseShieldOutputStream(blobStream);
+			if (workspacePath.isRemote()) {
+				out = new RemoteOutputStream(out);
+			}
+			workspacePath.act(new ArchiveCallable(includes, excludes,
+					compressionLevel, archiveFormat, out));
+			syncIO(workspacePath);
+			blobStream.commit();
+		} finally {
+			blobStream.close();
+		}
+		long endTime = System.currentTimeMillis();
 		listener.getLogger().println("Uploaded blob with uri "+ blob.getUri() + " in " + getTime(endTime - startTime));
 	}
 
+	/**
+	 * Waits until the data written by a remote workspace to a local stream
+	 * has been fully delivered.
+	 * 
+	 * @param workspacePath
+	 * @throws InterruptedException
+	 */
+	private static void syncIO(FilePath workspacePath)
+			throws InterruptedException {
+		VirtualChannel channel = workspacePath.getChannel();
+		if (channel instanceof Channel) {
+			((Channel) channel).syncLocalIO();
+		}
+	}
+
+	/**
+	 * Returns the blob name of a workspace file, prefixed with the common
+	 * virtual path and the virtual path embedded in the file pattern.
+	 * 
+	 * @param expVP
+	 * @param embeddedVP
+	 * @param relativePath
+	 *            path of the file relative to the workspace
+	 * @return blob name
+	 */
+	private static String getBlobName(String expVP, String embeddedVP,
+			String relativePath) {
+		if (Utils.isNullOrEmpty(expVP) && Utils.isNullOrEmpty(embeddedVP)) {
+			return relativePath;
+		}
+
+		String prefix = expVP;
+		if (!Utils.isNullOrEmpty(embeddedVP)) {
+			if (Utils.isNullOrEmpty(expVP)) {
+				prefix = embeddedVP;
+			} else {
+				prefix = expVP + embeddedVP;
+			}
+		}
+		return prefix + relativePath;
+	}
+
 	/**
 	 * Uploads files to Windows Azure Storage.
 	 * 
@@ -288,6 +672,22 @@ public class WAStorageClient {
 	 * @param uploadType
 	 * @param contentType
 	 * @param cacheControl
+	 * @param compressionLevel
+	 *            compression level of the archive
+	 * @param archiveFormat
+	 *            format of the archive
+	 * @param incremental
+	 *            if true, files whose content is already in the container
+	 *            are not uploaded again.
+	 * @param deduplicateBlocks
+	 *            if true, large files only upload the blocks that changed
+	 *            since the previous version of their blob.
+	 * @param contentStoreName
+	 *            container of the content addressed store the file contents
+	 *            go to, or null to upload them to the container itself.
+	 * @param uploadFromAgent
+	 *            if true, the node that holds the workspace uploads the files
+	 *            directly to Azure using a shared access signature.
 	 * @return filesUploaded number of files that are uploaded.
 	 * @throws WAStorageException
 	 */
@@ -295,9 +695,16 @@ public class WAStorageClient {
 										 StorageAccountInfo strAcc, String containerName,
 										 boolean cntPubAccess, boolean cleanUpContainer, String expFP,
 										 String expVP, String excludeFP, UploadType uploadType,
-										 String contentType, String cacheControl) throws WAStorageException {
+										 String contentType, String cacheControl,
+										 int compressionLevel, ArchiveFormat archiveFormat,
+										 boolean incremental,
+										 boolean deduplicateBlocks, String contentStoreName,
+										 boolean uploadFromAgent) throws WAStorageException {
 
         List<AzureBlob> blobsUploaded = new ArrayList<>(); // track files that are uploaded
+		CloudBlobContainer container = null;
+		CloudBlobContainer storeContainer = null;
+		boolean succeeded = false;
 
 		try {
 			FilePath workspacePath = build.getWorkspace();
@@ -306,12 +713,11 @@ public class WAStorageClient {
 						Messages.AzureStorageBuilder_ws_na());
 				return blobsUploaded;
 			}
-			StringTokenizer strTokens = new StringTokenizer(expFP, fpSeparator);
 
 			listener.getLogger().println(
 					Messages.WAStoragePublisher_uploading());
 
-			CloudBlobContainer container = WAStorageClient
+			container = WAStorageClient
 					.getBlobContainerReference(strAcc.getStorageAccName(),
 							strAcc.getStorageAccountKey(),
 							strAcc.getBlobEndPointURL(), containerName,
@@ -322,15 +728,172 @@ public class WAStorageClient {
 				deleteContents(container);
 			}
 
-			final String zipFolderName = "artifactsArchive";
-			final String zipName = "archive.zip";
-			// Make sure we exclude the tempPath from archiving.
-			String excludesWithoutZip = "**/" + zipFolderName + "*/" + zipName;
-			if (excludeFP != null) {
-				excludesWithoutZip = excludeFP + "," + excludesWithoutZip;
+			if (!Utils.isNullOrEmpty(contentStoreName)) {
+				storeContainer = WAStorageClient.getBlobContainerReference(
+						strAcc.getStorageAccName(), strAcc.getStorageAccountKey(),
+						strAcc.getBlobEndPointURL(), contentStoreName, true, true,
+						false);
+				// Only references go to the container, comparing them is pointless
+				incremental = false;
+			}
+
+			if (uploadFromAgent && workspacePath.isRemote()) {
+				// Only the signature travels to the agent, the artifacts
+				// never go through the remoting channel.
+				EnumSet<SharedAccessBlobPermissions> permissions = EnumSet
+						.of(SharedAccessBlobPermissions.WRITE);
+				if (incremental) {
+					permissions.add(SharedAccessBlobPermissions.LIST);
+				}
+				if (deduplicateBlocks) {
+					permissions.add(SharedAccessBlobPermissions.READ);
+				}
+				if (uploadType == UploadType.AUTO) {
+					// Packs of the previous upload are replaced
+					permissions.add(SharedAccessBlobPermissions.LIST);
+					permissions.add(SharedAccessBlobPermissions.DELETE);
+				}
+				String sas = generateContainerSAS(container, permissions,
+						AGENT_SAS_VALIDITY_MINUTES);
+				URI storeURI = null;
+				String storeSas = null;
+				if (storeContainer != null) {
+					storeURI = storeContainer.getUri();
+					// Existence checks list the shards of the store
+					storeSas = generateContainerSAS(storeContainer, EnumSet.of(
+							SharedAccessBlobPermissions.READ,
+							SharedAccessBlobPermissions.WRITE,
+							SharedAccessBlobPermissions.LIST),
+							AGENT_SAS_VALIDITY_MINUTES);
+				}
+				listener.getLogger().println(
+						Messages.WAStoragePublisher_uploading_from_agent());
+				blobsUploaded.addAll(workspacePath.act(new UploadOnAgentCallable(
+						listener, container.getUri(), sas, containerName, expFP,
+						expVP, excludeFP, uploadType, contentType, cacheControl,
+						compressionLevel, archiveFormat,
+						incremental && !cleanUpContainer,
+						deduplicateBlocks, storeURI, storeSas)));
+			} else {
+				blobsUploaded.addAll(uploadFiles(workspacePath, container,
+						listener, containerName, expFP, expVP, excludeFP,
+						uploadType, contentType, cacheControl, compressionLevel,
+						archiveFormat, incremental && !cleanUpContainer,
+						deduplicateBlocks,
+						storeContainer == null ? null : new ContentAddressedStore(
+								storeContainer, getBlobRequestOptions(), UPLOAD_THREADS)));
+			}
+			succeeded = true;
+		} catch (StorageException e) {
+			e.printStackTrace();
+			throw new WAStorageException(e.getMessage(), e);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new WAStorageException(e.getMessage(), e);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WAStorageException(e.getMessage(), e);
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
+			throw new WAStorageException(e.getMessage(), e);
+		} catch (InvalidKeyException e) {
+			e.printStackTrace();
+			throw new WAStorageException(e.getMessage(), e);
+		} finally {
+			// The account and the containers may have changed since they
+			// were cached, the next upload checks them again
+			if (!succeeded) {
+				AccountValidator.invalidate(strAcc.getStorageAccName(),
+						strAcc.getStorageAccountKey(), strAcc.getBlobEndPointURL());
+				if (container != null) {
+					BlobClientCache.removeContainer(container);
+				}
+				if (storeContainer != null) {
+					BlobClientCache.removeContainer(storeContainer);
+				}
 			}
-			List<String> archiveIncludes = new ArrayList<>();
-			
+		}
+		return blobsUploaded;
+	}
+
+	/**
+	 * Uploads the files of a workspace to a container. Runs on the controller
+	 * or, for direct uploads, on the node that holds the workspace.
+	 * 
+	 * @param workspacePath
+	 * @param container
+	 * @param listener
+	 * @param containerName
+	 * @param expFP
+	 * @param expVP
+	 * @param excludeFP
+	 * @param uploadType
+	 * @param contentType
+	 * @param cacheControl
+	 * @param compressionLevel
+	 * @param archiveFormat
+	 * @param incremental
+	 * @param deduplicateBlocks
+	 * @param contentStore
+	 *            store the file contents go to, or null
+	 * @return blobs uploaded
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws URISyntaxException
+	 * @throws WAStorageException
+	 */
+	private static List<AzureBlob> uploadFiles(FilePath workspacePath,
+			CloudBlobContainer container, final BuildListener listener,
+			final String containerName, String expFP, String expVP,
+			String excludeFP, UploadType uploadType, String contentType,
+			String cacheControl, int compressionLevel,
+			ArchiveFormat archiveFormat, boolean incremental,
+			final boolean deduplicateBlocks,
+			final ContentAddressedStore contentStore) throws StorageException,
+			IOException, InterruptedException, URISyntaxException,
+			WAStorageException {
+
+		List<AzureBlob> blobsUploaded = new ArrayList<>();
+		StringTokenizer strTokens = new StringTokenizer(expFP, fpSeparator);
+
+		// Large files are sent by concurrent blocks on top of the workers
+		StorageConnections.Counts before = StorageConnections.prepare(container,
+				2 * UPLOAD_THREADS);
+
+		final String zipFolderName = "artifactsArchive";
+		// Make sure archives left behind in temp dirs by earlier versions
+		// are not picked up.
+		String excludesWithoutZip = "**/" + zipFolderName + "*/"
+				+ ArchiveFormat.ZIP.getFileName();
+		if (excludeFP != null) {
+			excludesWithoutZip = excludeFP + "," + excludesWithoutZip;
+		}
+		List<String> archiveIncludes = new ArrayList<>();
+
+		// Content already in the container, by blob name
+		Map<String, BlobProperties> existingBlobs = Collections.emptyMap();
+		if (incremental && uploadType != UploadType.ZIP) {
+			existingBlobs = listBlobProperties(container, expVP);
+		}
+		int skipped = 0;
+
+		// Small files to pack in AUTO mode, blob names by relative path
+		final Map<String, String> packedFiles = new LinkedHashMap<String, String>();
+		long packedSize = 0;
+		final List<AzureBlob> packedBlobs = Collections.synchronizedList(new ArrayList<AzureBlob>());
+		final String fileSetId = String.format("%08x", expFP.hashCode());
+		final String packPrefix = ArtifactPack.getPrefix(expVP, fileSetId);
+		final List<String> packNames = new ArrayList<String>();
+
+		// Store contents uploaded by this upload, identical files send theirs once
+		Set<String> claimedContents = new HashSet<String>();
+
+		// Files are uploaded by a bounded pool of workers while the
+		// workspace is still being scanned.
+		TransferPool<AzureBlob> uploadPool = new TransferPool<AzureBlob>(
+				"Azure blob upload", UPLOAD_THREADS, UPLOAD_QUEUE_CAPACITY);
+		try {
 			while (strTokens.hasMoreElements()) {
 				String fileName = strTokens.nextToken();
 
@@ -357,35 +920,54 @@ public class WAStorageClient {
 						fileName = fileName.substring(0, embVPSepIndex);
 					}
 				}
-				
+
 				archiveIncludes.add(fileName);
-				
-				// List all the paths without the zip archives.
-				FilePath[] paths = workspacePath.list(fileName, excludesWithoutZip);
-
-				URI workspaceURI = workspacePath.toURI();
-
-				if (paths.length != 0) {
-					if (uploadType != UploadType.ZIP) {
-						for (FilePath src : paths) {
-							// Remove the workspace bit of this path
-							URI srcURI = workspaceURI.relativize(src.toURI());
-							CloudBlockBlob blob = null;
-							String srcPrefix = srcURI.getPath();
-							if (Utils.isNullOrEmpty(expVP)
-									&& Utils.isNullOrEmpty(embeddedVP)) {
-								blob = container.getBlockBlobReference(srcPrefix);
-							} else {
-								String prefix = expVP;
-
-								if (!Utils.isNullOrEmpty(embeddedVP)) {
-									if (Utils.isNullOrEmpty(expVP)) {
-										prefix = embeddedVP;
-									} else {
-										prefix = expVP + embeddedVP;
-									}
-								}
-								blob = container.getBlockBlobReference(prefix + srcPrefix);
+
+				if (uploadType == UploadType.ZIP) {
+					continue;
+				}
+
+				// List all the paths without the zip archives. The files come
+				// in batches as the scan finds them, so that the uploads start
+				// while the scan goes on. The MD5 of files whose content is not
+				// uploaded is still needed by the manifest.
+				ScannedFiles scanned = new ScannedFiles();
+				TransferPool<Integer> scanPool = startScan(workspacePath,
+						new ListFilesCallable(fileName, excludesWithoutZip,
+								!existingBlobs.isEmpty() || contentStore != null,
+								contentStore != null, scanned.getSink(workspacePath)),
+						scanned);
+				try {
+					List<WorkspaceFile> files;
+					while (!uploadPool.hasFailed() && (files = scanned.take()) != null) {
+						Collections.sort(files, WorkspaceFile.LARGEST_FIRST);
+
+						// Contents to upload to the store, checked for the batch
+						Set<String> missingContents = Collections.emptySet();
+						if (contentStore != null) {
+							List<String> keys = new ArrayList<String>();
+							for (WorkspaceFile file : files) {
+								keys.add(ContentAddressedStore.getKey(file.getContentHash()));
+							}
+							missingContents = contentStore.findMissing(keys);
+						}
+
+						for (final WorkspaceFile file : files) {
+							if (uploadPool.hasFailed()) {
+								break;
+							}
+
+							final FilePath src = workspacePath.child(file.getRelativePath());
+							final CloudBlockBlob blob = container.getBlockBlobReference(
+									getBlobName(expVP, embeddedVP, file.getRelativePath()));
+
+							BlobProperties existing = existingBlobs.get(blob.getName());
+							if (isUnchanged(file, existing)) {
+								// Still reported, the blob is part of this build's artifacts
+								blobsUploaded.add(new AzureBlob(containerName, blob.getName(), blob.getUri().toString().replace("http://", "https://"))
+										.withProperties(existing.getLength(), existing.getContentMD5(), existing.getEtag()));
+								skipped++;
+								continue;
 							}
 							if (!Utils.isNullOrEmpty(contentType)) {
 								blob.getProperties().setContentType(contentType);
@@ -394,102 +976,919 @@ public class WAStorageClient {
 								blob.getProperties().setCacheControl(cacheControl);
 							}
 
-							upload(listener, blob, src);
+							if (contentStore != null) {
+								final String key = ContentAddressedStore.getKey(file.getContentHash());
+								// Identical files of this upload send their content once
+								final boolean uploadContent = missingContents.contains(key)
+										&& claimedContents.add(key);
+								final CloudBlockBlob contentBlob = contentStore.getBlob(key);
+								contentBlob.getProperties().setContentType(blob.getProperties().getContentType());
+								contentBlob.getProperties().setCacheControl(blob.getProperties().getCacheControl());
+
+								uploadPool.submit(file.getLength(), new Callable<AzureBlob>() {
+									public AzureBlob call() throws Exception {
+										if (uploadContent) {
+											upload(listener, contentBlob, src);
+											contentStore.added(key);
+										}
+										contentStore.writeReference(blob, key,
+												file.getLength(), file.getContentMD5());
+										return new AzureBlob(containerName, blob.getName(),
+												blob.getUri().toString().replace("http://", "https://"),
+												contentStore.getContainer().getName(), key,
+												contentBlob.getUri().toString().replace("http://", "https://"))
+												.withProperties(file.getLength(), file.getContentMD5(),
+														blob.getProperties().getEtag());
+									}
+								});
+								continue;
+							}
+
+							if (uploadType == UploadType.AUTO
+									&& file.getLength() < PACK_THRESHOLD) {
+								packedFiles.put(file.getRelativePath(), blob.getName());
+								packedSize += file.getLength();
+								if (packedSize >= PACK_SIZE) {
+									submitPack(uploadPool, listener, workspacePath,
+											container, packPrefix, packNames,
+											packedFiles, packedSize, packedBlobs);
+									packedFiles.clear();
+									packedSize = 0;
+								}
+								continue;
+							}
 
-                            blobsUploaded.add(new AzureBlob(containerName, blob.getName(),blob.getUri().toString().replace("http://", "https://")));
+							final boolean deduplicate = deduplicateBlocks
+									&& file.getLength() >= DEDUPLICATION_THRESHOLD;
+							uploadPool.submit(file.getLength(), new Callable<AzureBlob>() {
+								public AzureBlob call() throws Exception {
+									if (deduplicate) {
+										uploadDeduplicated(listener, blob, src);
+									} else {
+										upload(listener, blob, src);
+									}
+									String contentMD5 = blob.getProperties().getContentMD5();
+									return new AzureBlob(containerName, blob.getName(), blob.getUri().toString().replace("http://", "https://"))
+											.withProperties(file.getLength(),
+													contentMD5 != null ? contentMD5 : file.getContentMD5(),
+													blob.getProperties().getEtag());
+								}
+							});
 						}
 					}
+					if (!uploadPool.hasFailed()) {
+						scanPool.awaitResults();
+					}
+				} finally {
+					scanPool.cancel();
 				}
 			}
-			
-			if (blobsUploaded.isEmpty() && uploadType != UploadType.INDIVIDUAL) {
-				// Create a temp dir for the upload
-				FilePath tempPath = workspacePath.createTempDir(zipFolderName, null);
 
-				Glob globScanner = new Glob(StringUtils.join(archiveIncludes, ','), excludesWithoutZip);
+			if (!packedFiles.isEmpty()) {
+				submitPack(uploadPool, listener, workspacePath, container,
+						packPrefix, packNames, packedFiles, packedSize,
+						packedBlobs);
+			}
 
-				FilePath zipPath = tempPath.child(zipName);
-				workspacePath.zip(zipPath.write(), globScanner);
+			blobsUploaded.addAll(uploadPool.awaitResults());
+			blobsUploaded.addAll(packedBlobs);
+		} finally {
+			uploadPool.cancel();
+		}
 
-				// When uploading the zip, do not add in the tempDir to the block
-				// blob reference.
-				String blobURI = zipPath.getName();
+		if (uploadType == UploadType.AUTO) {
+			deleteStalePacks(container, packPrefix, packNames);
+		}
 
-				if (!Utils.isNullOrEmpty(expVP)) {
-					blobURI = expVP + blobURI;
-				}
+		if (skipped > 0) {
+			listener.getLogger().println(
+					Messages.WAStoragePublisher_unchanged_skipped(skipped));
+		}
 
-				CloudBlockBlob blob = container.getBlockBlobReference(blobURI);
-				if (!Utils.isNullOrEmpty(contentType)) {
-					blob.getProperties().setContentType(contentType);
-				}
-				if (!Utils.isNullOrEmpty(cacheControl)) {
-					blob.getProperties().setCacheControl(cacheControl);
-				}
+		if (blobsUploaded.isEmpty() && uploadType != UploadType.INDIVIDUAL
+				&& uploadType != UploadType.AUTO) {
+			String blobURI = archiveFormat.getFileName();
 
-				upload(listener, blob, zipPath);
-				// Make sure to note the new blob as an archive blob,
-				// so that it can be specially marked on the azure storage page.
-                blobsUploaded.add(new AzureBlob(containerName, blob.getName(),blob.getUri().toString().replace("http://", "https://")));
+			if (!Utils.isNullOrEmpty(expVP)) {
+				blobURI = expVP + blobURI;
+			}
 
-				tempPath.deleteRecursive();
+			CloudBlockBlob blob = container.getBlockBlobReference(blobURI);
+			if (!Utils.isNullOrEmpty(contentType)) {
+				blob.getProperties().setContentType(contentType);
 			}
-			
-		} catch (StorageException e) {
-			e.printStackTrace();
-			throw new WAStorageException(e.getMessage(), e);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			throw new WAStorageException(e.getMessage(), e);
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new WAStorageException(e.getMessage(), e);
-		} catch (URISyntaxException e) {
-			e.printStackTrace();
-			throw new WAStorageException(e.getMessage(), e);
+			if (!Utils.isNullOrEmpty(cacheControl)) {
+				blob.getProperties().setCacheControl(cacheControl);
+			}
+
+			uploadArchive(listener, blob, workspacePath,
+					StringUtils.join(archiveIncludes, ','), excludesWithoutZip,
+					compressionLevel, archiveFormat);
+			// Make sure to note the new blob as an archive blob,
+			// so that it can be specially marked on the azure storage page.
+			blobsUploaded.add(new AzureBlob(containerName, blob.getName(),blob.getUri().toString().replace("http://", "https://"))
+					.withProperties(null, blob.getProperties().getContentMD5(),
+							blob.getProperties().getEtag()));
+		}
+
+		if (!blobsUploaded.isEmpty()) {
+			// Lets downloads find the blobs without listing the container
+			UploadManifest.write(container.getBlockBlobReference(
+					UploadManifest.getName(expVP, fileSetId)), blobsUploaded,
+					getBlobRequestOptions());
 		}
+		logConnections(listener, before);
 		return blobsUploaded;
 	}
 
 	/**
-	 * Deletes contents of container
+	 * Reports how the connections of the node to the storage host were used
+	 * by a transfer. The counts include concurrent transfers to the same
+	 * host.
 	 * 
+	 * @param listener
+	 * @param before
+	 *            counts before the transfer
+	 */
+	private static void logConnections(BuildListener listener,
+			StorageConnections.Counts before) {
+		StorageConnections.Counts counts = before.sinceThen();
+		if (counts.getSecureRequests() == 0) {
+			listener.getLogger().println(Messages.Client_requests(
+					counts.getRequests(), counts.getHost()));
+			return;
+		}
+		listener.getLogger().println(Messages.Client_connections(
+				counts.getRequests(), counts.getHost(), counts.getPooled(),
+				counts.getHandshakes()));
+	}
+
+	/**
+	 * Queues the upload of a pack of small files, followed by its index.
+	 * 
+	 * @param uploadPool
+	 * @param listener
+	 * @param workspacePath
+	 * @param container
+	 * @param packPrefix
+	 * @param packNames
+	 *            names of the packs of the upload, the new pack is added
+	 * @param files
+	 *            blob names of the files to pack, by relative path
+	 * @param size
+	 *            size of the pack
+	 * @param packedBlobs
+	 *            receives the packed blobs once uploaded
+	 * @throws URISyntaxException
+	 * @throws StorageException
+	 * @throws InterruptedException
+	 */
+	private static void submitPack(TransferPool<AzureBlob> uploadPool,
+			final BuildListener listener, final FilePath workspacePath,
+			final CloudBlobContainer container, String packPrefix,
+			List<String> packNames, Map<String, String> files, long size,
+			final List<AzureBlob> packedBlobs) throws URISyntaxException,
+			StorageException, InterruptedException {
+		final String packName = packPrefix + packNames.size() + ArtifactPack.PACK_SUFFIX;
+		packNames.add(packName);
+		final Map<String, String> blobNames = new LinkedHashMap<String, String>(files);
+
+		uploadPool.submit(size, new Callable<AzureBlob>() {
+			public AzureBlob call() throws Exception {
+				packedBlobs.addAll(uploadPack(listener, workspacePath,
+						container, packName, blobNames));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Uploads small files concatenated in a single pack blob, along with the
+	 * index of the pack. The pack is produced on the node that holds the
+	 * workspace.
+	 * 
+	 * @param listener
+	 * @param workspacePath
 	 * @param container
+	 * @param packName
+	 * @param blobNames
+	 *            blob names of the files to pack, by relative path
+	 * @return the packed blobs
 	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
 	 * @throws URISyntaxException
 	 */
-	private static void deleteContents(CloudBlobContainer container)
+	private static List<AzureBlob> uploadPack(BuildListener listener,
+			FilePath workspacePath, CloudBlobContainer container,
+			String packName, Map<String, String> blobNames)
+			throws StorageException, IOException, InterruptedException,
+			URISyntaxException {
+		long startTime = System.currentTimeMillis();
+		CloudBlockBlob pack = container.getBlockBlobReference(packName);
+		pack.getProperties().setContentType("application/octet-stream");
+
+		BlobRequestOptions options = getBlobRequestOptions();
+		BlockBlobOutputStream blobStream = new BlockBlobOutputStream(pack,
+				options, UPLOAD_THREADS);
+		List<ArtifactPack.Entry> entries;
+		try {
+			OutputStream out = new CloseShieldOutputStream(blobStream);
+			if (workspacePath.isRemote()) {
+				out = new RemoteOutputStream(out);
+			}
+			entries = workspacePath.act(new PackCallable(
+					new ArrayList<String>(blobNames.keySet()), out));
+			syncIO(workspacePath);
+			blobStream.commit();
+		} finally {
+			blobStream.close();
+		}
+
+		List<ArtifactPack.Entry> index = new ArrayList<ArtifactPack.Entry>();
+		List<AzureBlob> packedBlobs = new ArrayList<AzureBlob>();
+		String packURL = pack.getUri().toString().replace("http://", "https://");
+		for (ArtifactPack.Entry entry : entries) {
+			String blobName = blobNames.get(entry.getName());
+			index.add(entry.rename(blobName));
+			packedBlobs.add(new AzureBlob(container.getName(), blobName,
+					container.getBlockBlobReference(blobName).getUri().toString().replace("http://", "https://"),
+					container.getName(), packName, packURL,
+					entry.getOffset(), entry.getLength())
+					.withProperties(entry.getLength(), entry.getContentMD5(), null));
+		}
+
+		// The index is written last, a pack without index is ignored
+		CloudBlockBlob indexBlob = container.getBlockBlobReference(
+				ArtifactPack.getIndexName(packName));
+		indexBlob.getProperties().setContentType("text/plain; charset=utf-8");
+		indexBlob.uploadText(ArtifactPack.formatIndex(index), "UTF-8", null,
+				options, null);
+
+		long endTime = System.currentTimeMillis();
+		listener.getLogger().println("Uploaded " + entries.size()
+				+ " files packed in blob with uri " + pack.getUri() + " in "
+				+ getTime(endTime - startTime));
+		return packedBlobs;
+	}
+
+	/**
+	 * Deletes the packs left by a previous upload of the same file set that
+	 * are not part of the latest one.
+	 * 
+	 * @param container
+	 * @param packPrefix
+	 * @param packNames
+	 *            packs of the latest upload
+	 * @throws StorageException
+	 * @throws URISyntaxException
+	 */
+	private static void deleteStalePacks(CloudBlobContainer container,
+			String packPrefix, List<String> packNames)
 			throws StorageException, URISyntaxException {
+		Set<String> current = new HashSet<String>();
+		for (String packName : packNames) {
+			current.add(packName);
+			current.add(ArtifactPack.getIndexName(packName));
+		}
+		for (ListBlobItem blobItem : container.listBlobs(packPrefix, true,
+				EnumSet.noneOf(BlobListingDetails.class), getBlobRequestOptions(), null)) {
+			if (blobItem instanceof CloudBlob
+					&& !current.contains(((CloudBlob) blobItem).getName())) {
+				((CloudBlob) blobItem).deleteIfExists();
+			}
+		}
+	}
 
-		for (ListBlobItem blobItem : container.listBlobs()) {
-			if (blobItem instanceof CloudBlob) {
-				((CloudBlob) blobItem).delete();
+	/**
+	 * Uploads the files of a workspace from the node that holds it, straight
+	 * to Azure storage. The node is authorized by a shared access signature
+	 * issued by the controller, so the account key never leaves the
+	 * controller.
+	 */
+	private static final class UploadOnAgentCallable extends
+			MasterToSlaveFileCallable<List<AzureBlob>> {
+
+		private static final long serialVersionUID = -1190347361284622498L;
+
+		private final BuildListener listener;
+		private final URI containerURI;
+		private final String sas;
+		private final String containerName;
+		private final String expFP;
+		private final String expVP;
+		private final String excludeFP;
+		private final UploadType uploadType;
+		private final String contentType;
+		private final String cacheControl;
+		private final int compressionLevel;
+		private final ArchiveFormat archiveFormat;
+		private final boolean incremental;
+		private final boolean deduplicateBlocks;
+		private final URI storeURI;
+		private final String storeSas;
+
+		UploadOnAgentCallable(BuildListener listener, URI containerURI,
+				String sas, String containerName, String expFP, String expVP,
+				String excludeFP, UploadType uploadType, String contentType,
+				String cacheControl, int compressionLevel,
+				ArchiveFormat archiveFormat, boolean incremental,
+				boolean deduplicateBlocks, URI storeURI, String storeSas) {
+			this.listener = listener;
+			this.containerURI = containerURI;
+			this.sas = sas;
+			this.containerName = containerName;
+			this.expFP = expFP;
+			this.expVP = expVP;
+			this.excludeFP = excludeFP;
+			this.uploadType = uploadType;
+			this.contentType = contentType;
+			this.cacheControl = cacheControl;
+			this.compressionLevel = compressionLevel;
+			this.archiveFormat = archiveFormat;
+			this.incremental = incremental;
+			this.deduplicateBlocks = deduplicateBlocks;
+			this.storeURI = storeURI;
+			this.storeSas = storeSas;
+		}
+
+		public List<AzureBlob> invoke(File workspace, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			try {
+				CloudBlobContainer container = new CloudBlobContainer(
+						containerURI, new StorageCredentialsSharedAccessSignature(sas));
+				ContentAddressedStore contentStore = null;
+				if (storeURI != null) {
+					contentStore = new ContentAddressedStore(new CloudBlobContainer(
+							storeURI, new StorageCredentialsSharedAccessSignature(storeSas)),
+							getBlobRequestOptions(), UPLOAD_THREADS);
+				}
+				return uploadFiles(new FilePath(workspace), container,
+						listener, containerName, expFP, expVP, excludeFP,
+						uploadType, contentType, cacheControl, compressionLevel,
+						archiveFormat, incremental, deduplicateBlocks, contentStore);
+			} catch (StorageException e) {
+				throw new IOException(e.getMessage(), e);
+			} catch (URISyntaxException e) {
+				throw new IOException(e.getMessage(), e);
+			} catch (WAStorageException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * File of the workspace selected for upload.
+	 */
+	static final class WorkspaceFile implements Serializable {
+
+		private static final long serialVersionUID = -4466437613455476126L;
+
+		static final Comparator<WorkspaceFile> LARGEST_FIRST = new Comparator<WorkspaceFile>() {
+			public int compare(WorkspaceFile f1, WorkspaceFile f2) {
+				return Long.compare(f2.length, f1.length);
+			}
+		};
+
+		private final String relativePath;
+
+		private final long length;
+
+		private final String contentMD5;
+
+		private final String contentHash;
+
+		WorkspaceFile(String relativePath, long length, String contentMD5,
+				String contentHash) {
+			this.relativePath = relativePath;
+			this.length = length;
+			this.contentMD5 = contentMD5;
+			this.contentHash = contentHash;
+		}
+
+		/**
+		 * @return path relative to the workspace, using forward slashes
+		 */
+		String getRelativePath() {
+			return relativePath;
+		}
+
+		long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return base64 encoded MD5 of the content, if it was computed
+		 */
+		String getContentMD5() {
+			return contentMD5;
+		}
+
+		/**
+		 * @return hex encoded SHA-256 of the content, if it was computed
+		 */
+		String getContentHash() {
+			return contentHash;
+		}
+	}
+
+	/**
+	 * Starts the scan of the workspace on a worker, the files found arriving
+	 * in the given batches.
+	 * 
+	 * @param workspacePath
+	 * @param callable
+	 *            scan writing to the sink of the batches
+	 * @param scanned
+	 * @return pool of the scan, reporting its failure
+	 * @throws InterruptedException
+	 */
+	private static TransferPool<Integer> startScan(
+			final FilePath workspacePath, final ListFilesCallable callable,
+			final ScannedFiles scanned) throws InterruptedException {
+		TransferPool<Integer> scanPool = new TransferPool<Integer>(
+				"Azure workspace scan", 1, 1);
+		scanPool.submit(0, new Callable<Integer>() {
+			public Integer call() throws Exception {
+				try {
+					int count = workspacePath.act(callable);
+					syncIO(workspacePath);
+					return count;
+				} finally {
+					// Also ends the batches if the remote stream broke
+					scanned.close();
+				}
+			}
+		});
+		return scanPool;
+	}
+
+	/**
+	 * Lists the files matching a pattern together with their sizes, and
+	 * optionally their digests, using a single call to the node that holds
+	 * the workspace. The files are written to a stream in batches as they
+	 * are found, a batch being sent once it is full or has waited long
+	 * enough.
+	 */
+	private static final class ListFilesCallable extends
+			MasterToSlaveFileCallable<Integer> {
+
+		private static final long serialVersionUID = 2126164544934337553L;
+
+		/* Files of a batch at most */
+		private static final int BATCH_SIZE = 256;
+
+		/* Time a batch waits for more files at most */
+		private static final long BATCH_MILLIS = 500;
+
+		private final String includes;
+
+		private final String excludes;
+
+		private final boolean md5;
+
+		private final boolean sha256;
+
+		private final OutputStream out;
+
+		ListFilesCallable(String includes, String excludes, boolean md5,
+				boolean sha256, OutputStream out) {
+			this.includes = includes;
+			this.excludes = excludes;
+			this.md5 = md5;
+			this.sha256 = sha256;
+			this.out = out;
+		}
+
+		public Integer invoke(File workspace, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			final DataOutputStream data = new DataOutputStream(
+					new BufferedOutputStream(out, IO_BUFFER_SIZE));
+			try {
+				final List<WorkspaceFile> batch = new ArrayList<WorkspaceFile>();
+				final int[] count = new int[1];
+				final long[] batchStart = { System.currentTimeMillis() };
+				new Glob(includes, excludes).scan(workspace, new FileVisitor() {
+					@Override
+					public void visit(File f, String relativePath) throws IOException {
+						String[] digests = computeDigests(f, md5, sha256);
+						batch.add(new WorkspaceFile(relativePath.replace(
+								File.separatorChar, '/'), f.length(), digests[0],
+								digests[1]));
+						count[0]++;
+						long now = System.currentTimeMillis();
+						if (batch.size() >= BATCH_SIZE || now - batchStart[0] >= BATCH_MILLIS) {
+							ScannedFiles.writeBatch(data, batch);
+							batch.clear();
+							batchStart[0] = now;
+						}
+					}
+				});
+				if (!batch.isEmpty()) {
+					ScannedFiles.writeBatch(data, batch);
+				}
+				return count[0];
+			} finally {
+				data.close();
+			}
+		}
+	}
+
+	/**
+	 * Batches of files found by a workspace scan, queued for the thread that
+	 * submits the uploads. The scan writes each batch as a frame to the sink
+	 * of this object, possibly from a remote node, and a batch is queued once
+	 * its frame is complete. Closing the sink ends the batches.
+	 */
+	static final class ScannedFiles extends OutputStream {
+
+		/* Marks the end of the batches */
+		private static final List<WorkspaceFile> END = new ArrayList<WorkspaceFile>();
+
+		private final BlockingQueue<List<WorkspaceFile>> batches = new LinkedBlockingQueue<List<WorkspaceFile>>();
+
+		/* Bytes of the frame being received */
+		private byte[] pending = new byte[0];
+
+		private boolean closed;
+
+		/**
+		 * @param workspacePath
+		 * @return the stream for the scan to write to
+		 */
+		OutputStream getSink(FilePath workspacePath) {
+			return workspacePath.isRemote() ? new RemoteOutputStream(this) : this;
+		}
+
+		/**
+		 * @return next batch of files, or null once the scan is over
+		 * @throws InterruptedException
+		 */
+		List<WorkspaceFile> take() throws InterruptedException {
+			List<WorkspaceFile> batch = batches.take();
+			if (batch == END) {
+				// Later calls see the end too
+				batches.add(END);
+				return null;
+			}
+			return batch;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+				throws IOException {
+			if (closed) {
+				throw new IOException("Scan results already closed");
+			}
+			byte[] received = Arrays.copyOf(pending, pending.length + len);
+			System.arraycopy(b, off, received, pending.length, len);
+			int position = 0;
+			while (received.length - position >= 4) {
+				int frameLength = ByteBuffer.wrap(received, position, 4).getInt();
+				if (received.length - position - 4 < frameLength) {
+					break;
+				}
+				batches.add(readBatch(new DataInputStream(new ByteArrayInputStream(
+						received, position + 4, frameLength))));
+				position += 4 + frameLength;
+			}
+			pending = Arrays.copyOfRange(received, position, received.length);
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				batches.add(END);
+			}
+		}
+
+		/**
+		 * Writes a batch as a frame: its length, then the files.
+		 */
+		static void writeBatch(DataOutputStream out, List<WorkspaceFile> batch)
+				throws IOException {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(frame);
+			data.writeInt(batch.size());
+			for (WorkspaceFile file : batch) {
+				data.writeUTF(file.getRelativePath());
+				data.writeLong(file.getLength());
+				writeOptional(data, file.getContentMD5());
+				writeOptional(data, file.getContentHash());
 			}
+			data.flush();
+			out.writeInt(frame.size());
+			frame.writeTo(out);
+			out.flush();
+		}
+
+		static List<WorkspaceFile> readBatch(DataInputStream in)
+				throws IOException {
+			int count = in.readInt();
+			List<WorkspaceFile> batch = new ArrayList<WorkspaceFile>(count);
+			for (int i = 0; i < count; i++) {
+				batch.add(new WorkspaceFile(in.readUTF(), in.readLong(),
+						readOptional(in), readOptional(in)));
+			}
+			return batch;
+		}
 
-			if (blobItem instanceof CloudBlobDirectory) {
-				deleteContents((CloudBlobDirectory) blobItem);
+		private static void writeOptional(DataOutputStream out, String value)
+				throws IOException {
+			out.writeBoolean(value != null);
+			if (value != null) {
+				out.writeUTF(value);
 			}
 		}
+
+		private static String readOptional(DataInputStream in)
+				throws IOException {
+			return in.readBoolean() ? in.readUTF() : null;
+		}
 	}
 
 	/**
-	 * Deletes contents of virtual directory
+	 * Lists the blobs under a virtual path with their properties, in a
+	 * single flat listing.
 	 * 
-	 * @param cloudBlobDirectory
+	 * @param container
+	 * @param prefix
+	 *            virtual path, or null for the whole container
+	 * @return properties by blob name
 	 * @throws StorageException
 	 * @throws URISyntaxException
 	 */
-	private static void deleteContents(CloudBlobDirectory cloudBlobDirectory)
+	private static Map<String, BlobProperties> listBlobProperties(
+			CloudBlobContainer container, String prefix)
 			throws StorageException, URISyntaxException {
-
-		for (ListBlobItem blobItem : cloudBlobDirectory.listBlobs()) {
+		Map<String, BlobProperties> properties = new HashMap<String, BlobProperties>();
+		for (ListBlobItem blobItem : container.listBlobs(prefix, true,
+				EnumSet.noneOf(BlobListingDetails.class), getBlobRequestOptions(), null)) {
 			if (blobItem instanceof CloudBlob) {
-				((CloudBlob) blobItem).delete();
+				CloudBlob blob = (CloudBlob) blobItem;
+				properties.put(blob.getName(), blob.getProperties());
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * @param file
+	 * @param blobProperties
+	 *            properties of the blob with the same name, or null
+	 * @return true if the blob already holds the content of the file
+	 */
+	private static boolean isUnchanged(WorkspaceFile file,
+			BlobProperties blobProperties) {
+		return blobProperties != null && file.getContentMD5() != null
+				&& blobProperties.getLength() == file.getLength()
+				&& file.getContentMD5().equals(blobProperties.getContentMD5());
+	}
+
+	/**
+	 * Computes the requested digests of a file in a single read.
+	 * 
+	 * @param file
+	 * @param md5
+	 * @param sha256
+	 * @return base64 encoded MD5 of the file, as stored in Content-MD5, and
+	 *         hex encoded SHA-256, null for the digests not requested
+	 * @throws IOException
+	 */
+	static String[] computeDigests(File file, boolean md5, boolean sha256)
+			throws IOException {
+		if (!md5 && !sha256) {
+			return new String[2];
+		}
+		MessageDigest md5Digest;
+		MessageDigest sha256Digest;
+		try {
+			md5Digest = md5 ? MessageDigest.getInstance("MD5") : null;
+			sha256Digest = sha256 ? MessageDigest.getInstance("SHA-256") : null;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		byte[] buffer = new byte[IO_BUFFER_SIZE];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				if (md5Digest != null) {
+					md5Digest.update(buffer, 0, n);
+				}
+				if (sha256Digest != null) {
+					sha256Digest.update(buffer, 0, n);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return new String[] {
+				md5Digest == null ? null : Base64.encode(md5Digest.digest()),
+				sha256Digest == null ? null : Hex.encodeHexString(sha256Digest.digest()) };
+	}
+
+	/**
+	 * Writes the given files one after the other, and returns where each of
+	 * them is in the output.
+	 */
+	private static final class PackCallable extends
+			MasterToSlaveFileCallable<List<ArtifactPack.Entry>> {
+
+		private static final long serialVersionUID = -3046526946370431190L;
+
+		private final List<String> relativePaths;
+
+		private final OutputStream out;
+
+		PackCallable(List<String> relativePaths, OutputStream out) {
+			this.relativePaths = relativePaths;
+			this.out = out;
+		}
+
+		public List<ArtifactPack.Entry> invoke(File workspace,
+				VirtualChannel channel) throws IOException,
+				InterruptedException {
+			List<ArtifactPack.Entry> entries = new ArrayList<ArtifactPack.Entry>();
+			OutputStream packStream = new BufferedOutputStream(out, IO_BUFFER_SIZE);
+			try {
+				MessageDigest md5 = MessageDigest.getInstance("MD5");
+				byte[] buffer = new byte[IO_BUFFER_SIZE];
+				long offset = 0;
+				for (String relativePath : relativePaths) {
+					long length = 0;
+					InputStream in = new FileInputStream(new File(workspace, relativePath));
+					try {
+						int n;
+						while ((n = in.read(buffer)) != -1) {
+							md5.update(buffer, 0, n);
+							packStream.write(buffer, 0, n);
+							length += n;
+						}
+					} finally {
+						in.close();
+					}
+					entries.add(new ArtifactPack.Entry(relativePath, offset,
+							length, Base64.encode(md5.digest())));
+					offset += length;
+				}
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e.getMessage(), e);
+			} finally {
+				packStream.close();
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * Writes an archive of the matching files, compressing it on all the
+	 * cores of the node that holds the workspace.
+	 */
+	private static final class ArchiveCallable extends
+			MasterToSlaveFileCallable<Integer> {
+
+		private static final long serialVersionUID = 5327981347216893671L;
+
+		private final String includes;
+
+		private final String excludes;
+
+		private final int compressionLevel;
+
+		private final ArchiveFormat archiveFormat;
+
+		private final OutputStream out;
+
+		ArchiveCallable(String includes, String excludes,
+				int compressionLevel, ArchiveFormat archiveFormat,
+				OutputStream out) {
+			this.includes = includes;
+			this.excludes = excludes;
+			this.compressionLevel = compressionLevel;
+			this.archiveFormat = archiveFormat;
+			this.out = out;
+		}
+
+		public Integer invoke(File workspace, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			final Archiver archiver = archiveFormat.createArchiver(
+					new BufferedOutputStream(out, IO_BUFFER_SIZE),
+					compressionLevel, Runtime.getRuntime().availableProcessors());
+			try {
+				new Glob(includes, excludes).scan(workspace, new FileVisitor() {
+					@Override
+					public void visit(File f, String relativePath) throws IOException {
+						try {
+							archiver.addFile(f, relativePath.replace(File.separatorChar, '/'));
+						} catch (InterruptedException e) {
+							throw (IOException) new InterruptedIOException().initCause(e);
+						}
+					}
+				});
+				archiver.finish();
+				return archiver.countEntries();
+			} finally {
+				archiver.close();
+				out.close();
 			}
+		}
+	}
 
-			if (blobItem instanceof CloudBlobDirectory) {
-				deleteContents((CloudBlobDirectory) blobItem);
+	/**
+	 * Deletes contents of container, listing partitions of the container and
+	 * deleting blobs concurrently.
+	 * 
+	 * @param container
+	 * @throws InterruptedException
+	 * @throws WAStorageException
+	 */
+	private static void deleteContents(CloudBlobContainer container)
+			throws InterruptedException, WAStorageException {
+		if (NioBlobTransport.isEnabled()) {
+			deleteContentsNonBlocking(container);
+			return;
+		}
+
+		BlobRequestOptions options = getBlobRequestOptions();
+		ParallelBlobLister lister = new ParallelBlobLister(container, "",
+				UPLOAD_THREADS, EnumSet.noneOf(BlobListingDetails.class), options);
+		TransferPool<Void> deletePool = new TransferPool<Void>(
+				"Azure blob deletion", UPLOAD_THREADS, UPLOAD_QUEUE_CAPACITY);
+		try {
+			for (ListBlobItem blobItem : lister) {
+				if (deletePool.hasFailed()) {
+					break;
+				}
+				final CloudBlob blob = (CloudBlob) blobItem;
+				deletePool.submit(0, new Callable<Void>() {
+					public Void call() throws Exception {
+						blob.delete();
+						return null;
+					}
+				});
 			}
+			deletePool.awaitResults();
+		} catch (NoSuchElementException e) {
+			// Listing failure
+			throw new WAStorageException(e.getMessage(), e.getCause());
+		} finally {
+			deletePool.cancel();
+			lister.close();
+		}
+	}
+
+	/**
+	 * Deletes all blobs from a container through the non-blocking transport,
+	 * listing the pages from this thread while the deletions of the previous
+	 * pages are in flight.
+	 */
+	private static void deleteContentsNonBlocking(CloudBlobContainer container)
+			throws InterruptedException, WAStorageException {
+		final Semaphore inFlight = new Semaphore(MAX_NIO_DELETES);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		try {
+			NioBlobTransport transport = NioBlobTransport.getInstance();
+			String marker = null;
+			do {
+				NioBlobTransport.Completion<NioBlobTransport.BlobPage> page = new NioBlobTransport.Completion<NioBlobTransport.BlobPage>();
+				transport.listBlobs(container, null, marker, page);
+				for (NioBlobTransport.Item item : page.get().getBlobs()) {
+					if (failure.get() != null) {
+						break;
+					}
+					inFlight.acquire();
+					transport.delete(container.getBlockBlobReference(item.getName()),
+							new NioBlobTransport.Callback<Void>() {
+								public void completed(Void result) {
+									inFlight.release();
+								}
+
+								public void failed(Exception e) {
+									failure.compareAndSet(null, e);
+									inFlight.release();
+								}
+							});
+				}
+				marker = page.get().getNextMarker();
+			} while (marker != null && failure.get() == null);
+		} catch (StorageException e) {
+			failure.compareAndSet(null, e);
+		} catch (IOException e) {
+			failure.compareAndSet(null, e);
+		} catch (URISyntaxException e) {
+			failure.compareAndSet(null, e);
+		}
+		// Waits for the deletions in flight
+		inFlight.acquire(MAX_NIO_DELETES);
+		if (failure.get() != null) {
+			throw new WAStorageException(failure.get().getMessage(), failure.get());
 		}
 	}
 
@@ -503,14 +1902,41 @@ public class WAStorageClient {
 	 * @param includePattern
 	 * @param excludePattern
 	 * @param downloadDirLoc
+	 * @param flattenDirectories
+	 * @param extractArchives
+	 *            if true, downloaded archives are extracted next to them and
+	 *            deleted
+	 * @param downloadFromAgent
+	 *            if true, the node that holds the workspace downloads the
+	 *            files directly from Azure using a shared access signature.
+	 * @param downloadConcurrency
+	 *            number of blobs downloaded concurrently
+	 * @param incremental
+	 *            if true, files already downloaded from the same version of
+	 *            their blob are not downloaded again
+	 * @param useCache
+	 *            if true, blobs go through the cache of the node that holds
+	 *            the workspace, shared by its builds
+	 * @param zipArchiveName
+	 *            name of a zip archive blob to take the matching files out
+	 *            of, instead of the blobs of the container, or null
+	 * @param manifestPath
+	 *            virtual path of the uploads whose manifests list the blobs
+	 *            to download, instead of listing the container, or null
+	 * @param storeContainers
+	 *            names of the content addressed stores the blobs may
+	 *            reference, that a download from the agent can read
 	 * @return
 	 * @throws WAStorageException
 	 */
 	public static int download(AbstractBuild<?, ?> build,
 			BuildListener listener, StorageAccountInfo strAcc,
 			String expContainerName, String includePattern, String excludePattern, 
-			String downloadDirLoc, boolean flattenDirectories)
-			throws WAStorageException {
+			String downloadDirLoc, boolean flattenDirectories,
+			boolean extractArchives, boolean downloadFromAgent,
+			int downloadConcurrency, boolean incremental, boolean useCache,
+			String zipArchiveName, String manifestPath,
+			List<String> storeContainers) throws WAStorageException {
 
 		int filesDownloaded = 0;
 		FilePath downloadDir = null;
@@ -542,17 +1968,122 @@ public class WAStorageClient {
 							strAcc.getBlobEndPointURL(), expContainerName,
 							false, true, null);
 
-			filesDownloaded = downloadBlobs(container, includePattern, excludePattern, 
-					downloadDir, flattenDirectories, listener);
+			if (downloadFromAgent && downloadDir.isRemote()) {
+				// Only the signatures travel to the agent, the files never
+				// go through the remoting channel. Each signature covers a
+				// single container, the one of the job and the content
+				// addressed stores its blobs may reference.
+				String sas = generateContainerSAS(container, EnumSet.of(
+						SharedAccessBlobPermissions.READ,
+						SharedAccessBlobPermissions.LIST),
+						AGENT_SAS_VALIDITY_MINUTES);
+				HashMap<String, String> storeSas = new HashMap<String, String>();
+				for (String storeContainer : storeContainers) {
+					storeSas.put(storeContainer, generateContainerSAS(
+							container.getServiceClient().getContainerReference(storeContainer),
+							EnumSet.of(SharedAccessBlobPermissions.READ),
+							AGENT_SAS_VALIDITY_MINUTES));
+				}
+
+				listener.getLogger().println(
+						Messages.AzureStorageBuilder_downloading_from_agent());
+				filesDownloaded = downloadDir.act(new DownloadOnAgentCallable(
+						listener, container.getServiceClient().getEndpoint(), sas,
+						storeSas, expContainerName, includePattern, excludePattern,
+						flattenDirectories, extractArchives, downloadConcurrency,
+						incremental, useCache, zipArchiveName, manifestPath));
+			} else {
+				filesDownloaded = downloadBlobs(container, includePattern, excludePattern, 
+						downloadDir, flattenDirectories, extractArchives,
+						downloadConcurrency, incremental,
+						useCache && !downloadDir.isRemote(), zipArchiveName,
+						manifestPath, null, listener);
+			}
 
 		} catch (Exception e) {
 			e.printStackTrace();
+			// Validated again by the next build
+			AccountValidator.invalidate(strAcc.getStorageAccName(),
+					strAcc.getStorageAccountKey(), strAcc.getBlobEndPointURL());
 			throw new WAStorageException(e.getMessage(), e.getCause());
 		}
 		return filesDownloaded;
 
 	}
 	
+	/**
+	 * Runs the download on the node that holds the workspace, with read
+	 * only shared access signatures of the container and of the content
+	 * addressed stores.
+	 */
+	private static final class DownloadOnAgentCallable extends
+			MasterToSlaveFileCallable<Integer> {
+
+		private static final long serialVersionUID = 4419260383785214522L;
+
+		private final BuildListener listener;
+		private final URI blobEndpoint;
+		private final String sas;
+		private final HashMap<String, String> storeSas;
+		private final String containerName;
+		private final String includePattern;
+		private final String excludePattern;
+		private final boolean flattenDirectories;
+		private final boolean extractArchives;
+		private final int concurrency;
+		private final boolean incremental;
+		private final boolean useCache;
+		private final String zipArchiveName;
+		private final String manifestPath;
+
+		DownloadOnAgentCallable(BuildListener listener, URI blobEndpoint,
+				String sas, HashMap<String, String> storeSas,
+				String containerName, String includePattern,
+				String excludePattern, boolean flattenDirectories,
+				boolean extractArchives, int concurrency, boolean incremental,
+				boolean useCache, String zipArchiveName, String manifestPath) {
+			this.listener = listener;
+			this.blobEndpoint = blobEndpoint;
+			this.sas = sas;
+			this.storeSas = storeSas;
+			this.containerName = containerName;
+			this.includePattern = includePattern;
+			this.excludePattern = excludePattern;
+			this.flattenDirectories = flattenDirectories;
+			this.extractArchives = extractArchives;
+			this.concurrency = concurrency;
+			this.incremental = incremental;
+			this.useCache = useCache;
+			this.zipArchiveName = zipArchiveName;
+			this.manifestPath = manifestPath;
+		}
+
+		public Integer invoke(File downloadDir, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			try {
+				CloudBlobContainer container = new CloudBlobClient(blobEndpoint,
+						new StorageCredentialsSharedAccessSignature(sas))
+						.getContainerReference(containerName);
+				Map<String, CloudBlobContainer> stores = new HashMap<String, CloudBlobContainer>();
+				for (Map.Entry<String, String> store : storeSas.entrySet()) {
+					stores.put(store.getKey(), new CloudBlobClient(blobEndpoint,
+							new StorageCredentialsSharedAccessSignature(store.getValue()))
+							.getContainerReference(store.getKey()));
+				}
+				return downloadBlobs(container, includePattern, excludePattern,
+						new FilePath(downloadDir), flattenDirectories,
+						extractArchives, concurrency, incremental, useCache,
+						zipArchiveName, manifestPath, stores, listener);
+			} catch (StorageException e) {
+				throw new IOException(e.getMessage(), e);
+			} catch (URISyntaxException e) {
+				throw new IOException(e.getMessage(), e);
+			} catch (WAStorageException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+	}
+	
 	private static boolean blobPathMatches(String path, String[] includePatterns, String[] excludePatterns, 
 			boolean isFullPath) {
 		if (!isFullPath) {
@@ -605,100 +2136,1000 @@ public class WAStorageClient {
 	}
 
 	/**
-	 * Downloads blobs from container
+	 * Downloads blobs from container. The listing feeds a bounded queue of
+	 * downloads served by a pool of workers, so transfers start with the
+	 * first listing page and overlap with the rest of the listing. Only the
+	 * blobs under the literal prefixes of the include patterns are listed,
+	 * each prefix with concurrent listings of its partitions.
 	 * 
 	 * @param container
 	 * @param includePattern
 	 * @param excludePattern
 	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param extractArchives
+	 * @param concurrency
+	 *            number of blobs downloaded concurrently
+	 * @param incremental
+	 *            if true, only the blobs that changed since the last download
+	 *            to the directory are downloaded
+	 * @param useCache
+	 *            if true, blobs go through the cache of the node running the
+	 *            download when the directory is local to it
+	 * @param zipArchiveName
+	 *            name of a zip archive blob to take the matching files out
+	 *            of, or null
+	 * @param manifestPath
+	 *            virtual path of the uploads whose manifests list the blobs
+	 *            to download, or null
+	 * @param stores
+	 *            containers of the content addressed stores by name, with
+	 *            their own credentials, or null to use those of the container
 	 * @param listener
 	 * @return
 	 * @throws URISyntaxException
 	 * @throws StorageException
 	 * @throws IOException
+	 * @throws InterruptedException
 	 * @throws WAStorageException
 	 */
 	private static int downloadBlobs(CloudBlobContainer container,
 			String includePattern, String excludePattern, 
-			FilePath downloadDir, boolean flattenDirectories, BuildListener listener)
+			FilePath downloadDir, boolean flattenDirectories,
+			boolean extractArchives, int concurrency, boolean incremental,
+			boolean useCache, String zipArchiveName, String manifestPath,
+			Map<String, CloudBlobContainer> stores, BuildListener listener)
 			throws URISyntaxException, StorageException, IOException,
-			WAStorageException {
+			InterruptedException, WAStorageException {
+		// Large blobs are fetched by concurrent ranges on top of the workers
+		StorageConnections.Counts before = StorageConnections.prepare(container,
+				2 * concurrency);
+		int filesDownloaded = downloadMatchingBlobs(container, includePattern,
+				excludePattern, downloadDir, flattenDirectories,
+				extractArchives, concurrency, incremental, useCache,
+				zipArchiveName, manifestPath, stores, listener);
+		logConnections(listener, before);
+		return filesDownloaded;
+	}
 
-		String[] includePatterns = includePattern.split(fpSeparator);
-		String[] excludePatterns = null;
-		
-		if (excludePattern != null) {
-			excludePatterns = excludePattern.split(fpSeparator);
+	private static int downloadMatchingBlobs(CloudBlobContainer container,
+			String includePattern, String excludePattern,
+			final FilePath downloadDir, final boolean flattenDirectories,
+			final boolean extractArchives, final int concurrency, boolean incremental,
+			boolean useCache, String zipArchiveName, String manifestPath,
+			final Map<String, CloudBlobContainer> stores, final BuildListener listener)
+			throws URISyntaxException, StorageException, IOException,
+			InterruptedException, WAStorageException {
+
+		final String[] includePatterns = includePattern.split(fpSeparator);
+		final String[] excludePatterns = excludePattern == null ? null
+				: excludePattern.split(fpSeparator);
+
+		if (!Utils.isNullOrEmpty(zipArchiveName)) {
+			return downloadFromZipArchive(container.getBlockBlobReference(zipArchiveName),
+					includePatterns, excludePatterns, downloadDir,
+					flattenDirectories, concurrency, listener);
+		}
+		if (manifestPath != null) {
+			return downloadFromManifests(container, manifestPath,
+					includePatterns, excludePatterns, downloadDir,
+					flattenDirectories, extractArchives, concurrency,
+					incremental, stores, listener);
 		}
 		
 		int filesDownloaded = 0;
-		
-		for (ListBlobItem blobItem : container.listBlobs()) {
-			// If the item is a blob, not a virtual directory
-			if (blobItem instanceof CloudBlob) {
-				// Download the item and save it to a file with the same
-				// name
-				CloudBlob blob = (CloudBlob) blobItem;
 
-				// Check whether we should download it.
-				if (blobPathMatches(blob.getName(), includePatterns, excludePatterns, true)) {
-					downloadBlob(blob, downloadDir, flattenDirectories, listener);
-					filesDownloaded++;
+		// The metadata tells references to a content addressed store apart
+		// without fetching their attributes one by one
+		EnumSet<BlobListingDetails> details = EnumSet.of(BlobListingDetails.METADATA);
+		final DownloadManifest manifest = incremental ? DownloadManifest.load(downloadDir) : null;
+		final BlobCache cache = useCache && !downloadDir.isRemote() ? BlobCache.getInstance() : null;
+
+		final TransferPool<Integer> downloadPool = new TransferPool<Integer>(
+				"Azure download", concurrency, DOWNLOAD_QUEUE_CAPACITY);
+		List<String> prefixes = getListingPrefixes(includePatterns);
+		// One listing per pack directory, usually empty, run concurrently
+		// with the listings of the files instead of one after the other
+		TransferPool<Void> packListingPool = new TransferPool<Void>(
+				"Azure pack listing", Math.min(concurrency, prefixes.size()),
+				prefixes.size());
+		try {
+			for (final String prefix : prefixes) {
+				if (prefix.endsWith(ArtifactPack.DIRECTORY)) {
+					// Holds a few packs, not worth partitioning
+					final Iterable<ListBlobItem> blobItems = container.listBlobs(
+							prefix, true, details, getBlobRequestOptions(), null);
+					packListingPool.submit(0, new Callable<Void>() {
+						public Void call() throws Exception {
+							queueDownloads(blobItems, downloadPool,
+									includePatterns, excludePatterns, downloadDir,
+									flattenDirectories, extractArchives, concurrency,
+									manifest, cache, stores, listener);
+							return null;
+						}
+					});
+					continue;
 				}
-
-			} else if (blobItem instanceof CloudBlobDirectory) {
-				CloudBlobDirectory blobDirectory = (CloudBlobDirectory) blobItem;
-					filesDownloaded += downloadBlob(blobDirectory, includePatterns, 
-						excludePatterns, downloadDir, flattenDirectories, listener);
+				ParallelBlobLister lister = new ParallelBlobLister(container,
+						prefix, concurrency, details, getBlobRequestOptions());
+				try {
+					queueDownloads(lister, downloadPool, includePatterns,
+							excludePatterns, downloadDir, flattenDirectories,
+							extractArchives, concurrency, manifest, cache,
+							stores, listener);
+				} finally {
+					lister.close();
+				}
+			}
+			packListingPool.awaitResults();
+			for (Integer count : downloadPool.awaitResults()) {
+				filesDownloaded += count;
+			}
+		} finally {
+			packListingPool.cancel();
+			downloadPool.cancel();
+			if (manifest != null) {
+				// Files downloaded before a failure are not fetched again
+				manifest.save();
 			}
 		}
-		
+
+		if (manifest != null && manifest.getSkipped() > 0) {
+			listener.getLogger().println(
+					Messages.AzureStorageBuilder_unchanged_skipped(manifest.getSkipped()));
+		}
 		return filesDownloaded;
 	}
 
 	/**
-	 * Downloads blobs from virtual directory
+	 * Takes the files matching the patterns out of a zip archive blob. Only
+	 * the central directory of the archive and the ranges holding the
+	 * matching entries are fetched, entries close to each other with the
+	 * same requests.
 	 * 
-	 * @param blobDirectory
+	 * @param archiveBlob
+	 * @param includePatterns
+	 * @param excludePatterns
 	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param concurrency
+	 *            number of ranges fetched concurrently
 	 * @param listener
-	 * @return
+	 * @return number of files extracted
 	 * @throws StorageException
-	 * @throws URISyntaxException
 	 * @throws IOException
+	 * @throws InterruptedException
 	 * @throws WAStorageException
 	 */
-	private static int downloadBlob(CloudBlobDirectory blobDirectory,
+	private static int downloadFromZipArchive(CloudBlob archiveBlob,
 			String[] includePatterns, String[] excludePatterns,
-			FilePath downloadDir, boolean flattenDirectories, BuildListener listener)
-			throws StorageException, URISyntaxException, IOException,
+			final FilePath downloadDir, final boolean flattenDirectories,
+			int concurrency, final BuildListener listener)
+			throws StorageException, IOException, InterruptedException,
 			WAStorageException {
+		long startTime = System.currentTimeMillis();
+		final RemoteZipArchive archive = new RemoteZipArchive(archiveBlob,
+				getBlobRequestOptions());
+
+		List<RemoteZipArchive.Entry> entries = new ArrayList<RemoteZipArchive.Entry>();
+		long fetchedLength = 0;
+		for (RemoteZipArchive.Entry entry : archive.getEntries()) {
+			if (entry.isDirectory()
+					|| !blobPathMatches(entry.getName(), includePatterns, excludePatterns, true)) {
+				continue;
+			}
+			if (!ArchiveExtractor.isSafeEntryName(entry.getName())) {
+				throw new WAStorageException("Entry " + entry.getName()
+						+ " of " + archiveBlob.getName()
+						+ " points outside of the download directory");
+			}
+			entries.add(entry);
+		}
 
-		if (!blobPathMatches(blobDirectory.getPrefix(), includePatterns, excludePatterns, false)) {
-			return 0;
+		int filesDownloaded = 0;
+		TransferPool<Integer> downloadPool = new TransferPool<Integer>(
+				"Azure download", concurrency, DOWNLOAD_QUEUE_CAPACITY);
+		try {
+			for (final List<RemoteZipArchive.Entry> group : RemoteZipArchive.coalesce(entries)) {
+				long groupLength = RemoteZipArchive.getRangeLength(group);
+				fetchedLength += groupLength;
+				downloadPool.submit(groupLength, new Callable<Integer>() {
+					public Integer call() throws Exception {
+						archive.extract(group, new RemoteZipArchive.EntryHandler() {
+							public void entry(RemoteZipArchive.Entry entry,
+									InputStream content) throws IOException,
+									InterruptedException {
+								OutputStream fos = openDownloadFile(getDownloadFile(
+										downloadDir, entry.getName(), flattenDirectories));
+								try {
+									IOUtils.copyLarge(content, fos);
+								} finally {
+									fos.close();
+								}
+							}
+						});
+						return group.size();
+					}
+				});
+			}
+			for (Integer count : downloadPool.awaitResults()) {
+				filesDownloaded += count;
+			}
+		} finally {
+			downloadPool.cancel();
+		}
+
+		long endTime = System.currentTimeMillis();
+		listener.getLogger().println(
+				Messages.AzureStorageBuilder_zip_entries_downloaded(
+						filesDownloaded, archiveBlob.getName(), fetchedLength,
+						archive.getLength(), getTime(endTime - startTime)));
+		return filesDownloaded;
+	}
+
+	/**
+	 * Downloads the matching blobs listed by the manifests of the uploads to
+	 * a virtual path. Only the few manifests are listed, the patterns are
+	 * matched against their entries and the blobs are fetched directly:
+	 * referenced contents from their store, packed files from their pack.
+	 * 
+	 * @param container
+	 * @param manifestPath
+	 *            virtual path of the uploads
+	 * @param includePatterns
+	 * @param excludePatterns
+	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param extractArchives
+	 * @param concurrency
+	 *            number of blobs downloaded concurrently
+	 * @param incremental
+	 *            if true, only the blobs that changed since the last download
+	 *            to the directory are downloaded
+	 * @param stores
+	 *            containers of the content addressed stores by name, with
+	 *            their own credentials, or null to use those of the container
+	 * @param listener
+	 * @return number of files downloaded or up to date
+	 * @throws StorageException
+	 * @throws URISyntaxException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws WAStorageException
+	 */
+	private static int downloadFromManifests(final CloudBlobContainer container,
+			String manifestPath, String[] includePatterns,
+			String[] excludePatterns, final FilePath downloadDir,
+			final boolean flattenDirectories, final boolean extractArchives,
+			final int concurrency, boolean incremental,
+			final Map<String, CloudBlobContainer> stores,
+			final BuildListener listener)
+			throws StorageException, URISyntaxException, IOException,
+			InterruptedException, WAStorageException {
+		if (!manifestPath.isEmpty() && !manifestPath.endsWith(Utils.FWD_SLASH)) {
+			manifestPath += Utils.FWD_SLASH;
+		}
+
+		List<UploadManifest.Entry> entries = new ArrayList<UploadManifest.Entry>();
+		// Packed files are fetched by pack, with the lengths of the packs
+		final Map<String, List<ArtifactPack.Entry>> packedEntries = new LinkedHashMap<String, List<ArtifactPack.Entry>>();
+		Map<String, Long> packLengths = new HashMap<String, Long>();
+		int manifests = 0;
+		for (ListBlobItem blobItem : container.listBlobs(
+				UploadManifest.getPrefix(manifestPath), true,
+				EnumSet.noneOf(BlobListingDetails.class), getBlobRequestOptions(), null)) {
+			if (!(blobItem instanceof CloudBlob)
+					|| !((CloudBlob) blobItem).getName().endsWith(UploadManifest.SUFFIX)) {
+				continue;
+			}
+			manifests++;
+			for (UploadManifest.Entry entry : UploadManifest.read(
+					(CloudBlob) blobItem, getBlobRequestOptions())) {
+				if (entry.isPacked()) {
+					Long packLength = packLengths.get(entry.getContentBlobName());
+					packLengths.put(entry.getContentBlobName(), Math.max(
+							packLength == null ? 0 : packLength,
+							entry.getContentOffset() + entry.getLength()));
+				}
+				if (blobPathMatches(entry.getName(), includePatterns, excludePatterns, true)) {
+					entries.add(entry);
+				}
+			}
+		}
+		if (manifests == 0) {
+			throw new WAStorageException(Messages.AzureStorageBuilder_manifest_not_found(
+					manifestPath, container.getName()));
 		}
 
 		int filesDownloaded = 0;
+		final DownloadManifest manifest = incremental ? DownloadManifest.load(downloadDir) : null;
+
+		TransferPool<Integer> downloadPool = new TransferPool<Integer>(
+				"Azure download", concurrency, DOWNLOAD_QUEUE_CAPACITY);
+		try {
+			for (final UploadManifest.Entry entry : entries) {
+				if (downloadPool.hasFailed()) {
+					break;
+				}
+				// Same versions as the downloads from a listing
+				final String name = getLocalName(entry.getName(), flattenDirectories);
+				final String etag = entry.isPacked() ? null : entry.getEtag();
+				final String version = entry.isContentAddressed() ? entry
+						.getContentBlobName() : entry.getContentMD5();
+				if (manifest != null) {
+					if (manifest.isUnchanged(name, getDownloadFile(downloadDir,
+							entry.getName(), flattenDirectories), etag, version)) {
+						filesDownloaded++;
+						continue;
+					}
+					manifest.remove(name);
+				}
+
+				if (entry.isPacked()) {
+					List<ArtifactPack.Entry> packEntries = packedEntries.get(entry.getContentBlobName());
+					if (packEntries == null) {
+						packEntries = new ArrayList<ArtifactPack.Entry>();
+						packedEntries.put(entry.getContentBlobName(), packEntries);
+					}
+					packEntries.add(new ArtifactPack.Entry(entry.getName(),
+							entry.getContentOffset(), entry.getLength(),
+							entry.getContentMD5()));
+					continue;
+				}
+
+				long weight = entry.getLength() == null ? 0 : entry.getLength();
+				downloadPool.submit(weight, new Callable<Integer>() {
+					public Integer call() throws Exception {
+						long length = downloadManifestEntry(container, entry,
+								downloadDir, flattenDirectories, extractArchives,
+								concurrency, stores, listener);
+						// Extracted archives are deleted, nothing to record
+						if (manifest != null && (!extractArchives
+								|| ArchiveFormat.fromFileName(entry.getName()) == null)) {
+							manifest.record(name, etag, version, length);
+						}
+						return 1;
+					}
+				});
+			}
+
+			for (Map.Entry<String, List<ArtifactPack.Entry>> pack : packedEntries.entrySet()) {
+				final CloudBlockBlob packBlob = container.getBlockBlobReference(pack.getKey());
+				final List<ArtifactPack.Entry> packEntries = pack.getValue();
+				Collections.sort(packEntries, new Comparator<ArtifactPack.Entry>() {
+					public int compare(ArtifactPack.Entry e1, ArtifactPack.Entry e2) {
+						return Long.compare(e1.getOffset(), e2.getOffset());
+					}
+				});
+				long matched = 0;
+				for (ArtifactPack.Entry entry : packEntries) {
+					matched += entry.getLength();
+				}
+				final long matchedLength = matched;
+				final long packLength = packLengths.get(pack.getKey());
+				downloadPool.submit(matchedLength, new Callable<Integer>() {
+					public Integer call() throws Exception {
+						downloadFromPack(packBlob, packEntries, matchedLength,
+								packLength, downloadDir, flattenDirectories,
+								manifest, listener);
+						return packEntries.size();
+					}
+				});
+			}
 
-		for (ListBlobItem blobItem : blobDirectory.listBlobs()) {
+			for (Integer count : downloadPool.awaitResults()) {
+				filesDownloaded += count;
+			}
+		} finally {
+			downloadPool.cancel();
+			if (manifest != null) {
+				manifest.save();
+			}
+		}
+
+		if (manifest != null && manifest.getSkipped() > 0) {
+			listener.getLogger().println(
+					Messages.AzureStorageBuilder_unchanged_skipped(manifest.getSkipped()));
+		}
+		return filesDownloaded;
+	}
+
+	/**
+	 * Downloads a blob listed in a manifest, that is not packed. The
+	 * properties of the blob come from the manifest.
+	 * 
+	 * @param container
+	 * @param entry
+	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param extractArchives
+	 * @param concurrency
+	 *            number of concurrent transfers of the download
+	 * @param stores
+	 *            containers of the content addressed stores by name, with
+	 *            their own credentials, or null to use those of the container
+	 * @param listener
+	 * @return length of the downloaded content
+	 * @throws Exception
+	 */
+	private static long downloadManifestEntry(CloudBlobContainer container,
+			UploadManifest.Entry entry, FilePath downloadDir,
+			boolean flattenDirectories, boolean extractArchives,
+			int concurrency, Map<String, CloudBlobContainer> stores,
+			BuildListener listener) throws Exception {
+		long startTime = System.currentTimeMillis();
+		FilePath downloadFile = getDownloadFile(downloadDir, entry.getName(),
+				flattenDirectories);
+
+		// Contents of a content addressed store are read from the store
+		CloudBlob content;
+		String etag = null;
+		if (entry.isContentAddressed()) {
+			content = ContentAddressedStore.getStoreContainer(
+					container.getServiceClient(),
+					entry.getContentContainerName(), stores)
+					.getBlockBlobReference(entry.getContentBlobName());
+		} else {
+			content = container.getBlockBlobReference(entry.getName());
+			etag = entry.getEtag();
+		}
+
+		ArchiveFormat format = ArchiveFormat.fromFileName(entry.getName());
+		if (extractArchives && format != null) {
+			FilePath targetDir = downloadFile.getParent();
+			extractBlob(content, format, targetDir, concurrency);
+			listener.getLogger().println(
+					"archive " + entry.getName() + " is extracted to "
+							+ targetDir + " in "
+							+ getTime(System.currentTimeMillis() - startTime));
+			return content.getProperties().getLength();
+		}
+
+		long length;
+		if (entry.getLength() != null && entry.getLength() >= LARGE_FILE_THRESHOLD) {
+			length = entry.getLength();
+			downloadLargeFile(content, length, etag, entry.getContentMD5(),
+					downloadFile, concurrency);
+		} else {
+			OutputStream fos = openDownloadFile(downloadFile);
+			try {
+				content.download(fos, null, getBlobRequestOptions(), null);
+			} finally {
+				fos.close();
+			}
+			length = content.getProperties().getLength();
+		}
+
+		listener.getLogger().println(
+				"blob " + entry.getName() + " is downloaded to " + downloadDir
+						+ " in " + getTime(System.currentTimeMillis() - startTime));
+		return length;
+	}
+
+	/**
+	 * Computes the prefixes to list to find all the blobs matching a set of
+	 * patterns: the part of each pattern before its first wildcard, and the
+	 * pack directories above it, since packs hold files of the directories
+	 * below them. Prefixes covered by a shorter one are left out.
+	 * 
+	 * Whether a file set was packed is not known before listing, so each
+	 * directory level of a pattern prefix costs one more listing request,
+	 * which finds nothing unless the file set was uploaded with packs.
+	 * 
+	 * @param includePatterns
+	 * @return prefixes of the flat listings to run
+	 */
+	static List<String> getListingPrefixes(String[] includePatterns) {
+		TreeSet<String> prefixes = new TreeSet<String>();
+		for (String pattern : includePatterns) {
+			int wildcard = StringUtils.indexOfAny(pattern, "*?");
+			String prefix = wildcard == -1 ? pattern : pattern.substring(0, wildcard);
+			prefixes.add(prefix);
+
+			int slash = -1;
+			do {
+				prefixes.add(prefix.substring(0, slash + 1) + ArtifactPack.DIRECTORY);
+				slash = prefix.indexOf('/', slash + 1);
+			} while (slash != -1);
+		}
+
+		// Sorted, a prefix comes right before the ones it covers
+		List<String> listingPrefixes = new ArrayList<String>();
+		for (String prefix : prefixes) {
+			if (listingPrefixes.isEmpty()
+					|| !prefix.startsWith(listingPrefixes.get(listingPrefixes.size() - 1))) {
+				listingPrefixes.add(prefix);
+			}
+		}
+		return listingPrefixes;
+	}
+
+	/**
+	 * Queues the download of the matching blobs of a listing, walking down
+	 * the virtual directories that may hold matching blobs.
+	 * 
+	 * @param blobItems
+	 * @param downloadPool
+	 * @param includePatterns
+	 * @param excludePatterns
+	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param extractArchives
+	 * @param concurrency
+	 *            number of concurrent transfers of the download
+	 * @param manifest
+	 *            versions of the files already downloaded, or null to
+	 *            download everything
+	 * @param cache
+	 *            cache of the node, or null
+	 * @param stores
+	 *            containers of the content addressed stores by name, with
+	 *            their own credentials, or null to use those of the container
+	 * @param listener
+	 * @throws StorageException
+	 * @throws URISyntaxException
+	 * @throws InterruptedException
+	 */
+	private static void queueDownloads(Iterable<ListBlobItem> blobItems,
+			TransferPool<Integer> downloadPool,
+			final String[] includePatterns, final String[] excludePatterns,
+			final FilePath downloadDir, final boolean flattenDirectories,
+			final boolean extractArchives, final int concurrency,
+			final DownloadManifest manifest, final BlobCache cache,
+			final Map<String, CloudBlobContainer> stores,
+			final BuildListener listener)
+			throws StorageException, URISyntaxException, InterruptedException {
+
+		for (ListBlobItem blobItem : blobItems) {
+			if (downloadPool.hasFailed()) {
+				return;
+			}
 			// If the item is a blob, not a virtual directory
 			if (blobItem instanceof CloudBlob) {
-				// Download the item and save it to a file with the same
-				// name
-				CloudBlob blob = (CloudBlob) blobItem;
+				final CloudBlob blob = (CloudBlob) blobItem;
+
+				// Check whether we should download it.
+				if (ArtifactPack.isPackBlob(blob.getName())) {
+					if (ArtifactPack.isIndex(blob.getName())) {
+						downloadPool.submit(blob.getProperties().getLength(), new Callable<Integer>() {
+							public Integer call() throws Exception {
+								return downloadPackedFiles(blob, includePatterns,
+										excludePatterns, downloadDir, flattenDirectories,
+										manifest, listener);
+							}
+						});
+					}
+				} else if (UploadManifest.isManifestBlob(blob.getName())) {
+					// Describes the uploaded blobs, not one of them
+					continue;
+				} else if (blobPathMatches(blob.getName(), includePatterns, excludePatterns, true)) {
+					downloadPool.submit(blob.getProperties().getLength(), new Callable<Integer>() {
+						public Integer call() throws Exception {
+							if (manifest == null) {
+								downloadBlob(blob, downloadDir, flattenDirectories, extractArchives,
+										concurrency, cache, stores, listener);
+								return 1;
+							}
 
-				if (blobPathMatches(blob.getName(), includePatterns, excludePatterns, true)) {
-					downloadBlob(blob, downloadDir, flattenDirectories, listener);
-					filesDownloaded++;
+							// Files up to date count as downloaded
+							String name = getLocalName(blob.getName(), flattenDirectories);
+							String etag = blob.getProperties().getEtag();
+							String version = DownloadManifest.getContentVersion(blob);
+							if (manifest.isUnchanged(name, getDownloadFile(downloadDir,
+									blob.getName(), flattenDirectories), etag, version)) {
+								return 1;
+							}
+							manifest.remove(name);
+							long length = downloadBlob(blob, downloadDir, flattenDirectories,
+									extractArchives, concurrency, cache, stores, listener);
+							// Extracted archives are deleted, nothing to record
+							if (!extractArchives || ArchiveFormat.fromFileName(blob.getName()) == null) {
+								manifest.record(name, etag, version, length);
+							}
+							return 1;
+						}
+					});
 				}
 			} else if (blobItem instanceof CloudBlobDirectory) {
-				CloudBlobDirectory blobDir = (CloudBlobDirectory) blobItem;
-				filesDownloaded += downloadBlob(blobDir, includePatterns, excludePatterns, 
-						downloadDir, flattenDirectories, listener);
+				CloudBlobDirectory blobDirectory = (CloudBlobDirectory) blobItem;
+
+				// Packs hold files of the parent directory, they are matched by
+				// the names in their index
+				if (ArtifactPack.isPackBlob(blobDirectory.getPrefix())
+						|| blobPathMatches(blobDirectory.getPrefix(), includePatterns, excludePatterns, false)) {
+					queueDownloads(blobDirectory.listBlobs(), downloadPool,
+							includePatterns, excludePatterns, downloadDir,
+							flattenDirectories, extractArchives, concurrency,
+							manifest, cache, stores, listener);
+				}
 			}
 		}
+	}
 
-		return filesDownloaded;
+	/**
+	 * Downloads the matching files of a pack, given the index blob of the
+	 * pack. The pack itself is not downloaded as a file.
+	 * 
+	 * @param packBlob
+	 *            pack or index blob
+	 * @param includePatterns
+	 * @param excludePatterns
+	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param manifest
+	 *            versions of the files already downloaded, or null
+	 * @param listener
+	 * @return number of files downloaded or up to date
+	 * @throws WAStorageException
+	 */
+	private static int downloadPackedFiles(CloudBlob packBlob,
+			String[] includePatterns, String[] excludePatterns,
+			FilePath downloadDir, boolean flattenDirectories,
+			DownloadManifest manifest, BuildListener listener)
+			throws WAStorageException {
+		if (!ArtifactPack.isIndex(packBlob.getName())) {
+			return 0;
+		}
+		try {
+			CloudBlockBlob indexBlob = packBlob.getContainer().getBlockBlobReference(packBlob.getName());
+			List<ArtifactPack.Entry> entries = new ArrayList<ArtifactPack.Entry>();
+			long matchedLength = 0;
+			long packLength = 0;
+			int upToDate = 0;
+			for (ArtifactPack.Entry entry : ArtifactPack.parseIndex(
+					indexBlob.downloadText("UTF-8", null, getBlobRequestOptions(), null))) {
+				packLength = Math.max(packLength, entry.getOffset() + entry.getLength());
+				if (!blobPathMatches(entry.getName(), includePatterns, excludePatterns, true)) {
+					continue;
+				}
+				if (manifest != null) {
+					String name = getLocalName(entry.getName(), flattenDirectories);
+					if (manifest.isUnchanged(name, getDownloadFile(downloadDir,
+							entry.getName(), flattenDirectories), null,
+							entry.getContentMD5())) {
+						upToDate++;
+						continue;
+					}
+					manifest.remove(name);
+				}
+				entries.add(entry);
+				matchedLength += entry.getLength();
+			}
+			if (entries.isEmpty()) {
+				return upToDate;
+			}
+
+			CloudBlockBlob pack = packBlob.getContainer().getBlockBlobReference(
+					ArtifactPack.getPackName(packBlob.getName()));
+			downloadFromPack(pack, entries, matchedLength, packLength,
+					downloadDir, flattenDirectories, manifest, listener);
+			return entries.size() + upToDate;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new WAStorageException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Downloads files of a pack, reading the whole pack if most of it is
+	 * needed, each file by range otherwise.
+	 * 
+	 * @param pack
+	 * @param entries
+	 *            files to download, in pack order
+	 * @param matchedLength
+	 *            total length of the files to download
+	 * @param packLength
+	 *            length of the pack
+	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param manifest
+	 *            versions of the files already downloaded, or null
+	 * @param listener
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void downloadFromPack(CloudBlockBlob pack,
+			List<ArtifactPack.Entry> entries, long matchedLength,
+			long packLength, FilePath downloadDir, boolean flattenDirectories,
+			DownloadManifest manifest, BuildListener listener)
+			throws StorageException, IOException, InterruptedException {
+		long startTime = System.currentTimeMillis();
+		if (matchedLength * 2 >= packLength) {
+			// Most of the pack is needed, read it in one go
+			InputStream in = pack.openInputStream(null, getBlobRequestOptions(), null);
+			try {
+				long position = 0;
+				for (ArtifactPack.Entry entry : entries) {
+					IOUtils.skipFully(in, entry.getOffset() - position);
+					OutputStream fos = openDownloadFile(getDownloadFile(
+							downloadDir, entry.getName(), flattenDirectories));
+					try {
+						IOUtils.copyLarge(in, fos, 0, entry.getLength());
+					} finally {
+						fos.close();
+					}
+					recordPackedFile(manifest, entry, flattenDirectories);
+					position = entry.getOffset() + entry.getLength();
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			for (ArtifactPack.Entry entry : entries) {
+				OutputStream fos = openDownloadFile(getDownloadFile(
+						downloadDir, entry.getName(), flattenDirectories));
+				try {
+					if (entry.getLength() > 0) {
+						pack.downloadRange(entry.getOffset(), entry.getLength(), fos,
+								null, getBlobRequestOptions(), null);
+					}
+				} finally {
+					fos.close();
+				}
+				recordPackedFile(manifest, entry, flattenDirectories);
+			}
+		}
+		long endTime = System.currentTimeMillis();
+
+		listener.getLogger().println(
+				entries.size() + " files of pack " + pack.getName()
+						+ " are downloaded to " + downloadDir + " in "
+						+ getTime(endTime - startTime));
+	}
+
+	private static void recordPackedFile(DownloadManifest manifest,
+			ArtifactPack.Entry entry, boolean flattenDirectories) {
+		if (manifest != null) {
+			manifest.record(getLocalName(entry.getName(), flattenDirectories),
+					null, entry.getContentMD5(), entry.getLength());
+		}
+	}
+
+	/**
+	 * @param blobName
+	 * @param flattenDirectories
+	 * @return path of the file a blob is downloaded to, relative to the
+	 *         download directory
+	 */
+	private static String getLocalName(String blobName,
+			boolean flattenDirectories) {
+		return flattenDirectories ? blobName.substring(blobName.lastIndexOf('/') + 1)
+				: blobName;
+	}
+
+	/**
+	 * @param downloadDir
+	 * @param blobName
+	 * @param flattenDirectories
+	 * @return file a blob is downloaded to
+	 */
+	private static FilePath getDownloadFile(FilePath downloadDir,
+			String blobName, boolean flattenDirectories) {
+		FilePath downloadFile = new FilePath(downloadDir, blobName);
+		if (flattenDirectories) {
+			downloadFile = new FilePath(downloadDir, downloadFile.getName());
+		}
+		return downloadFile;
+	}
+
+	/**
+	 * Opens a file a blob is downloaded to. Files of this node are written
+	 * through a file channel, files of a remote node through the remoting
+	 * channel.
+	 * 
+	 * @param downloadFile
+	 * @return stream writing the file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static OutputStream openDownloadFile(FilePath downloadFile)
+			throws IOException, InterruptedException {
+		if (downloadFile.isRemote()) {
+			return downloadFile.act(new OpenDownloadFileCallable());
+		}
+		return openReplacedFile(new File(downloadFile.getRemote()));
+	}
+
+	/**
+	 * Opens a new file in place of an existing one. The file may be a hard
+	 * link to an entry of the blob cache, which must not be written through.
+	 * 
+	 * @param file
+	 * @return stream writing the file
+	 * @throws IOException
+	 */
+	static OutputStream openReplacedFile(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()
+				&& !parent.isDirectory()) {
+			throw new IOException("Failed to create directory " + parent);
+		}
+		Files.deleteIfExists(file.toPath());
+		return Channels.newOutputStream(FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+	}
+
+	/**
+	 * Opens a file a blob is downloaded to, on the node that holds it.
+	 */
+	private static final class OpenDownloadFileCallable extends
+			MasterToSlaveFileCallable<OutputStream> {
+
+		private static final long serialVersionUID = -6311920519207625476L;
+
+		public OutputStream invoke(File file, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			return new RemoteOutputStream(openReplacedFile(file));
+		}
+	}
+
+	/**
+	 * Writes the content of a blob to a file, by concurrent ranges if the
+	 * blob is large.
+	 * 
+	 * @param blob
+	 *            listed blob
+	 * @param content
+	 *            blob holding the content, the listed blob itself or the
+	 *            content it references
+	 * @param downloadFile
+	 * @param concurrency
+	 *            number of ranges fetched concurrently
+	 * @return length of the content
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static long fetchBlob(CloudBlob blob, CloudBlob content,
+			FilePath downloadFile, int concurrency) throws StorageException,
+			IOException, InterruptedException {
+		long length;
+		String etag;
+		String contentMD5;
+		if (content == blob) {
+			length = blob.getProperties().getLength();
+			etag = blob.getProperties().getEtag();
+			contentMD5 = blob.getProperties().getContentMD5();
+		} else {
+			// The listing gives the length of the reference, the one of the
+			// content is in its metadata. Contents never change, no ETag.
+			Long referenced = ContentAddressedStore.getReferencedLength(blob);
+			if (referenced == null) {
+				content.downloadAttributes(null, getBlobRequestOptions(), null);
+				length = content.getProperties().getLength();
+				contentMD5 = content.getProperties().getContentMD5();
+			} else {
+				length = referenced;
+				contentMD5 = ContentAddressedStore.getReferencedMD5(blob);
+			}
+			etag = null;
+		}
+		if (length >= LARGE_FILE_THRESHOLD) {
+			downloadLargeFile(content, length, etag, contentMD5, downloadFile,
+					concurrency);
+			return length;
+		}
+		OutputStream fos = openDownloadFile(downloadFile);
+		try {
+			content.download(fos, null, getBlobRequestOptions(), null);
+		} finally {
+			try {
+				fos.close();
+			} catch (IOException e) {
+
+			}
+		}
+		return content.getProperties().getLength();
+	}
+
+	/**
+	 * Downloads a large blob by ranges, with several workers writing them at
+	 * their position in the file. The transfer runs on the node that holds
+	 * the file, a remote node gets a signature that only allows reading the
+	 * blob.
+	 * 
+	 * @param blob
+	 * @param length
+	 *            length of the blob
+	 * @param etag
+	 *            ETag of the blob, or null
+	 * @param contentMD5
+	 *            MD5 of the blob content, or null
+	 * @param downloadFile
+	 * @param concurrency
+	 *            number of ranges fetched concurrently
+	 * @throws StorageException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void downloadLargeFile(CloudBlob blob, long length,
+			String etag, String contentMD5, FilePath downloadFile,
+			int concurrency) throws StorageException, IOException,
+			InterruptedException {
+		if (!downloadFile.isRemote()) {
+			new ParallelFileDownloader(blob, getBlobRequestOptions(),
+					concurrency).download(new File(downloadFile.getRemote()),
+					length, etag, contentMD5);
+			return;
+		}
+
+		String sas;
+		try {
+			sas = generateBlobSAS(blob,
+					EnumSet.of(SharedAccessBlobPermissions.READ),
+					AGENT_SAS_VALIDITY_MINUTES);
+		} catch (InvalidKeyException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		downloadFile.act(new DownloadLargeFileCallable(blob.getUri(), sas,
+				length, etag, contentMD5, concurrency));
+	}
+
+	/**
+	 * Downloads a large blob from the node that holds the file.
+	 */
+	private static final class DownloadLargeFileCallable extends
+			MasterToSlaveFileCallable<Void> {
+
+		private static final long serialVersionUID = -2285720960716398113L;
+
+		private final URI blobURI;
+		private final String sas;
+		private final long length;
+		private final String etag;
+		private final String contentMD5;
+		private final int concurrency;
+
+		DownloadLargeFileCallable(URI blobURI, String sas, long length,
+				String etag, String contentMD5, int concurrency) {
+			this.blobURI = blobURI;
+			this.sas = sas;
+			this.length = length;
+			this.etag = etag;
+			this.contentMD5 = contentMD5;
+			this.concurrency = concurrency;
+		}
+
+		public Void invoke(File file, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			try {
+				CloudBlockBlob blob = new CloudBlockBlob(blobURI,
+						new StorageCredentialsSharedAccessSignature(sas));
+				new ParallelFileDownloader(blob, getBlobRequestOptions(),
+						concurrency).download(file, length, etag, contentMD5);
+				return null;
+			} catch (StorageException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a range of a blob to a stream.
+	 * 
+	 * @param accountInfo
+	 * @param containerName
+	 * @param blobName
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @throws Exception
+	 */
+	public static void downloadRange(StorageAccountInfo accountInfo,
+			String containerName, String blobName, long offset, long length,
+			OutputStream out) throws Exception {
+		if (length == 0) {
+			return;
+		}
+		CloudBlobContainer container = getBlobContainerReference(
+				accountInfo.getStorageAccName(),
+				accountInfo.getStorageAccountKey(),
+				accountInfo.getBlobEndPointURL(), containerName, false, true,
+				null);
+		container.getBlockBlobReference(blobName).downloadRange(offset, length,
+				out, null, getBlobRequestOptions(), null);
 	}
 
 	/**
@@ -706,17 +3137,29 @@ public class WAStorageClient {
 	 * 
 	 * @param blob
 	 * @param downloadDir
+	 * @param flattenDirectories
+	 * @param extractArchives
+	 * @param concurrency
+	 *            number of concurrent transfers of the download
+	 * @param cache
+	 *            cache of the node, or null to download from the storage
+	 * @param stores
+	 *            containers of the content addressed stores by name, with
+	 *            their own credentials, or null to use those of the container
 	 * @param listener
+	 * @return length of the downloaded content
 	 * @throws URISyntaxException
 	 * @throws StorageException
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private static void downloadBlob(CloudBlob blob, FilePath downloadDir, boolean flattenDirectories,
-			BuildListener listener) throws WAStorageException {
-		OutputStream fos = null;
+	private static long downloadBlob(final CloudBlob blob, FilePath downloadDir, boolean flattenDirectories,
+			boolean extractArchives, final int concurrency, BlobCache cache,
+			Map<String, CloudBlobContainer> stores, BuildListener listener) throws WAStorageException {
+		FilePath downloadFile = null;
+		long length;
 		try {
-			FilePath downloadFile = new FilePath(downloadDir, blob.getName());
+			downloadFile = new FilePath(downloadDir, blob.getName());
 
 			// That filepath will contain all the directories and explicit virtual
 			// paths, so if the user wanted it flattened, grab just the file name and
@@ -726,38 +3169,169 @@ public class WAStorageClient {
 				downloadFile = new FilePath(downloadDir, downloadFile.getName());
 			}
 
-			// fos = new FileOutputStream(downloadDir + File.separator +
-			// blob.getName());
-			fos = downloadFile.write();
-
 			long startTime = System.currentTimeMillis();
 
-			blob.download(fos, null, getBlobRequestOptions(), null);
+			// Contents of a content addressed store are read from the store
+			final CloudBlob content = ContentAddressedStore.resolve(blob, stores);
+			ArchiveFormat format = ArchiveFormat.fromFileName(blob.getName());
+			if (extractArchives && format != null) {
+				// Extracted as it arrives, the archive itself is not kept
+				FilePath targetDir = downloadFile.getParent();
+				extractBlob(content, format, targetDir, concurrency);
+				listener.getLogger().println(
+						"archive " + blob.getName() + " is extracted to "
+								+ targetDir + " in "
+								+ getTime(System.currentTimeMillis() - startTime));
+				return content.getProperties().getLength();
+			}
+
+			boolean cached = false;
+			if (cache != null) {
+				// Contents of the store never change, their name is enough
+				String key = content == blob ? BlobCache.getKey(blob.getUri()
+						.toString(), blob.getProperties().getEtag())
+						: BlobCache.getKey(content.getUri().toString(), "");
+				File file = new File(downloadFile.getRemote());
+				cached = cache.fill(key, file, new BlobCache.Loader() {
+					public void load(File file) throws Exception {
+						fetchBlob(blob, content, new FilePath(file), concurrency);
+					}
+				});
+				length = file.length();
+			} else {
+				length = fetchBlob(blob, content, downloadFile, concurrency);
+			}
 
 			long endTime = System.currentTimeMillis();
 
 			listener.getLogger().println(
 					"blob " + blob.getName() + " is downloaded to "
-							+ downloadDir + " in "
-							+ getTime(endTime - startTime));
+							+ downloadDir + (cached ? " from the node cache" : "")
+							+ " in " + getTime(endTime - startTime));
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new WAStorageException(e.getMessage(), e.getCause());
-		} finally {
-			try {
-				if (fos != null) {
-					fos.close();
-				}
-			} catch (IOException e) {
+		}
+		return length;
+	}
 
-			}
+	/**
+	 * Extracts an archive blob while it downloads, on the node that holds
+	 * the target directory. A remote node gets a signature that only allows
+	 * reading the blob, the archive is not streamed through this node.
+	 * 
+	 * @param content
+	 *            blob holding the archive
+	 * @param format
+	 * @param targetDir
+	 * @param concurrency
+	 *            number of files written concurrently
+	 * @throws Exception
+	 */
+	private static void extractBlob(CloudBlob content, ArchiveFormat format,
+			FilePath targetDir, int concurrency) throws Exception {
+		if (!targetDir.isRemote()) {
+			extractArchive(content, format, new File(targetDir.getRemote()),
+					concurrency);
+			return;
+		}
+
+		String sas = generateBlobSAS(content,
+				EnumSet.of(SharedAccessBlobPermissions.READ),
+				AGENT_SAS_VALIDITY_MINUTES);
+		targetDir.act(new ExtractBlobCallable(content.getUri(), sas, format,
+				concurrency));
+	}
 
+	/**
+	 * Extracts an archive blob from the node that holds the target directory.
+	 */
+	private static final class ExtractBlobCallable extends
+			MasterToSlaveFileCallable<Void> {
+
+		private static final long serialVersionUID = 6904329317614086723L;
+
+		private final URI blobURI;
+		private final String sas;
+		private final ArchiveFormat format;
+		private final int concurrency;
+
+		ExtractBlobCallable(URI blobURI, String sas, ArchiveFormat format,
+				int concurrency) {
+			this.blobURI = blobURI;
+			this.sas = sas;
+			this.format = format;
+			this.concurrency = concurrency;
 		}
 
+		public Void invoke(File targetDir, VirtualChannel channel)
+				throws IOException, InterruptedException {
+			try {
+				CloudBlockBlob blob = new CloudBlockBlob(blobURI,
+						new StorageCredentialsSharedAccessSignature(sas));
+				extractArchive(blob, format, targetDir, concurrency);
+				return null;
+			} catch (StorageException e) {
+				throw new IOException(e.getMessage(), e);
+			} catch (WAStorageException e) {
+				throw new IOException(e.getMessage(), e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Extracts an archive blob to a local directory while it downloads. A
+	 * worker writes the blob to a pipe that the extraction reads, so that
+	 * the download and the decompression overlap, and files are written in
+	 * parallel.
+	 * 
+	 * @param content
+	 *            blob holding the archive
+	 * @param format
+	 * @param targetDir
+	 * @param concurrency
+	 *            number of files written concurrently
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws WAStorageException
+	 */
+	private static void extractArchive(final CloudBlob content,
+			ArchiveFormat format, File targetDir, int concurrency)
+			throws IOException, InterruptedException, WAStorageException {
+		PipedInputStream in = new PipedInputStream(IO_BUFFER_SIZE * 16);
+		final PipedOutputStream out = new PipedOutputStream(in);
+		TransferPool<Void> downloadPool = new TransferPool<Void>(
+				"Azure archive download", 1, 1);
+		try {
+			downloadPool.submit(0, new Callable<Void>() {
+				public Void call() throws Exception {
+					try {
+						content.download(out, null, getBlobRequestOptions(), null);
+					} finally {
+						out.close();
+					}
+					return null;
+				}
+			});
+			try {
+				new ArchiveExtractor(targetDir, concurrency).extract(in, format);
+				// The end of the archive may not be read, the download must
+				// still complete
+				IOUtils.skip(in, Long.MAX_VALUE);
+			} finally {
+				in.close();
+			}
+			downloadPool.awaitResults();
+		} finally {
+			downloadPool.cancel();
+		}
 	}
 	
 	/**
-	 * Generates SAS URL for blob in Azure storage account
+	 * Generates SAS URL for blob in Azure storage account. The signature is
+	 * computed locally from the account key, and the same one is handed out
+	 * for the container until half of its validity is over.
+	 * 
 	 * @param storageAccountName
 	 * @param storageAccountKey
 	 * @param containerName
@@ -766,62 +3340,102 @@ public class WAStorageClient {
 	 * @throws Exception
 	 */
 	public static String generateSASURL(String storageAccountName, String storageAccountKey, String containerName, String saBlobEndPoint) throws Exception {
-		StorageCredentialsAccountAndKey credentials = new StorageCredentialsAccountAndKey(storageAccountName, storageAccountKey);
-		URL blobURL = new  URL(saBlobEndPoint);
-		String saBlobURI = 	new StringBuilder().append(blobURL.getProtocol()).append("://").append(storageAccountName).append(".")
-							.append(blobURL.getHost()).append("/").toString();
-		CloudStorageAccount cloudStorageAccount = new CloudStorageAccount(credentials, new URI(saBlobURI), 
-				  new URI(getCustomURI(storageAccountName, QUEUE, saBlobURI)), 
-				  new URI(getCustomURI(storageAccountName, TABLE, saBlobURI)));
-		// Create the blob client.
-		CloudBlobClient blobClient = cloudStorageAccount.createCloudBlobClient();
-		CloudBlobContainer container = blobClient.getContainerReference(containerName);
-
-		// At this point need to throw an error back since container itself did not exist.
-		if (!container.exists()) {
-			throw new Exception("WAStorageClient: generateSASURL: Container " + containerName
-					+ " does not exist in storage account " + storageAccountName);
+		String cacheKey = getLinkSignatureKey(storageAccountName,
+				storageAccountKey, containerName, null, null);
+		String sas = LINK_SIGNATURES.get(cacheKey);
+		if (sas == null) {
+			CloudBlobContainer container = getBlobContainerReference(
+					storageAccountName, storageAccountKey, saBlobEndPoint,
+					containerName, false, true, null);
+			sas = generateContainerSAS(container,
+					EnumSet.of(SharedAccessBlobPermissions.READ),
+					LINK_SAS_VALIDITY_MINUTES);
+			LINK_SIGNATURES.put(cacheKey, sas, TimeUnit.MINUTES.toMillis(
+					LINK_SAS_VALIDITY_MINUTES) / 2);
 		}
+		return sas;
+	}
 
-		SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
-		GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-		calendar.setTime(new Date());
-		
-		//policy.setSharedAccessStartTime(calendar.getTime());
-		calendar.add(Calendar.HOUR, 1);
-		policy.setSharedAccessExpiryTime(calendar.getTime());
-		policy.setPermissions(EnumSet.of(SharedAccessBlobPermissions.READ));
+	/**
+	 * Generates a SAS granting read access to a single blob, which is served
+	 * as an attachment with the given file name.
+	 * 
+	 * @param accountInfo
+	 * @param containerName
+	 * @param blobName
+	 * @param fileName
+	 *            name the browser saves the blob as
+	 * @return SAS
+	 * @throws Exception
+	 */
+	public static String generateBlobSASURL(StorageAccountInfo accountInfo,
+			String containerName, String blobName, String fileName)
+			throws Exception {
+		String cacheKey = getLinkSignatureKey(accountInfo.getStorageAccName(),
+				accountInfo.getStorageAccountKey(), containerName, blobName,
+				fileName);
+		String sas = LINK_SIGNATURES.get(cacheKey);
+		if (sas != null) {
+			return sas;
+		}
 
-		BlobContainerPermissions containerPermissions = new BlobContainerPermissions();
-		containerPermissions.getSharedAccessPolicies().put("jenkins"+System.currentTimeMillis(), policy);
-		container.uploadPermissions(containerPermissions);
+		CloudBlobContainer container = getBlobContainerReference(
+				accountInfo.getStorageAccName(),
+				accountInfo.getStorageAccountKey(),
+				accountInfo.getBlobEndPointURL(), containerName, false, true,
+				null);
+		CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+
+		SharedAccessBlobPolicy policy = createPolicy(
+				EnumSet.of(SharedAccessBlobPermissions.READ),
+				LINK_SAS_VALIDITY_MINUTES);
+
+		SharedAccessBlobHeaders headers = new SharedAccessBlobHeaders();
+		headers.setContentDisposition("attachment; filename=\"" + fileName.replace("\"", "") + "\"");
+		sas = blob.generateSharedAccessSignature(policy, headers, null);
+		LINK_SIGNATURES.put(cacheKey, sas, TimeUnit.MINUTES.toMillis(
+				LINK_SAS_VALIDITY_MINUTES) / 2);
+		return sas;
+	}
 
-		// Create a shared access signature for the container.
-		String sas = container.generateSharedAccessSignature(policy, null);
+	/**
+	 * @param accName
+	 * @param key
+	 * @param containerName
+	 * @param blobName
+	 *            blob the signature is restricted to, or null for the
+	 *            container
+	 * @param fileName
+	 *            name the blob is served as, or null
+	 * @return key of the signature of a download link in the cache
+	 */
+	private static String getLinkSignatureKey(String accName, String key,
+			String containerName, String blobName, String fileName) {
+		// Signatures made with a replaced key are not handed out
+		return accName + "\n" + DigestUtils.sha256Hex(key) + "\n"
+				+ containerName + "\n" + blobName + "\n" + fileName;
+	}
 
-		return sas;
+	/**
+	 * Drops the clients, validations and signatures of the storage accounts,
+	 * after a change of their configuration.
+	 */
+	static void invalidateCaches() {
+		BlobClientCache.invalidate();
+		AccountValidator.invalidateAll();
+		LINK_SIGNATURES.clear();
 	}
 
 	/**
-	 * Returns Blob requests options - primarily sets concurrentRequestCount to
-	 * number of available cores
+	 * Returns Blob requests options. The transfers are concurrent through
+	 * their own workers, sized by the configured concurrency, so a single
+	 * blob request is not split further by the client library: files from
+	 * LARGE_FILE_THRESHOLD up go through those workers.
 	 * 
 	 * @return
 	 */
 	private static BlobRequestOptions getBlobRequestOptions() {
-		BlobRequestOptions options = new BlobRequestOptions();
-
-		int concurrentRequestCount = 1;
-
-		try {
-			concurrentRequestCount = Runtime.getRuntime().availableProcessors();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-		options.setConcurrentRequestCount(concurrentRequestCount);
-
-		return options;
+		return new BlobRequestOptions();
 	}
 
 	public static String getTime(long timeInMills) {
@@ -16,6 +16,7 @@
 package com.microsoftopentechnologies.windowsazurestorage;
 
 import com.microsoftopentechnologies.windowsazurestorage.beans.StorageAccountInfo;
+import com.microsoftopentechnologies.windowsazurestorage.helper.ArchiveFormat;
 import com.microsoftopentechnologies.windowsazurestorage.helper.Utils;
 import hudson.Extension;
 import hudson.Launcher;
@@ -29,6 +30,7 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -36,6 +38,7 @@ import javax.servlet.ServletException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.zip.Deflater;
 
 public class WAStoragePublisher extends Recorder {
 
@@ -64,6 +67,9 @@ public class WAStoragePublisher extends Recorder {
 	/** If true, build will not be changed to UNSTABLE if archiving returns nothing. */
 	private boolean doNotFailIfArchivingReturnsNothing;
 
+	/** If true, the node holding the workspace uploads directly to Azure. */
+	private boolean uploadFromAgent;
+
 	/** If true, artifacts will also be uploaded as a zip rollup **/
 	@Deprecated
 	private transient boolean uploadZips;
@@ -95,6 +101,8 @@ public class WAStoragePublisher extends Recorder {
 		INDIVIDUAL,
 		ZIP,
 		BOTH,
+		/** Small files in packs, other files individually */
+		AUTO,
 		INVALID;
 	}
 
@@ -165,6 +173,10 @@ public class WAStoragePublisher extends Recorder {
 		return doNotFailIfArchivingReturnsNothing;
 	}
 
+	public boolean isUploadFromAgent() {
+		return uploadFromAgent;
+	}
+
 	@Deprecated
 	public boolean isUploadArtifactsOnlyIfSuccessful() {
 		return uploadArtifactsOnlyIfSuccessful;
@@ -196,8 +208,11 @@ public class WAStoragePublisher extends Recorder {
 		return fileSets;
 	}
 
-	private UploadType computeArtifactUploadType(final boolean uploadZips, final boolean doNotUploadIndividualFiles) {
-		if (uploadZips && !doNotUploadIndividualFiles) {
+	private UploadType computeArtifactUploadType(final boolean uploadZips, final boolean doNotUploadIndividualFiles,
+			final boolean packSmallFiles) {
+		if (packSmallFiles && !doNotUploadIndividualFiles) {
+			return UploadType.AUTO;
+		} else if (uploadZips && !doNotUploadIndividualFiles) {
 			return UploadType.BOTH;
 		} else if (!uploadZips && !doNotUploadIndividualFiles) {
 			return UploadType.INDIVIDUAL;
@@ -209,7 +224,8 @@ public class WAStoragePublisher extends Recorder {
 	}
 
 	public UploadType getArtifactUploadType(FileSet fileSet) {
-		return computeArtifactUploadType(fileSet.isUploadZips(), fileSet.isDoNotUploadIndividualFiles());
+		return computeArtifactUploadType(fileSet.isUploadZips(), fileSet.isDoNotUploadIndividualFiles(),
+				fileSet.isPackSmallFiles());
 	}
 
 	public String getStorageAccName() {
@@ -243,6 +259,11 @@ public class WAStoragePublisher extends Recorder {
 		this.doNotFailIfArchivingReturnsNothing = doNotFailIfArchivingReturnsNothing;
 	}
 
+	@DataBoundSetter
+	public void setUploadFromAgent(final boolean uploadFromAgent) {
+		this.uploadFromAgent = uploadFromAgent;
+	}
+
 	@Deprecated
 	public void setUploadArtifactsOnlyIfSuccessful(final boolean uploadArtifactsOnlyIfSuccessful) {
 		this.uploadArtifactsOnlyIfSuccessful = uploadArtifactsOnlyIfSuccessful;
@@ -350,7 +371,11 @@ public class WAStoragePublisher extends Recorder {
 				uploadedBlobs.addAll(WAStorageClient.upload(build, listener, strAcc,
 						expContainerName, fileSet.isCntPubAccess(), fileSet.isCleanUpContainer(), expFP,
 						expVP, excludeFP, getArtifactUploadType(fileSet),
-						fileSet.getContentType(), fileSet.getCacheControl()));
+						fileSet.getContentType(), fileSet.getCacheControl(),
+						fileSet.getCompressionLevel(), fileSet.getArchiveFormat(),
+						fileSet.isIncremental(),
+						fileSet.isDeduplicateBlocks(), fileSet.getContentStoreContainer(),
+						isUploadFromAgent()));
 
 				// Mark build unstable if no files are uploaded and the user
 				// doesn't want the build not to fail in that case.
@@ -408,6 +433,14 @@ public class WAStoragePublisher extends Recorder {
 			return false;
 		}
 
+		if (fileSet.getContentStoreContainer() != null
+				&& !Utils.validateContainerName(fileSet.getContentStoreContainer())) {
+			listener.getLogger().println(
+					Messages.WAStoragePublisher_content_store_name_err());
+			build.setResult(Result.UNSTABLE);
+			return false;
+		}
+
 		// Validate files path
 		if (Utils.isNullOrEmpty(fileSet.getFilesPath())) {
 			listener.getLogger().println(
@@ -425,7 +458,7 @@ public class WAStoragePublisher extends Recorder {
 
 		// Check if storage account credentials are valid
 		try {
-			WAStorageClient.validateStorageAccount(
+			AccountValidator.validate(
 					storageAccount.getStorageAccName(),
 					storageAccount.getStorageAccountKey(),
 					storageAccount.getBlobEndPointURL());
@@ -459,6 +492,8 @@ public class WAStoragePublisher extends Recorder {
 			storageAccounts.replaceBy(req.bindParametersToList(
 					StorageAccountInfo.class, "was_"));
 			save();
+			// Clients of removed or changed accounts are not used anymore
+			WAStorageClient.invalidateCaches();
 			return super.configure(req, formData);
 		}
 
@@ -609,6 +644,14 @@ public class WAStoragePublisher extends Recorder {
 			return m;
 		}
 
+		public ListBoxModel doFillArchiveFormatItems() {
+			ListBoxModel m = new ListBoxModel();
+			for (ArchiveFormat format : ArchiveFormat.values()) {
+				m.add(format.getDisplayName(), format.name());
+			}
+			return m;
+		}
+
 		/*
 		 * public ComboBoxModel doFillContainerNameItems(
 		 * 
@@ -624,6 +667,8 @@ public class WAStoragePublisher extends Recorder {
 
 	public static final class FileSet extends AbstractDescribableImpl<FileSet> implements Serializable {
 
+		public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
 		private String containerName;
 
 		private String filesPath;
@@ -646,6 +691,24 @@ public class WAStoragePublisher extends Recorder {
 
 		private boolean doNotUploadIndividualFiles;
 
+		/** Compression level of the archive, null for the default level. */
+		private Integer compressionLevel;
+
+		/** Format of the archive, null for zip. */
+		private ArchiveFormat archiveFormat;
+
+		/** If true, files already in the container are not uploaded again. */
+		private boolean incremental;
+
+		/** If true, large files only upload their changed blocks. */
+		private boolean deduplicateBlocks;
+
+		/** Container of the content addressed store, if any. */
+		private String contentStoreContainer;
+
+		/** If true, small files are uploaded in packs. */
+		private boolean packSmallFiles;
+
 		/**
 		 * @param containerName
 		 * @param filesPath
@@ -771,6 +834,62 @@ public class WAStoragePublisher extends Recorder {
 			this.doNotUploadIndividualFiles = doNotUploadIndividualFiles;
 		}
 
+		public int getCompressionLevel() {
+			return compressionLevel == null ? DEFAULT_COMPRESSION_LEVEL : compressionLevel;
+		}
+
+		@DataBoundSetter
+		public void setCompressionLevel(int compressionLevel) {
+			this.compressionLevel = Math.max(Deflater.NO_COMPRESSION,
+					Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+		}
+
+		public ArchiveFormat getArchiveFormat() {
+			return archiveFormat == null ? ArchiveFormat.ZIP : archiveFormat;
+		}
+
+		@DataBoundSetter
+		public void setArchiveFormat(ArchiveFormat archiveFormat) {
+			this.archiveFormat = archiveFormat;
+		}
+
+		public boolean isIncremental() {
+			return incremental;
+		}
+
+		@DataBoundSetter
+		public void setIncremental(boolean incremental) {
+			this.incremental = incremental;
+		}
+
+		public boolean isDeduplicateBlocks() {
+			return deduplicateBlocks;
+		}
+
+		@DataBoundSetter
+		public void setDeduplicateBlocks(boolean deduplicateBlocks) {
+			this.deduplicateBlocks = deduplicateBlocks;
+		}
+
+		public String getContentStoreContainer() {
+			return contentStoreContainer;
+		}
+
+		@DataBoundSetter
+		public void setContentStoreContainer(String contentStoreContainer) {
+			this.contentStoreContainer = Utils.isNullOrEmpty(contentStoreContainer)
+					? null : contentStoreContainer.trim();
+		}
+
+		public boolean isPackSmallFiles() {
+			return packSmallFiles;
+		}
+
+		@DataBoundSetter
+		public void setPackSmallFiles(boolean packSmallFiles) {
+			this.packSmallFiles = packSmallFiles;
+		}
+
 		@Extension
 		public static class FileSetDescriptor extends Descriptor<FileSet> {
 			@Override
@@ -0,0 +1,207 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/**
+ * Extracts an archive while it is being read, typically as it arrives from
+ * the storage, so that the archive itself never touches the disk. Entries
+ * are decompressed in archive order; small files are then handed to worker
+ * threads that write them while the next entries are decompressed, larger
+ * ones are written by the reading thread as they are decompressed.
+ */
+public class ArchiveExtractor {
+
+	/* Larger files are written as they are decompressed */
+	private static final int BUFFERED_ENTRY_SIZE = 1024 * 1024;
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final File targetDir;
+
+	private final int concurrency;
+
+	/**
+	 * @param targetDir
+	 *            directory to extract to
+	 * @param concurrency
+	 *            number of files written concurrently
+	 */
+	public ArchiveExtractor(File targetDir, int concurrency) {
+		this.targetDir = targetDir;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * @param in
+	 *            archive content, not closed
+	 * @param format
+	 * @return number of files extracted
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int extract(InputStream in, ArchiveFormat format)
+			throws IOException, InterruptedException {
+		ArchiveInputStream archive = format.createInputStream(in);
+		TransferPool<Void> writePool = new TransferPool<Void>(
+				"Archive extraction", concurrency, concurrency * 2);
+		int files = 0;
+		try {
+			ArchiveEntry entry;
+			while ((entry = archive.getNextEntry()) != null) {
+				if (writePool.hasFailed()) {
+					break;
+				}
+				if (!isSafeEntryName(entry.getName())) {
+					throw new IOException("Entry " + entry.getName()
+							+ " points outside of " + targetDir);
+				}
+				final File file = new File(targetDir, entry.getName());
+				if (entry.isDirectory()) {
+					mkdirs(file);
+					continue;
+				}
+				if (entry instanceof TarArchiveEntry
+						&& ((TarArchiveEntry) entry).isSymbolicLink()) {
+					createSymbolicLink(file, ((TarArchiveEntry) entry).getLinkName());
+					files++;
+					continue;
+				}
+				final int mode = getUnixMode(entry);
+				final long lastModified = entry.getLastModifiedDate().getTime();
+
+				// Read ahead up to the limit to find out whether the entry
+				// is small, the size is not known before the data of zip
+				// entries followed by a data descriptor
+				final ByteArrayOutputStream head = new ByteArrayOutputStream();
+				long headLength = IOUtils.copyLarge(archive, head, 0,
+						BUFFERED_ENTRY_SIZE + 1);
+				if (headLength <= BUFFERED_ENTRY_SIZE) {
+					writePool.submit(headLength, new Callable<Void>() {
+						public Void call() throws Exception {
+							write(file, new ByteArrayInputStream(head.toByteArray()),
+									mode, lastModified);
+							return null;
+						}
+					});
+				} else {
+					// The sequence closes each stream at its end
+					write(file, new SequenceInputStream(new ByteArrayInputStream(
+							head.toByteArray()), new CloseShieldInputStream(archive)),
+							mode, lastModified);
+				}
+				files++;
+			}
+			writePool.awaitResults();
+		} catch (WAStorageException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(e.getMessage(), cause);
+		} finally {
+			writePool.cancel();
+		}
+		return files;
+	}
+
+	/**
+	 * @param name
+	 *            name of an archive entry
+	 * @return false if the name is absolute or goes up a directory
+	 */
+	public static boolean isSafeEntryName(String name) {
+		String path = name.replace('\\', '/');
+		if (path.startsWith("/") || (path.length() > 1 && path.charAt(1) == ':')) {
+			return false;
+		}
+		for (String segment : path.split("/")) {
+			if (segment.equals("..")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void write(File file, InputStream data, int mode,
+			long lastModified) throws IOException {
+		mkdirs(file.getParentFile());
+		Files.deleteIfExists(file.toPath());
+		OutputStream out = new FileOutputStream(file);
+		try {
+			IOUtils.copyLarge(data, out, new byte[COPY_BUFFER_SIZE]);
+		} finally {
+			out.close();
+		}
+		if ((mode & 0100) != 0) {
+			file.setExecutable(true);
+		}
+		if (lastModified > 0) {
+			file.setLastModified(lastModified);
+		}
+	}
+
+	private void createSymbolicLink(File file, String target)
+			throws IOException {
+		// The link must stay within the extracted files
+		String relative = targetDir.toPath().relativize(file.getParentFile().toPath())
+				.resolve(target).normalize().toString();
+		if (Paths.get(target).isAbsolute() || !isSafeEntryName(relative)) {
+			throw new IOException("Link " + file + " to " + target
+					+ " points outside of " + targetDir);
+		}
+		mkdirs(file.getParentFile());
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		Files.createSymbolicLink(path, Paths.get(target));
+	}
+
+	private static void mkdirs(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Failed to create directory " + dir);
+		}
+	}
+
+	private static int getUnixMode(ArchiveEntry entry) {
+		if (entry instanceof TarArchiveEntry) {
+			return ((TarArchiveEntry) entry).getMode();
+		}
+		if (entry instanceof ZipArchiveEntry) {
+			return ((ZipArchiveEntry) entry).getUnixMode();
+		}
+		return 0;
+	}
+}
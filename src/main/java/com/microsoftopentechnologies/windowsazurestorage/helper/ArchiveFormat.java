@@ -0,0 +1,121 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Formats of the archive of a file set.
+ */
+public enum ArchiveFormat {
+
+	/** Zip, compressed per file, readable everywhere */
+	ZIP("archive.zip", "zip"),
+
+	/** Tar compressed as a whole with gzip */
+	TAR_GZ("archive.tar.gz", "tar.gz"),
+
+	/** Tar compressed as a whole with LZ4, fastest to write and extract */
+	TAR_LZ4("archive.tar.lz4", "tar.lz4");
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String fileName;
+
+	private final String displayName;
+
+	private ArchiveFormat(String fileName, String displayName) {
+		this.fileName = fileName;
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @return name of the archive blob, after the virtual path
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * @param out
+	 *            destination of the archive
+	 * @param level
+	 *            compression level, 0 to 9
+	 * @param threads
+	 *            number of compression threads
+	 * @return archiver writing this format
+	 */
+	public Archiver createArchiver(OutputStream out, int level, int threads) {
+		switch (this) {
+		case TAR_GZ:
+			return new TarArchiver(new ParallelGzipOutputStream(out, level, threads));
+		case TAR_LZ4:
+			return new TarArchiver(new Lz4FrameOutputStream(out, level, threads));
+		default:
+			return new ParallelZipArchiver(out, level, threads);
+		}
+	}
+
+	/**
+	 * @param in
+	 *            archive content, read as it comes
+	 * @return stream of the entries of the archive
+	 * @throws IOException
+	 */
+	public ArchiveInputStream createInputStream(InputStream in)
+			throws IOException {
+		switch (this) {
+		case TAR_GZ:
+			return new TarArchiveInputStream(new GZIPInputStream(in,
+					BUFFER_SIZE), "UTF-8");
+		case TAR_LZ4:
+			return new TarArchiveInputStream(new Lz4FrameInputStream(
+					new BufferedInputStream(in, BUFFER_SIZE)), "UTF-8");
+		default:
+			// Sizes of deflated entries follow their data
+			return new ZipArchiveInputStream(new BufferedInputStream(in,
+					BUFFER_SIZE), "UTF-8", true, true);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            blob or file name
+	 * @return format of the archive, or null if the name is not the one of an
+	 *         archive
+	 */
+	public static ArchiveFormat fromFileName(String name) {
+		for (ArchiveFormat format : values()) {
+			if (name.equals(format.fileName)
+					|| name.endsWith("/" + format.fileName)) {
+				return format;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes an archive of files to a stream.
+ */
+public interface Archiver extends Closeable {
+
+	/**
+	 * Adds a file to the archive.
+	 *
+	 * @param file
+	 * @param name
+	 *            entry name, using forward slashes
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void addFile(File file, String name) throws IOException,
+			InterruptedException;
+
+	/**
+	 * Writes the end of the archive and flushes it.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	void finish() throws IOException, InterruptedException;
+
+	/**
+	 * @return number of entries written
+	 */
+	int countEntries();
+
+	/**
+	 * Releases the resources of the archiver. Does not close the
+	 * destination stream.
+	 */
+	void close();
+}
@@ -0,0 +1,122 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream in chunks whose boundaries depend on the content, using a
+ * gear rolling hash with normalized chunk sizes (FastCDC). Inserting or
+ * removing bytes only changes the chunks around the edit, the following
+ * chunks stay the same, so they can be recognized from one version of a
+ * file to the next.
+ */
+public class ContentDefinedChunker {
+
+	public static final int MIN_CHUNK_SIZE = 1024 * 1024;
+
+	public static final int AVG_CHUNK_SIZE = 2 * 1024 * 1024;
+
+	/* Largest block accepted by the storage service version in use */
+	public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/* Harder to match below the average size, easier above it */
+	private static final long MASK_SMALL = -1L << (64 - 22);
+
+	private static final long MASK_LARGE = -1L << (64 - 20);
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// Fixed seed, the boundaries must not change between runs
+		long seed = 0x6a09e667f3bcc909L;
+		for (int i = 0; i < GEAR.length; i++) {
+			seed += 0x9e3779b97f4a7c15L;
+			long z = seed;
+			z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	private final InputStream in;
+
+	private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+
+	private int count;
+
+	private boolean eof;
+
+	public ContentDefinedChunker(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return the next chunk, or null at the end of the stream
+	 * @throws IOException
+	 */
+	public byte[] next() throws IOException {
+		while (!eof && count < buffer.length) {
+			int n = in.read(buffer, count, buffer.length - count);
+			if (n == -1) {
+				eof = true;
+			} else {
+				count += n;
+			}
+		}
+		if (count == 0) {
+			return null;
+		}
+
+		int length = cutPoint(buffer, count);
+		byte[] chunk = Arrays.copyOf(buffer, length);
+		System.arraycopy(buffer, length, buffer, 0, count - length);
+		count -= length;
+		return chunk;
+	}
+
+	/**
+	 * @param data
+	 * @param length
+	 *            number of bytes available in data
+	 * @return length of the first chunk of data
+	 */
+	static int cutPoint(byte[] data, int length) {
+		if (length <= MIN_CHUNK_SIZE) {
+			return length;
+		}
+		int normal = Math.min(AVG_CHUNK_SIZE, length);
+		int max = Math.min(MAX_CHUNK_SIZE, length);
+
+		long hash = 0;
+		int i = MIN_CHUNK_SIZE;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			if ((hash & MASK_SMALL) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < max; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			if ((hash & MASK_LARGE) == 0) {
+				return i + 1;
+			}
+		}
+		return max;
+	}
+}
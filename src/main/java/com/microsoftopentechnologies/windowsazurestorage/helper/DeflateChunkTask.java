@@ -0,0 +1,95 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates one chunk of a larger content, so that the chunks of a content
+ * can be compressed in parallel. Each chunk is primed with the end of the
+ * previous one as preset dictionary. All chunks but the last end with a sync
+ * flush, so that their output can be concatenated into a single raw deflate
+ * stream.
+ */
+final class DeflateChunkTask implements Callable<byte[]> {
+
+	/** Size of the deflate window, the useful size of a dictionary */
+	static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private final byte[] data;
+	private final int length;
+	private final byte[] dictionary;
+	private final int level;
+	private final boolean last;
+
+	/**
+	 * @param data
+	 * @param length
+	 *            number of bytes of data to compress
+	 * @param dictionary
+	 *            end of the previous chunk, or null for the first one
+	 * @param level
+	 * @param last
+	 *            true for the chunk that ends the content
+	 */
+	DeflateChunkTask(byte[] data, int length, byte[] dictionary, int level,
+			boolean last) {
+		this.data = data;
+		this.length = length;
+		this.dictionary = dictionary;
+		this.level = level;
+		this.last = last;
+	}
+
+	public byte[] call() {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(data, 0, length);
+			if (last) {
+				deflater.finish();
+			}
+
+			byte[] buffer = new byte[length + (length >> 3) + 64];
+			int size = 0;
+			while (true) {
+				if (size == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				int available = buffer.length - size;
+				if (last) {
+					size += deflater.deflate(buffer, size, available);
+					if (deflater.finished()) {
+						break;
+					}
+				} else {
+					int n = deflater.deflate(buffer, size, available, Deflater.SYNC_FLUSH);
+					size += n;
+					if (n < available) {
+						break;
+					}
+				}
+			}
+			return Arrays.copyOf(buffer, size);
+		} finally {
+			deflater.end();
+		}
+	}
+}
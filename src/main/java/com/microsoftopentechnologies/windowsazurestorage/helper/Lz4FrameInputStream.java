@@ -0,0 +1,191 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an LZ4 frame made of independent blocks, as written by
+ * {@link Lz4FrameOutputStream} or by the lz4 command line tool with its
+ * default settings.
+ */
+public class Lz4FrameInputStream extends InputStream {
+
+	private static final int VERSION_MASK = 0xC0;
+	private static final int VERSION = 0x40;
+	private static final int BLOCK_INDEPENDENCE = 0x20;
+	private static final int BLOCK_CHECKSUM = 0x10;
+	private static final int CONTENT_SIZE = 0x08;
+	private static final int CONTENT_CHECKSUM = 0x04;
+	private static final int DICTIONARY_ID = 0x01;
+
+	private final DataInputStream in;
+
+	private final LZ4SafeDecompressor decompressor = LZ4Factory
+			.fastestJavaInstance().safeDecompressor();
+
+	private final StreamingXXHash32 checksum = XXHashFactory
+			.fastestJavaInstance().newStreamingHash32(0);
+
+	private final boolean blockChecksum;
+
+	private final boolean contentChecksum;
+
+	private final byte[] compressed;
+
+	private final byte[] buffer;
+
+	private int position;
+
+	private int count;
+
+	private boolean eof;
+
+	/**
+	 * Reads the frame header.
+	 *
+	 * @param in
+	 * @throws IOException
+	 *             if the stream is not a supported LZ4 frame
+	 */
+	public Lz4FrameInputStream(InputStream in) throws IOException {
+		this.in = new DataInputStream(in);
+
+		if (readInt() != Lz4FrameOutputStream.MAGIC) {
+			throw new IOException("Not an LZ4 frame");
+		}
+		int flg = this.in.readUnsignedByte();
+		int bd = this.in.readUnsignedByte();
+		if ((flg & VERSION_MASK) != VERSION) {
+			throw new IOException("Unsupported LZ4 frame version");
+		}
+		if ((flg & BLOCK_INDEPENDENCE) == 0 || (flg & DICTIONARY_ID) != 0) {
+			throw new IOException(
+					"LZ4 frames with dependent blocks or dictionaries are not supported");
+		}
+		blockChecksum = (flg & BLOCK_CHECKSUM) != 0;
+		contentChecksum = (flg & CONTENT_CHECKSUM) != 0;
+		if ((flg & CONTENT_SIZE) != 0) {
+			this.in.readLong();
+		}
+		// Header checksum
+		this.in.readUnsignedByte();
+
+		int blockSizeId = (bd >> 4) & 0x07;
+		if (blockSizeId < 4) {
+			throw new IOException("Invalid LZ4 block size");
+		}
+		int maxBlockSize = 1 << (8 + 2 * blockSizeId);
+		compressed = new byte[maxBlockSize];
+		buffer = new byte[maxBlockSize];
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, count - position);
+		System.arraycopy(buffer, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return count - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean fill() throws IOException {
+		while (position == count) {
+			if (eof) {
+				return false;
+			}
+			readBlock();
+		}
+		return true;
+	}
+
+	private void readBlock() throws IOException {
+		int header = readInt();
+		position = 0;
+		count = 0;
+		if (header == 0) {
+			eof = true;
+			if (contentChecksum && readInt() != checksum.getValue()) {
+				throw new IOException("LZ4 content checksum mismatch");
+			}
+			return;
+		}
+
+		int size = header & ~Lz4FrameOutputStream.UNCOMPRESSED_FLAG;
+		if (size > compressed.length) {
+			throw new IOException("Invalid LZ4 block size " + size);
+		}
+		if ((header & Lz4FrameOutputStream.UNCOMPRESSED_FLAG) != 0) {
+			in.readFully(buffer, 0, size);
+			count = size;
+		} else {
+			in.readFully(compressed, 0, size);
+			try {
+				count = decompressor.decompress(compressed, 0, size, buffer, 0,
+						buffer.length);
+			} catch (LZ4Exception e) {
+				throw new IOException("Corrupted LZ4 block", e);
+			}
+		}
+		if (blockChecksum) {
+			readInt();
+		}
+		checksum.update(buffer, 0, count);
+	}
+
+	private int readInt() throws IOException {
+		int b0 = in.read();
+		int b1 = in.read();
+		int b2 = in.read();
+		int b3 = in.read();
+		if ((b0 | b1 | b2 | b3) < 0) {
+			throw new EOFException();
+		}
+		return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * LZ4 frame output stream compressing on several threads. The frame uses
+ * independent 4 MB blocks and a content checksum, it can be read by the
+ * lz4 command line tool.
+ */
+public class Lz4FrameOutputStream extends ParallelCompressingOutputStream {
+
+	static final int MAGIC = 0x184D2204;
+
+	static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	/* Version 01, independent blocks, content checksum */
+	private static final int FLG = 0x64;
+
+	/* 4 MB maximum block size */
+	private static final int BD = 0x70;
+
+	/* Levels from which the slower high compression mode is used */
+	private static final int HIGH_COMPRESSION_LEVEL = 7;
+
+	static final int UNCOMPRESSED_FLAG = 0x80000000;
+
+	private final LZ4Compressor compressor;
+
+	private final StreamingXXHash32 checksum = XXHashFactory
+			.fastestJavaInstance().newStreamingHash32(0);
+
+	/**
+	 * @param out
+	 * @param level
+	 *            0 to 9, levels from 7 use the high compression mode
+	 * @param threads
+	 *            number of compression threads
+	 */
+	public Lz4FrameOutputStream(OutputStream out, int level, int threads) {
+		super(out, BLOCK_SIZE, threads);
+		LZ4Factory factory = LZ4Factory.fastestJavaInstance();
+		this.compressor = level >= HIGH_COMPRESSION_LEVEL ? factory
+				.highCompressor() : factory.fastCompressor();
+	}
+
+	@Override
+	protected Callable<byte[]> compress(final byte[] data, final int length,
+			byte[] previous, boolean last) {
+		return new Callable<byte[]>() {
+			public byte[] call() {
+				if (length == 0) {
+					return new byte[0];
+				}
+				int maxLength = compressor.maxCompressedLength(length);
+				byte[] block = new byte[4 + maxLength];
+				int size = compressor.compress(data, 0, length, block, 4, maxLength);
+				if (size >= length) {
+					// Incompressible, stored as is
+					block = new byte[4 + length];
+					System.arraycopy(data, 0, block, 4, length);
+					putInt(block, 0, length | UNCOMPRESSED_FLAG);
+					return block;
+				}
+				putInt(block, 0, size);
+				return Arrays.copyOf(block, 4 + size);
+			}
+		};
+	}
+
+	@Override
+	protected void writeHeader(OutputStream out) throws IOException {
+		byte[] header = new byte[7];
+		putInt(header, 0, MAGIC);
+		header[4] = (byte) FLG;
+		header[5] = (byte) BD;
+		header[6] = (byte) (XXHashFactory.fastestJavaInstance().hash32()
+				.hash(header, 4, 2, 0) >> 8);
+		out.write(header);
+	}
+
+	@Override
+	protected void update(byte[] b, int off, int len) {
+		checksum.update(b, off, len);
+	}
+
+	@Override
+	protected void writeTrailer(OutputStream out) throws IOException {
+		byte[] trailer = new byte[8];
+		putInt(trailer, 0, 0);
+		putInt(trailer, 4, checksum.getValue());
+		out.write(trailer);
+	}
+
+	static void putInt(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >>> 8);
+		b[off + 2] = (byte) (value >>> 16);
+		b[off + 3] = (byte) (value >>> 24);
+	}
+}
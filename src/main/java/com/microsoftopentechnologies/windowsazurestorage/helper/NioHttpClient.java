@@ -0,0 +1,1031 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * HTTP/1.1 client running all its connections on a single thread, with a
+ * selector telling which connections can be read or written. A request
+ * only holds a connection while it is sent and answered, not a thread, so
+ * thousands of requests can be in flight at once.
+ *
+ * Connections are kept alive and reused, up to a maximum per host; the
+ * requests beyond it wait for a connection. A request sent on a reused
+ * connection that the server closed meanwhile is sent again once on a new
+ * connection. HTTPS goes through an {@link SSLEngine} with the default
+ * trust store and host name verification. Proxies are not supported.
+ *
+ * Request and response bodies are held in memory. Callbacks run on the
+ * thread of the client and must not block.
+ */
+public class NioHttpClient implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(NioHttpClient.class.getName());
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final long SELECT_TIMEOUT = 1000;
+
+	/* Idle connections are closed after this time */
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+
+	private static final int PLAIN_BUFFER_SIZE = 64 * 1024;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * Receives the outcome of a request.
+	 */
+	public interface Callback {
+		/**
+		 * @param response
+		 *            response of the server, whatever its status
+		 */
+		void completed(Response response);
+
+		/**
+		 * @param e
+		 *            failure to send the request or read the response
+		 */
+		void failed(Exception e);
+	}
+
+	private final int maxConnectionsPerHost;
+
+	private final long timeoutMillis;
+
+	private final SSLContext sslContext;
+
+	private final Selector selector;
+
+	private final Thread loop;
+
+	private final ConcurrentLinkedQueue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+
+	private volatile boolean closed;
+
+	/* Only used by the thread of the client */
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+	private final Set<Connection> connections = new HashSet<Connection>();
+
+	/**
+	 * @param name
+	 *            name of the thread of the client
+	 * @param maxConnectionsPerHost
+	 * @param timeoutMillis
+	 *            time a request can go without sending or receiving data
+	 * @throws IOException
+	 */
+	public NioHttpClient(String name, int maxConnectionsPerHost,
+			long timeoutMillis) throws IOException {
+		this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+		this.timeoutMillis = timeoutMillis;
+		try {
+			this.sslContext = SSLContext.getDefault();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		this.selector = Selector.open();
+		this.loop = new Thread(new Runnable() {
+			public void run() {
+				runLoop();
+			}
+		}, name);
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	/**
+	 * Sends a request, the callback being called once it is answered or has
+	 * failed.
+	 *
+	 * @param request
+	 * @param callback
+	 */
+	public void execute(Request request, Callback callback) {
+		if (closed) {
+			callback.failed(new IOException("HTTP client is closed"));
+			return;
+		}
+		submitted.add(new Exchange(request, callback));
+		selector.wakeup();
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param request
+	 * @return response of the server, whatever its status
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Response execute(Request request) throws IOException,
+			InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final Response[] response = new Response[1];
+		final Exception[] failure = new Exception[1];
+		execute(request, new Callback() {
+			public void completed(Response r) {
+				response[0] = r;
+				done.countDown();
+			}
+
+			public void failed(Exception e) {
+				failure[0] = e;
+				done.countDown();
+			}
+		});
+		done.await();
+		if (failure[0] instanceof IOException) {
+			throw (IOException) failure[0];
+		}
+		if (failure[0] != null) {
+			throw new IOException(failure[0].getMessage(), failure[0]);
+		}
+		return response[0];
+	}
+
+	/**
+	 * Closes all connections, failing the requests in flight.
+	 */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	private void runLoop() {
+		try {
+			while (!closed) {
+				selector.select(SELECT_TIMEOUT);
+				Exchange exchange;
+				while ((exchange = submitted.poll()) != null) {
+					dispatch(exchange);
+				}
+				for (SelectionKey key : selector.selectedKeys()) {
+					Connection connection = (Connection) key.attachment();
+					try {
+						connection.handle(key);
+					} catch (Exception e) {
+						connection.failed(e);
+					}
+				}
+				selector.selectedKeys().clear();
+				expire();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "HTTP client loop failed", e);
+		} finally {
+			closed = true;
+			IOException failure = new IOException("HTTP client is closed");
+			for (Connection connection : new ArrayList<Connection>(connections)) {
+				connection.failed(failure);
+			}
+			for (Host host : hosts.values()) {
+				for (Exchange pending : host.pending) {
+					pending.failed(failure);
+				}
+				host.pending.clear();
+			}
+			Exchange exchange;
+			while ((exchange = submitted.poll()) != null) {
+				exchange.failed(failure);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing left to use it
+			}
+		}
+	}
+
+	/**
+	 * Starts an exchange on an idle connection of its host, on a new one, or
+	 * queues it until a connection of the host is free.
+	 */
+	private void dispatch(Exchange exchange) {
+		URI uri = exchange.request.uri;
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+		String hostKey = uri.getScheme().toLowerCase(Locale.ENGLISH) + "://"
+				+ uri.getHost() + ":" + port;
+		Host host = hosts.get(hostKey);
+		if (host == null) {
+			host = new Host(uri.getHost(), port, secure);
+			hosts.put(hostKey, host);
+		}
+
+		Connection idle = host.idle.pollLast();
+		if (idle != null) {
+			idle.start(exchange);
+		} else if (host.open < maxConnectionsPerHost) {
+			try {
+				new Connection(host).start(exchange);
+			} catch (IOException e) {
+				exchange.failed(e);
+			} catch (UnresolvedAddressException e) {
+				exchange.failed(new IOException("Unknown host " + host.name, e));
+			}
+		} else {
+			host.pending.add(exchange);
+		}
+	}
+
+	/**
+	 * Fails the requests that made no progress for too long, and closes the
+	 * connections idle for too long.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		for (Connection connection : new ArrayList<Connection>(connections)) {
+			if (connection.exchange != null) {
+				if (now - connection.lastActivity > timeoutMillis) {
+					connection.failed(new SocketTimeoutException("No response from "
+							+ connection.host.name + " in " + timeoutMillis + " ms"));
+				}
+			} else if (now - connection.lastActivity > IDLE_TIMEOUT) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Request to send.
+	 */
+	public static final class Request {
+
+		private final String method;
+
+		private final URI uri;
+
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+		private byte[] body;
+
+		private int bodyOffset;
+
+		private int bodyLength;
+
+		/**
+		 * @param method
+		 * @param uri
+		 *            URI of the resource, already encoded
+		 */
+		public Request(String method, URI uri) {
+			this.method = method;
+			this.uri = uri;
+		}
+
+		/**
+		 * @param name
+		 * @param value
+		 * @return this request
+		 */
+		public Request header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		/**
+		 * @param data
+		 *            not copied, must not change until the request completes
+		 * @param offset
+		 * @param length
+		 * @return this request
+		 */
+		public Request body(byte[] data, int offset, int length) {
+			this.body = data;
+			this.bodyOffset = offset;
+			this.bodyLength = length;
+			return this;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public URI getUri() {
+			return uri;
+		}
+
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public int getBodyOffset() {
+			return bodyOffset;
+		}
+
+		public int getBodyLength() {
+			return body == null ? 0 : bodyLength;
+		}
+	}
+
+	/**
+	 * Response of the server.
+	 */
+	public static final class Response {
+
+		private final int status;
+
+		private final Map<String, String> headers;
+
+		private final byte[] body;
+
+		Response(int status, Map<String, String> headers, byte[] body) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * @param name
+		 * @return value of the header, or null
+		 */
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase(Locale.ENGLISH));
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+	}
+
+	/**
+	 * Request with its callback, and the number of times it was sent.
+	 */
+	private static final class Exchange {
+
+		private final Request request;
+
+		private final Callback callback;
+
+		private int attempts;
+
+		Exchange(Request request, Callback callback) {
+			this.request = request;
+			this.callback = callback;
+		}
+
+		void completed(Response response) {
+			try {
+				callback.completed(response);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "HTTP callback failed", e);
+			}
+		}
+
+		void failed(Exception e) {
+			try {
+				callback.failed(e);
+			} catch (RuntimeException re) {
+				LOGGER.log(Level.WARNING, "HTTP callback failed", re);
+			}
+		}
+	}
+
+	/**
+	 * Connections of a host and the requests waiting for one.
+	 */
+	private static final class Host {
+
+		private final String name;
+
+		private final int port;
+
+		private final boolean secure;
+
+		private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+
+		private final ArrayDeque<Exchange> pending = new ArrayDeque<Exchange>();
+
+		private int open;
+
+		Host(String name, int port, boolean secure) {
+			this.name = name;
+			this.port = port;
+			this.secure = secure;
+		}
+	}
+
+	/**
+	 * Connection to a host, sending one request at a time.
+	 */
+	private final class Connection {
+
+		private final Host host;
+
+		private final SocketChannel channel;
+
+		private final SelectionKey key;
+
+		/* Null for plain HTTP */
+		private final SSLEngine engine;
+
+		/* Bytes received, still encrypted with TLS */
+		private ByteBuffer netIn;
+
+		/* Bytes to send, already encrypted */
+		private ByteBuffer netOut;
+
+		/* Bytes received, decrypted */
+		private ByteBuffer appIn;
+
+		/* Request to send, head and body */
+		private ByteBuffer[] appOut;
+
+		private boolean connected;
+
+		private boolean closedConnection;
+
+		private Exchange exchange;
+
+		private ResponseReader reader;
+
+		/* True once a request was answered on the connection */
+		private boolean reused;
+
+		private long lastActivity = System.currentTimeMillis();
+
+		Connection(Host host) throws IOException {
+			this.host = host;
+			this.channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				if (host.secure) {
+					engine = sslContext.createSSLEngine(host.name, host.port);
+					engine.setUseClientMode(true);
+					SSLParameters parameters = engine.getSSLParameters();
+					parameters.setEndpointIdentificationAlgorithm("HTTPS");
+					engine.setSSLParameters(parameters);
+					netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+					netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+					netOut.flip();
+					appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+				} else {
+					engine = null;
+					appIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+				}
+				connected = channel.connect(new InetSocketAddress(host.name, host.port));
+				key = channel.register(selector, connected ? SelectionKey.OP_READ
+						: SelectionKey.OP_CONNECT, this);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			} catch (RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+			if (connected && engine != null) {
+				engine.beginHandshake();
+			}
+			host.open++;
+			connections.add(this);
+		}
+
+		void start(Exchange exchange) {
+			this.exchange = exchange;
+			exchange.attempts++;
+			reader = new ResponseReader("HEAD".equals(exchange.request.method));
+			appOut = encode(exchange.request);
+			lastActivity = System.currentTimeMillis();
+			if (connected) {
+				try {
+					pump();
+					updateInterest();
+				} catch (Exception e) {
+					failed(e);
+				}
+			}
+		}
+
+		void handle(SelectionKey key) throws IOException {
+			if (!key.isValid()) {
+				return;
+			}
+			if (!connected) {
+				if (!key.isConnectable() || !channel.finishConnect()) {
+					return;
+				}
+				connected = true;
+				lastActivity = System.currentTimeMillis();
+				if (engine != null) {
+					engine.beginHandshake();
+				}
+			}
+			if (key.isReadable()) {
+				read();
+			}
+			if (!closedConnection) {
+				pump();
+			}
+			if (!closedConnection) {
+				updateInterest();
+			}
+		}
+
+		/**
+		 * Reads what the server sent so far.
+		 */
+		private void read() throws IOException {
+			ByteBuffer target = engine != null ? netIn : appIn;
+			if (!target.hasRemaining()) {
+				// Consumed by the next pump
+				return;
+			}
+			int read = channel.read(target);
+			if (read > 0) {
+				lastActivity = System.currentTimeMillis();
+			} else if (read == -1) {
+				if (exchange == null) {
+					// Closed by the server while idle
+					close();
+					return;
+				}
+				// Whatever is buffered is still parsed first
+				pump();
+				if (!closedConnection && exchange != null) {
+					if (reader.readsUntilClose()) {
+						Exchange done = exchange;
+						Response response = reader.response();
+						close();
+						done.completed(response);
+					} else {
+						throw new EOFException("Connection closed by " + host.name);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Moves data as far as possible: TLS handshake, request bytes to the
+		 * socket, received bytes to the response.
+		 */
+		private void pump() throws IOException {
+			boolean progress;
+			do {
+				progress = engine != null ? pumpTls() : pumpPlain();
+				if (appIn.position() > 0) {
+					if (exchange == null) {
+						throw new IOException("Unexpected data from " + host.name);
+					}
+					appIn.flip();
+					boolean done = reader.consume(appIn);
+					appIn.compact();
+					progress = true;
+					if (done) {
+						completed();
+					}
+				}
+			} while (progress && !closedConnection);
+		}
+
+		private boolean pumpPlain() throws IOException {
+			if (appOut == null || !hasRemaining(appOut)) {
+				return false;
+			}
+			long written = channel.write(appOut);
+			if (written > 0) {
+				lastActivity = System.currentTimeMillis();
+			}
+			return written > 0;
+		}
+
+		private boolean pumpTls() throws IOException {
+			boolean progress = false;
+			if (netOut.hasRemaining()) {
+				if (channel.write(netOut) > 0) {
+					lastActivity = System.currentTimeMillis();
+					progress = true;
+				}
+				if (netOut.hasRemaining()) {
+					// Waiting for the socket, incoming data can still be read
+					return unwrap() || progress;
+				}
+			}
+
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				// Certificate checks, short enough to run on the loop
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				return true;
+			case NEED_WRAP:
+				return wrap(EMPTY) || progress;
+			case NEED_UNWRAP:
+				return unwrap() || progress;
+			default:
+				// Application data, or a handshake status of a newer JVM
+				if (appOut != null && hasRemaining(appOut)) {
+					progress |= wrap(appOut);
+				}
+				return unwrap() || progress;
+			}
+		}
+
+		private boolean wrap(ByteBuffer... source) throws SSLException {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(source, netOut);
+			netOut.flip();
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS session closed by " + host.name);
+			}
+			return result.bytesProduced() > 0 || result.bytesConsumed() > 0
+					|| result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP;
+		}
+
+		private boolean unwrap() throws IOException {
+			if (netIn.position() == 0) {
+				return false;
+			}
+			netIn.flip();
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				netIn.compact();
+			}
+			switch (result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				if (!netIn.hasRemaining()) {
+					netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+				}
+				return false;
+			case BUFFER_OVERFLOW:
+				appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+				return true;
+			case CLOSED:
+				throw new EOFException("TLS session closed by " + host.name);
+			default:
+				return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+			}
+		}
+
+		private void updateInterest() {
+			if (!key.isValid()) {
+				return;
+			}
+			int ops = connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+			boolean pendingOutput = engine != null ? netOut.hasRemaining()
+					: appOut != null && hasRemaining(appOut);
+			if (connected && pendingOutput) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		private void completed() {
+			Exchange done = exchange;
+			Response response = reader.response();
+			exchange = null;
+			reader = null;
+			appOut = null;
+			reused = true;
+			lastActivity = System.currentTimeMillis();
+			if (response.getHeader("Connection") != null
+					&& response.getHeader("Connection").equalsIgnoreCase("close")) {
+				close();
+			} else if (!host.pending.isEmpty()) {
+				start(host.pending.poll());
+			} else {
+				host.idle.add(this);
+			}
+			done.completed(response);
+		}
+
+		/**
+		 * Closes the connection after a failure, sending the request again
+		 * if the server closed a reused connection before answering.
+		 */
+		void failed(Exception e) {
+			Exchange failedExchange = exchange;
+			boolean answered = reader != null && reader.started();
+			exchange = null;
+			close();
+			if (failedExchange == null) {
+				return;
+			}
+			if (reused && !answered && failedExchange.attempts == 1 && !closed) {
+				dispatch(failedExchange);
+			} else {
+				failedExchange.failed(e);
+			}
+		}
+
+		void close() {
+			if (closedConnection) {
+				return;
+			}
+			closedConnection = true;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Closed anyway
+			}
+			host.open--;
+			host.idle.remove(this);
+			connections.remove(this);
+			if (exchange != null) {
+				Exchange lost = exchange;
+				exchange = null;
+				lost.failed(new IOException("Connection to " + host.name + " closed"));
+			}
+			// A slot is free for the waiting requests
+			while (!closed && !host.pending.isEmpty()
+					&& host.open < maxConnectionsPerHost) {
+				dispatch(host.pending.poll());
+			}
+		}
+
+		private ByteBuffer[] encode(Request request) {
+			StringBuilder head = new StringBuilder();
+			String path = request.uri.getRawPath();
+			if (path == null || path.isEmpty()) {
+				path = "/";
+			}
+			head.append(request.method).append(' ').append(path);
+			if (request.uri.getRawQuery() != null) {
+				head.append('?').append(request.uri.getRawQuery());
+			}
+			head.append(" HTTP/1.1\r\nHost: ").append(host.name);
+			if (request.uri.getPort() != -1) {
+				head.append(':').append(request.uri.getPort());
+			}
+			head.append("\r\n");
+			for (Map.Entry<String, String> header : request.headers.entrySet()) {
+				head.append(header.getKey()).append(": ").append(header.getValue())
+						.append("\r\n");
+			}
+			if (request.body != null || "PUT".equals(request.method)
+					|| "POST".equals(request.method)) {
+				head.append("Content-Length: ").append(request.getBodyLength())
+						.append("\r\n");
+			}
+			head.append("\r\n");
+			ByteBuffer headBuffer = ByteBuffer.wrap(head.toString().getBytes(ASCII));
+			if (request.body == null) {
+				return new ByteBuffer[] { headBuffer };
+			}
+			return new ByteBuffer[] { headBuffer, ByteBuffer.wrap(request.body,
+					request.bodyOffset, request.bodyLength) };
+		}
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static ByteBuffer enlarge(ByteBuffer buffer, int increment) {
+		ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + increment);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	/**
+	 * Parses a response as its bytes arrive: status line, headers, then a
+	 * body with a length, in chunks, or up to the end of the connection.
+	 */
+	private static final class ResponseReader {
+
+		private enum State {
+			HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE
+		}
+
+		private final boolean noBody;
+
+		private State state = State.HEAD;
+
+		private boolean started;
+
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		private int status;
+
+		private final Map<String, String> headers = new HashMap<String, String>();
+
+		private byte[] body;
+
+		private int bodyPosition;
+
+		private ByteArrayOutputStream chunkedBody;
+
+		private long chunkRemaining;
+
+		ResponseReader(boolean noBody) {
+			this.noBody = noBody;
+		}
+
+		boolean started() {
+			return started;
+		}
+
+		boolean readsUntilClose() {
+			return state == State.UNTIL_CLOSE;
+		}
+
+		/**
+		 * @param data
+		 *            received bytes, all consumed
+		 * @return true once the response is complete
+		 * @throws IOException
+		 */
+		boolean consume(ByteBuffer data) throws IOException {
+			if (data.hasRemaining()) {
+				started = true;
+			}
+			while (data.hasRemaining() && state != State.DONE) {
+				switch (state) {
+				case HEAD:
+				case CHUNK_SIZE:
+				case CHUNK_END:
+				case TRAILERS:
+					String text = readLine(data);
+					if (text != null) {
+						onLine(text);
+					}
+					break;
+				case BODY:
+					int count = Math.min(data.remaining(), body.length - bodyPosition);
+					data.get(body, bodyPosition, count);
+					bodyPosition += count;
+					if (bodyPosition == body.length) {
+						state = State.DONE;
+					}
+					break;
+				case CHUNK_DATA:
+					int chunk = (int) Math.min(data.remaining(), chunkRemaining);
+					byte[] bytes = new byte[chunk];
+					data.get(bytes);
+					chunkedBody.write(bytes);
+					chunkRemaining -= chunk;
+					if (chunkRemaining == 0) {
+						state = State.CHUNK_END;
+					}
+					break;
+				case UNTIL_CLOSE:
+					byte[] rest = new byte[data.remaining()];
+					data.get(rest);
+					chunkedBody.write(rest);
+					break;
+				default:
+					break;
+				}
+			}
+			if (data.hasRemaining()) {
+				throw new IOException("Unexpected data after response");
+			}
+			return state == State.DONE;
+		}
+
+		private String readLine(ByteBuffer data) {
+			while (data.hasRemaining()) {
+				byte b = data.get();
+				if (b == '\n') {
+					String text = new String(line.toByteArray(), ASCII);
+					line.reset();
+					return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+				}
+				line.write(b);
+			}
+			return null;
+		}
+
+		private void onLine(String text) throws IOException {
+			switch (state) {
+			case HEAD:
+				if (status == 0) {
+					String[] parts = text.split(" ", 3);
+					if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+						throw new IOException("Invalid status line: " + text);
+					}
+					status = Integer.parseInt(parts[1]);
+					if (parts[0].equals("HTTP/1.0")) {
+						headers.put("connection", "close");
+					}
+				} else if (!text.isEmpty()) {
+					int colon = text.indexOf(':');
+					if (colon > 0) {
+						headers.put(text.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+								text.substring(colon + 1).trim());
+					}
+				} else if (status >= 100 && status < 200) {
+					// Interim response, the final one follows
+					status = 0;
+					headers.clear();
+				} else {
+					startBody();
+				}
+				break;
+			case CHUNK_SIZE:
+				int extension = text.indexOf(';');
+				chunkRemaining = Long.parseLong((extension == -1 ? text
+						: text.substring(0, extension)).trim(), 16);
+				state = chunkRemaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+				break;
+			case CHUNK_END:
+				state = State.CHUNK_SIZE;
+				break;
+			case TRAILERS:
+				if (text.isEmpty()) {
+					body = chunkedBody.toByteArray();
+					state = State.DONE;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void startBody() throws IOException {
+			String length = headers.get("content-length");
+			String encoding = headers.get("transfer-encoding");
+			if (noBody || status == 204 || status == 304) {
+				body = new byte[0];
+				state = State.DONE;
+			} else if (encoding != null && encoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+				chunkedBody = new ByteArrayOutputStream();
+				state = State.CHUNK_SIZE;
+			} else if (length != null) {
+				long bodyLength = Long.parseLong(length);
+				if (bodyLength > Integer.MAX_VALUE - 8) {
+					throw new IOException("Response body too large: " + bodyLength);
+				}
+				body = new byte[(int) bodyLength];
+				state = bodyLength == 0 ? State.DONE : State.BODY;
+			} else {
+				chunkedBody = new ByteArrayOutputStream();
+				headers.put("connection", "close");
+				state = State.UNTIL_CLOSE;
+			}
+		}
+
+		Response response() {
+			byte[] content = state == State.UNTIL_CLOSE ? chunkedBody.toByteArray() : body;
+			return new Response(status, headers, content);
+		}
+	}
+}
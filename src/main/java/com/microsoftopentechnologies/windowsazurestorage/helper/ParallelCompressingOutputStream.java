@@ -0,0 +1,217 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream compressing its content in fixed size blocks on several
+ * threads. The compressed blocks are written in order, subclasses define
+ * how blocks are compressed and what surrounds them.
+ */
+public abstract class ParallelCompressingOutputStream extends OutputStream {
+
+	private final OutputStream out;
+
+	private final int blockSize;
+
+	private final ExecutorService executor;
+
+	/* Maximum number of blocks being compressed ahead of the writer */
+	private final int window;
+
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	private byte[] buffer;
+
+	private int count;
+
+	/* Previous block, compressors may use it as dictionary */
+	private byte[] previous;
+
+	private boolean started;
+
+	private boolean finished;
+
+	/**
+	 * @param out
+	 *            destination of the compressed content
+	 * @param blockSize
+	 *            size of the blocks compressed independently
+	 * @param threads
+	 *            number of compression threads
+	 */
+	protected ParallelCompressingOutputStream(OutputStream out, int blockSize,
+			int threads) {
+		this.out = out;
+		this.blockSize = blockSize;
+		this.buffer = new byte[blockSize];
+		int poolSize = Math.max(1, threads);
+		this.window = poolSize * 2;
+		this.executor = Executors.newFixedThreadPool(poolSize,
+				new NamingThreadFactory(new DaemonThreadFactory(),
+						"Azure archive compression"));
+	}
+
+	/**
+	 * @param data
+	 * @param length
+	 *            number of bytes of data to compress
+	 * @param previous
+	 *            previous block, always full, or null for the first one
+	 * @param last
+	 *            true for the block that ends the content, which may be empty
+	 * @return task compressing the block
+	 */
+	protected abstract Callable<byte[]> compress(byte[] data, int length,
+			byte[] previous, boolean last);
+
+	/**
+	 * Writes what precedes the first block.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	protected abstract void writeHeader(OutputStream out) throws IOException;
+
+	/**
+	 * Accounts for uncompressed data, typically in a checksum.
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	protected abstract void update(byte[] b, int off, int len);
+
+	/**
+	 * Writes what follows the last block.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	protected abstract void writeTrailer(OutputStream out) throws IOException;
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			throw new IOException("Stream is finished");
+		}
+		start();
+		update(b, off, len);
+
+		while (len > 0) {
+			int n = Math.min(len, blockSize - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == blockSize) {
+				submit(false);
+			}
+		}
+	}
+
+	/**
+	 * Writes the remaining blocks and the trailer, without closing the
+	 * destination stream.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		start();
+		submit(true);
+		drain(true);
+		writeTrailer(out);
+		out.flush();
+		finished = true;
+		executor.shutdown();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+			out.close();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Stops the compression threads, abandoning the pending blocks.
+	 */
+	public void release() {
+		executor.shutdownNow();
+	}
+
+	private void start() throws IOException {
+		if (!started) {
+			started = true;
+			writeHeader(out);
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		pending.addLast(executor.submit(compress(buffer, count, previous, last)));
+		previous = buffer;
+		buffer = last ? null : new byte[blockSize];
+		count = 0;
+		drain(false);
+	}
+
+	private void drain(boolean force) throws IOException {
+		while (!pending.isEmpty()) {
+			Future<byte[]> head = pending.peekFirst();
+			if (!force && !head.isDone() && pending.size() <= window) {
+				return;
+			}
+			pending.removeFirst();
+			try {
+				byte[] compressed = head.get();
+				out.write(compressed, 0, compressed.length);
+			} catch (InterruptedException e) {
+				throw (IOException) new InterruptedIOException().initCause(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+			}
+		}
+	}
+}
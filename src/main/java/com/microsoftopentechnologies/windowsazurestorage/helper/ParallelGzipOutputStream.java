@@ -0,0 +1,87 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+/**
+ * Gzip output stream deflating on several threads. The content is deflated
+ * in 1 MB chunks, each primed with the end of the previous one, and written
+ * as a single gzip member that any gzip reader can decompress.
+ */
+public class ParallelGzipOutputStream extends ParallelCompressingOutputStream {
+
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0,
+			0, (byte) 0xff };
+
+	private final int level;
+
+	private final CRC32 crc = new CRC32();
+
+	private long size;
+
+	/**
+	 * @param out
+	 * @param level
+	 *            deflate level
+	 * @param threads
+	 *            number of compression threads
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int level, int threads) {
+		super(out, BLOCK_SIZE, threads);
+		this.level = level;
+	}
+
+	@Override
+	protected Callable<byte[]> compress(byte[] data, int length,
+			byte[] previous, boolean last) {
+		byte[] dictionary = previous == null ? null : Arrays.copyOfRange(
+				previous, previous.length - DeflateChunkTask.DICTIONARY_SIZE,
+				previous.length);
+		return new DeflateChunkTask(data, length, dictionary, level, last);
+	}
+
+	@Override
+	protected void writeHeader(OutputStream out) throws IOException {
+		out.write(HEADER);
+	}
+
+	@Override
+	protected void update(byte[] b, int off, int len) {
+		crc.update(b, off, len);
+		size += len;
+	}
+
+	@Override
+	protected void writeTrailer(OutputStream out) throws IOException {
+		writeInt(out, crc.getValue());
+		writeInt(out, size);
+	}
+
+	private static void writeInt(OutputStream out, long value)
+			throws IOException {
+		out.write((int) value);
+		out.write((int) (value >>> 8));
+		out.write((int) (value >>> 16));
+		out.write((int) (value >>> 24));
+	}
+}
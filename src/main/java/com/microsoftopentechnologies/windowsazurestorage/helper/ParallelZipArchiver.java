@@ -0,0 +1,655 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes zip archives using all available cores.
+ *
+ * Entries are split in chunks that are deflated concurrently, each chunk
+ * primed with the last 32 KB of the previous one so the compression ratio
+ * stays close to a single threaded deflate. The compressed chunks are
+ * written in order, so the archive can be streamed. Entries that are already
+ * compressed (jars, zips, images...) are stored as is. Archives larger than
+ * 4 GB or with more than 65535 entries use the zip64 extensions.
+ *
+ * The sizes of a deflated entry follow its data, in 8 bytes for an entry
+ * larger than 4 GB. Streaming readers only expect them there when the local
+ * header has a zip64 extra field, so the local header of such an entry gets
+ * one, decided from the length of the file. Files just below 4 GB are
+ * stored, their compressed size could go past it.
+ */
+public class ParallelZipArchiver implements Archiver {
+
+	private static final int CHUNK_SIZE = 1024 * 1024;
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+	/* Room left below 4 GB for the deflate overhead of incompressible data */
+	private static final long ZIP64_MARGIN = ZIP64_MAGIC / 256;
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int ZIP64_END_SIG = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	private static final int END_SIG = 0x06054b50;
+
+	/* General purpose flags: sizes follow the data, names are UTF-8 */
+	private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+	private static final int FLAG_UTF8 = 0x0800;
+
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	private static final int VERSION_STORED = 10;
+	private static final int VERSION_DEFLATED = 20;
+	private static final int VERSION_ZIP64 = 45;
+	private static final int PLATFORM_UNIX = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* File types that do not shrink when deflated */
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(
+			Arrays.asList("7z", "aar", "apk", "bz2", "cab", "deb", "docx",
+					"ear", "gif", "gz", "hpi", "ipa", "jar", "jpeg", "jpg",
+					"jpi", "lz4", "lzma", "mkv", "mov", "mp3", "mp4", "msi",
+					"nupkg", "ogg", "png", "pptx", "rar", "rpm", "tgz",
+					"txz", "war", "webm", "webp", "whl", "xlsx", "xz", "zip",
+					"zst"));
+
+	private final OutputStream out;
+
+	private final int level;
+
+	private final ExecutorService executor;
+
+	/* Maximum number of chunks being compressed ahead of the writer */
+	private final int window;
+
+	private final Deque<Operation> pending = new ArrayDeque<Operation>();
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	private final byte[] header = new byte[64];
+
+	private int inFlight;
+
+	private long written;
+
+	/**
+	 * @param out
+	 *            destination of the archive
+	 * @param level
+	 *            deflate level, 0 stores every entry and -1 uses the default
+	 *            level
+	 * @param threads
+	 *            number of compression threads
+	 */
+	public ParallelZipArchiver(OutputStream out, int level, int threads) {
+		this.out = out;
+		this.level = level;
+		int poolSize = Math.max(1, threads);
+		this.window = poolSize * 2;
+		this.executor = Executors.newFixedThreadPool(poolSize,
+				new NamingThreadFactory(new DaemonThreadFactory(),
+						"Azure zip compression"));
+	}
+
+	/**
+	 * @param name
+	 *            entry name
+	 * @return true if the content of the entry is known to be compressed
+	 *         already
+	 */
+	public static boolean isCompressed(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot == -1 || dot < name.lastIndexOf('/')) {
+			return false;
+		}
+		return COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1)
+				.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Adds a file to the archive. The compression of the file may still be
+	 * running when this method returns.
+	 *
+	 * @param file
+	 * @param name
+	 *            entry name, using forward slashes
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void addFile(final File file, String name) throws IOException,
+			InterruptedException {
+		final Entry entry = new Entry(name, file.lastModified(), unixMode(file));
+
+		long fileLength = file.length();
+		boolean nearZip64 = fileLength > ZIP64_MAGIC - ZIP64_MARGIN
+				&& fileLength <= ZIP64_MAGIC;
+		if (level == 0 || isCompressed(name) || nearZip64) {
+			entry.method = ZipEntry.STORED;
+			enqueue(new StoredEntry(entry, file, executor.submit(new Callable<long[]>() {
+				public long[] call() throws IOException {
+					return checksum(file);
+				}
+			})));
+			return;
+		}
+
+		entry.method = ZipEntry.DEFLATED;
+		entry.zip64 = fileLength > ZIP64_MAGIC;
+		enqueue(new LocalHeader(entry));
+
+		InputStream in = new FileInputStream(file);
+		try {
+			CRC32 crc = new CRC32();
+			byte[] dictionary = null;
+			byte[] current = new byte[CHUNK_SIZE];
+			int length = readFully(in, current);
+
+			while (true) {
+				byte[] next = null;
+				int nextLength = 0;
+				if (length == CHUNK_SIZE) {
+					next = new byte[CHUNK_SIZE];
+					nextLength = readFully(in, next);
+				}
+				boolean last = nextLength <= 0;
+
+				crc.update(current, 0, length);
+				entry.size += length;
+				enqueue(new Chunk(entry, executor.submit(new DeflateChunkTask(
+						current, length, dictionary, level, last))));
+
+				if (last) {
+					break;
+				}
+				dictionary = Arrays.copyOfRange(current, length - DeflateChunkTask.DICTIONARY_SIZE, length);
+				current = next;
+				length = nextLength;
+			}
+			entry.crc = crc.getValue();
+		} finally {
+			in.close();
+		}
+
+		enqueue(new DataDescriptor(entry));
+	}
+
+	/**
+	 * Writes the remaining entries and the central directory.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void finish() throws IOException, InterruptedException {
+		drain(true);
+
+		long centralDirectoryOffset = written;
+		for (Entry entry : entries) {
+			writeCentralHeader(entry);
+		}
+		long centralDirectorySize = written - centralDirectoryOffset;
+
+		int count = entries.size();
+		if (count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC
+				|| centralDirectorySize >= ZIP64_MAGIC) {
+			long zip64EndOffset = written;
+			int pos = 0;
+			pos = putInt(header, pos, ZIP64_END_SIG);
+			pos = putLong(header, pos, 44);
+			pos = putShort(header, pos, VERSION_ZIP64);
+			pos = putShort(header, pos, VERSION_ZIP64);
+			pos = putInt(header, pos, 0);
+			pos = putInt(header, pos, 0);
+			pos = putLong(header, pos, count);
+			pos = putLong(header, pos, count);
+			pos = putLong(header, pos, centralDirectorySize);
+			pos = putLong(header, pos, centralDirectoryOffset);
+			write(header, 0, pos);
+
+			pos = 0;
+			pos = putInt(header, pos, ZIP64_LOCATOR_SIG);
+			pos = putInt(header, pos, 0);
+			pos = putLong(header, pos, zip64EndOffset);
+			pos = putInt(header, pos, 1);
+			write(header, 0, pos);
+		}
+
+		int pos = 0;
+		pos = putInt(header, pos, END_SIG);
+		pos = putShort(header, pos, 0);
+		pos = putShort(header, pos, 0);
+		pos = putShort(header, pos, Math.min(count, ZIP64_MAGIC_COUNT));
+		pos = putShort(header, pos, Math.min(count, ZIP64_MAGIC_COUNT));
+		pos = putInt(header, pos, Math.min(centralDirectorySize, ZIP64_MAGIC));
+		pos = putInt(header, pos, Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+		pos = putShort(header, pos, 0);
+		write(header, 0, pos);
+		out.flush();
+	}
+
+	/**
+	 * @return number of entries written
+	 */
+	public int countEntries() {
+		return entries.size();
+	}
+
+	/**
+	 * Stops the compression threads. Does not close the destination stream.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void enqueue(Operation operation) throws IOException,
+			InterruptedException {
+		pending.addLast(operation);
+		if (operation.isAsync()) {
+			inFlight++;
+		}
+		drain(false);
+	}
+
+	/**
+	 * Writes the operations at the head of the queue that are ready. Blocks
+	 * on the head when too many chunks are in flight, or when forced.
+	 */
+	private void drain(boolean force) throws IOException,
+			InterruptedException {
+		while (!pending.isEmpty()) {
+			Operation head = pending.peekFirst();
+			if (!force && !head.isDone() && inFlight < window) {
+				return;
+			}
+			pending.removeFirst();
+			if (head.isAsync()) {
+				inFlight--;
+			}
+			head.write();
+		}
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	private void writeLocalHeader(Entry entry) throws IOException {
+		entry.offset = written;
+		boolean deflated = entry.method == ZipEntry.DEFLATED;
+		if (!deflated) {
+			entry.zip64 = entry.size >= ZIP64_MAGIC;
+		}
+		boolean zip64 = entry.zip64;
+
+		int pos = 0;
+		pos = putInt(header, pos, LOCAL_HEADER_SIG);
+		pos = putShort(header, pos, zip64 ? VERSION_ZIP64
+				: (deflated ? VERSION_DEFLATED : VERSION_STORED));
+		pos = putShort(header, pos, deflated ? FLAG_UTF8 | FLAG_DATA_DESCRIPTOR : FLAG_UTF8);
+		pos = putShort(header, pos, entry.method);
+		pos = putInt(header, pos, entry.dosTime);
+		if (deflated) {
+			// Written in the data descriptor
+			pos = putInt(header, pos, 0);
+			pos = putInt(header, pos, zip64 ? ZIP64_MAGIC : 0);
+			pos = putInt(header, pos, zip64 ? ZIP64_MAGIC : 0);
+		} else {
+			pos = putInt(header, pos, entry.crc);
+			pos = putInt(header, pos, zip64 ? ZIP64_MAGIC : entry.size);
+			pos = putInt(header, pos, zip64 ? ZIP64_MAGIC : entry.size);
+		}
+		pos = putShort(header, pos, entry.name.length);
+		pos = putShort(header, pos, zip64 ? 20 : 0);
+		write(header, 0, pos);
+		write(entry.name, 0, entry.name.length);
+
+		if (zip64) {
+			// Sizes of a deflated entry are not known yet, zero until the
+			// data descriptor
+			pos = 0;
+			pos = putShort(header, pos, ZIP64_EXTRA_ID);
+			pos = putShort(header, pos, 16);
+			pos = putLong(header, pos, deflated ? 0 : entry.size);
+			pos = putLong(header, pos, deflated ? 0 : entry.size);
+			write(header, 0, pos);
+		}
+	}
+
+	private void writeDataDescriptor(Entry entry) throws IOException {
+		// Readers without the local zip64 field expect 4 byte sizes, and
+		// some of them only read 8 byte sizes past 4 GB
+		boolean zip64 = entry.size > ZIP64_MAGIC || entry.compressedSize > ZIP64_MAGIC;
+		if (zip64 != entry.zip64) {
+			throw new IOException(new String(entry.name, UTF8)
+					+ " changed while it was archived");
+		}
+		int pos = 0;
+		pos = putInt(header, pos, DATA_DESCRIPTOR_SIG);
+		pos = putInt(header, pos, entry.crc);
+		if (zip64) {
+			pos = putLong(header, pos, entry.compressedSize);
+			pos = putLong(header, pos, entry.size);
+		} else {
+			pos = putInt(header, pos, entry.compressedSize);
+			pos = putInt(header, pos, entry.size);
+		}
+		write(header, 0, pos);
+	}
+
+	private void writeCentralHeader(Entry entry) throws IOException {
+		boolean deflated = entry.method == ZipEntry.DEFLATED;
+
+		// Zip64 extra field, only with the values that do not fit
+		byte[] extra = new byte[28];
+		int extraLength = 4;
+		if (entry.size >= ZIP64_MAGIC) {
+			extraLength = putLong(extra, extraLength, entry.size);
+		}
+		if (entry.compressedSize >= ZIP64_MAGIC) {
+			extraLength = putLong(extra, extraLength, entry.compressedSize);
+		}
+		if (entry.offset >= ZIP64_MAGIC) {
+			extraLength = putLong(extra, extraLength, entry.offset);
+		}
+		boolean zip64 = extraLength > 4;
+		if (zip64) {
+			putShort(extra, 0, ZIP64_EXTRA_ID);
+			putShort(extra, 2, extraLength - 4);
+		} else {
+			extraLength = 0;
+		}
+
+		int versionNeeded = zip64 ? VERSION_ZIP64 : (deflated ? VERSION_DEFLATED : VERSION_STORED);
+		int versionMadeBy = entry.unixMode == -1 ? VERSION_ZIP64
+				: (PLATFORM_UNIX << 8) | VERSION_ZIP64;
+
+		int pos = 0;
+		pos = putInt(header, pos, CENTRAL_HEADER_SIG);
+		pos = putShort(header, pos, versionMadeBy);
+		pos = putShort(header, pos, versionNeeded);
+		pos = putShort(header, pos, deflated ? FLAG_UTF8 | FLAG_DATA_DESCRIPTOR : FLAG_UTF8);
+		pos = putShort(header, pos, entry.method);
+		pos = putInt(header, pos, entry.dosTime);
+		pos = putInt(header, pos, entry.crc);
+		pos = putInt(header, pos, Math.min(entry.compressedSize, ZIP64_MAGIC));
+		pos = putInt(header, pos, Math.min(entry.size, ZIP64_MAGIC));
+		pos = putShort(header, pos, entry.name.length);
+		pos = putShort(header, pos, extraLength);
+		pos = putShort(header, pos, 0);
+		pos = putShort(header, pos, 0);
+		pos = putShort(header, pos, 0);
+		pos = putInt(header, pos, entry.unixMode == -1 ? 0 : ((long) entry.unixMode) << 16);
+		pos = putInt(header, pos, Math.min(entry.offset, ZIP64_MAGIC));
+		write(header, 0, pos);
+		write(entry.name, 0, entry.name.length);
+		write(extra, 0, extraLength);
+	}
+
+	private static long[] checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		long size = 0;
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, n);
+				size += n;
+			}
+		} finally {
+			in.close();
+		}
+		return new long[] { crc.getValue(), size };
+	}
+
+	private static int readFully(InputStream in, byte[] buffer)
+			throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int n = in.read(buffer, total, buffer.length - total);
+			if (n == -1) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * @param file
+	 * @return unix permissions and type of the file, or -1 if unknown
+	 */
+	static int unixMode(File file) {
+		try {
+			Object mode = Files.getAttribute(file.toPath(), "unix:mode");
+			return mode instanceof Integer ? (Integer) mode : -1;
+		} catch (Exception e) {
+			// Not a POSIX file system
+			return -1;
+		}
+	}
+
+	private static int toDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((year - 1980) << 25)
+				| ((calendar.get(Calendar.MONTH) + 1) << 21)
+				| (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+				| (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+				| (calendar.get(Calendar.MINUTE) << 5)
+				| (calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	private static int putShort(byte[] b, int pos, int value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >>> 8);
+		return pos + 2;
+	}
+
+	private static int putInt(byte[] b, int pos, long value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >>> 8);
+		b[pos + 2] = (byte) (value >>> 16);
+		b[pos + 3] = (byte) (value >>> 24);
+		return pos + 4;
+	}
+
+	private static int putLong(byte[] b, int pos, long value) {
+		putInt(b, pos, value);
+		return putInt(b, pos + 4, value >>> 32);
+	}
+
+	private static <V> V get(Future<V> future) throws IOException,
+			InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	private static final class Entry {
+		final byte[] name;
+		final int dosTime;
+		final int unixMode;
+		int method;
+		/* Sizes in the zip64 extra field of the local header */
+		boolean zip64;
+		long crc;
+		long size;
+		long compressedSize;
+		long offset;
+
+		Entry(String name, long time, int unixMode) {
+			this.name = name.getBytes(UTF8);
+			this.dosTime = toDosTime(time);
+			this.unixMode = unixMode;
+		}
+	}
+
+	private abstract class Operation {
+		boolean isAsync() {
+			return false;
+		}
+
+		boolean isDone() {
+			return true;
+		}
+
+		abstract void write() throws IOException, InterruptedException;
+	}
+
+	private final class LocalHeader extends Operation {
+		private final Entry entry;
+
+		LocalHeader(Entry entry) {
+			this.entry = entry;
+		}
+
+		void write() throws IOException {
+			writeLocalHeader(entry);
+		}
+	}
+
+	private final class Chunk extends Operation {
+		private final Entry entry;
+		private final Future<byte[]> compressed;
+
+		Chunk(Entry entry, Future<byte[]> compressed) {
+			this.entry = entry;
+			this.compressed = compressed;
+		}
+
+		boolean isAsync() {
+			return true;
+		}
+
+		boolean isDone() {
+			return compressed.isDone();
+		}
+
+		void write() throws IOException, InterruptedException {
+			byte[] data = get(compressed);
+			ParallelZipArchiver.this.write(data, 0, data.length);
+			entry.compressedSize += data.length;
+		}
+	}
+
+	private final class DataDescriptor extends Operation {
+		private final Entry entry;
+
+		DataDescriptor(Entry entry) {
+			this.entry = entry;
+		}
+
+		void write() throws IOException {
+			writeDataDescriptor(entry);
+			entries.add(entry);
+		}
+	}
+
+	/**
+	 * Entry stored without compression. Its checksum is computed in the
+	 * background, the data is copied once the header has been written.
+	 */
+	private final class StoredEntry extends Operation {
+		private final Entry entry;
+		private final File file;
+		private final Future<long[]> checksum;
+
+		StoredEntry(Entry entry, File file, Future<long[]> checksum) {
+			this.entry = entry;
+			this.file = file;
+			this.checksum = checksum;
+		}
+
+		boolean isAsync() {
+			return true;
+		}
+
+		boolean isDone() {
+			return checksum.isDone();
+		}
+
+		void write() throws IOException, InterruptedException {
+			long[] crcAndSize = get(checksum);
+			entry.crc = crcAndSize[0];
+			entry.size = crcAndSize[1];
+			entry.compressedSize = entry.size;
+			writeLocalHeader(entry);
+
+			long copied = 0;
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			InputStream in = new FileInputStream(file);
+			try {
+				int n;
+				while (copied < entry.size && (n = in.read(buffer, 0,
+						(int) Math.min(buffer.length, entry.size - copied))) != -1) {
+					ParallelZipArchiver.this.write(buffer, 0, n);
+					copied += n;
+				}
+			} finally {
+				in.close();
+			}
+			if (copied != entry.size) {
+				throw new IOException(file + " changed while it was archived");
+			}
+			entries.add(entry);
+		}
+	}
+}
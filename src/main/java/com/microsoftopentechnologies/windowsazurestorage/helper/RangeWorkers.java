@@ -0,0 +1,78 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Budget of the range workers of the large blob transfers running in the
+ * JVM. Each worker holds a buffer of a few megabytes, and every blob in
+ * flight may ask for as many workers as the concurrency of its transfer.
+ * A blob gets the workers still free in the budget, at least one, so the
+ * buffers of all the blobs in flight together stay within a fixed share of
+ * the heap.
+ */
+public final class RangeWorkers {
+
+	private static final int UNIT = 1024 * 1024;
+
+	/* Heap the buffers of the workers may use, a quarter of it by default */
+	private static final int BUDGET_UNITS = (int) Math.max(1, Long.getLong(
+			RangeWorkers.class.getName() + ".budgetBytes",
+			Runtime.getRuntime().maxMemory() / 4) / UNIT);
+
+	private static final Semaphore BUDGET = new Semaphore(BUDGET_UNITS);
+
+	private RangeWorkers() {
+	}
+
+	/**
+	 * Takes workers from the budget, waiting for a single one if none is
+	 * free. Each call must be followed by {@link #release(int, int)}.
+	 *
+	 * @param wanted
+	 *            number of workers the transfer could use
+	 * @param bufferSize
+	 *            size of the buffer of a worker
+	 * @return number of workers granted, between 1 and wanted
+	 * @throws InterruptedException
+	 */
+	public static int acquire(int wanted, int bufferSize)
+			throws InterruptedException {
+		int units = getUnits(bufferSize);
+		BUDGET.acquire(units);
+		int granted = 1;
+		while (granted < wanted && BUDGET.tryAcquire(units)) {
+			granted++;
+		}
+		return granted;
+	}
+
+	/**
+	 * @param workers
+	 *            number of workers granted by {@link #acquire(int, int)}
+	 * @param bufferSize
+	 *            size of the buffer of a worker
+	 */
+	public static void release(int workers, int bufferSize) {
+		BUDGET.release(workers * getUnits(bufferSize));
+	}
+
+	private static int getUnits(int bufferSize) {
+		// A worker always fits, even in a budget smaller than its buffer
+		return Math.min(BUDGET_UNITS, Math.max(1, (bufferSize + UNIT - 1) / UNIT));
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Writes a tar archive through a parallel compressing stream.
+ */
+public class TarArchiver implements Archiver {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ParallelCompressingOutputStream compressed;
+
+	private final TarArchiveOutputStream tar;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int entries;
+
+	/**
+	 * @param compressed
+	 *            stream compressing the tar to the destination
+	 */
+	public TarArchiver(ParallelCompressingOutputStream compressed) {
+		this.compressed = compressed;
+		this.tar = new TarArchiveOutputStream(compressed, "UTF-8");
+		tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+		tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+	}
+
+	public void addFile(File file, String name) throws IOException,
+			InterruptedException {
+		TarArchiveEntry entry = new TarArchiveEntry(file, name);
+		int mode = ParallelZipArchiver.unixMode(file);
+		if (mode != -1) {
+			entry.setMode(mode);
+		}
+		tar.putArchiveEntry(entry);
+
+		// The header announced the size, copy exactly that much
+		long remaining = entry.getSize();
+		InputStream in = new FileInputStream(file);
+		try {
+			while (remaining > 0) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n == -1) {
+					throw new IOException("File shrank while archived: " + file);
+				}
+				tar.write(buffer, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			in.close();
+		}
+		tar.closeArchiveEntry();
+		entries++;
+	}
+
+	public void finish() throws IOException {
+		tar.finish();
+		compressed.finish();
+	}
+
+	public int countEntries() {
+		return entries;
+	}
+
+	public void close() {
+		compressed.release();
+	}
+}
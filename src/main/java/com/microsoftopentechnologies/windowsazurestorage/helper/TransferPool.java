@@ -0,0 +1,187 @@
+/*
+ Copyright 2016 Microsoft Open Technologies, Inc.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded worker pool for blob transfers.
+ *
+ * Pending tasks are ordered by weight, heaviest first, so that large files
+ * start early and do not end up as a long tail. Producers block in
+ * {@link #submit(long, Callable)} once the number of pending tasks reaches the
+ * pool capacity. The first failure cancels the remaining tasks and is
+ * reported by {@link #awaitResults()}.
+ *
+ * @param <T>
+ *            result type of the transfer tasks
+ */
+public class TransferPool<T> {
+
+	private final ThreadPoolExecutor executor;
+
+	private final Semaphore capacity;
+
+	private final List<T> results = new ArrayList<T>();
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            name used for the worker threads
+	 * @param threads
+	 *            number of concurrent transfers
+	 * @param queueCapacity
+	 *            maximum number of tasks waiting for a worker
+	 */
+	public TransferPool(String name, int threads, int queueCapacity) {
+		int poolSize = Math.max(1, threads);
+		this.capacity = new Semaphore(Math.max(1, queueCapacity) + poolSize);
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60L,
+				TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new NamingThreadFactory(new DaemonThreadFactory(), name));
+	}
+
+	/**
+	 * Queues a transfer task, blocking while the pool is at capacity.
+	 *
+	 * @param weight
+	 *            scheduling weight, typically the number of bytes to transfer
+	 * @param task
+	 *            the transfer
+	 * @throws InterruptedException
+	 */
+	public void submit(long weight, Callable<T> task)
+			throws InterruptedException {
+		if (failure.get() != null) {
+			return;
+		}
+		capacity.acquire();
+		try {
+			executor.execute(new Task(weight, sequence.getAndIncrement(), task));
+		} catch (RuntimeException e) {
+			capacity.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if one of the submitted tasks has failed
+	 */
+	public boolean hasFailed() {
+		return failure.get() != null;
+	}
+
+	/**
+	 * @return the first task failure, or null
+	 */
+	public Throwable getFailure() {
+		return failure.get();
+	}
+
+	/**
+	 * Waits for all submitted tasks and shuts the pool down.
+	 *
+	 * @return results of all tasks, in completion order
+	 * @throws WAStorageException
+	 *             wrapping the first task failure
+	 * @throws InterruptedException
+	 */
+	public List<T> awaitResults() throws WAStorageException,
+			InterruptedException {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// keep waiting, the caller thread can be interrupted
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			throw e;
+		}
+
+		Throwable cause = failure.get();
+		if (cause != null) {
+			throw new WAStorageException(cause.getMessage(), cause);
+		}
+
+		synchronized (results) {
+			return new ArrayList<T>(results);
+		}
+	}
+
+	/**
+	 * Abandons all pending tasks and interrupts the running ones.
+	 */
+	public void cancel() {
+		executor.shutdownNow();
+	}
+
+	private final class Task implements Runnable, Comparable<Task> {
+		private final long weight;
+		private final long seq;
+		private final Callable<T> callable;
+
+		Task(long weight, long seq, Callable<T> callable) {
+			this.weight = weight;
+			this.seq = seq;
+			this.callable = callable;
+		}
+
+		public void run() {
+			try {
+				if (failure.get() != null) {
+					return;
+				}
+				T result = callable.call();
+				if (result != null) {
+					synchronized (results) {
+						results.add(result);
+					}
+				}
+			} catch (Throwable t) {
+				if (failure.compareAndSet(null, t)) {
+					List<Runnable> pending = new ArrayList<Runnable>();
+					executor.getQueue().drainTo(pending);
+					capacity.release(pending.size());
+				}
+			} finally {
+				capacity.release();
+			}
+		}
+
+		public int compareTo(Task other) {
+			// Heaviest first, then first come first served
+			if (weight != other.weight) {
+				return weight > other.weight ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class ArtifactPackTest extends TestCase {
+
+	@Test
+	public void testIndexRoundTrip() {
+		List<ArtifactPack.Entry> entries = new ArrayList<ArtifactPack.Entry>();
+		entries.add(new ArtifactPack.Entry("build/a.txt", 0, 12, "md5a=="));
+		entries.add(new ArtifactPack.Entry("build/dir with space/b\u00e9.txt", 12, 0, "md5b=="));
+		// Only the name can hold the field separator, it is the last field
+		entries.add(new ArtifactPack.Entry("build/tab\there.txt", 12, 3000000000L, "md5c=="));
+
+		String index = ArtifactPack.formatIndex(entries);
+		List<ArtifactPack.Entry> parsed = ArtifactPack.parseIndex(index);
+
+		assertEquals(entries.size(), parsed.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEquals(entries.get(i).getName(), parsed.get(i).getName());
+			assertEquals(entries.get(i).getOffset(), parsed.get(i).getOffset());
+			assertEquals(entries.get(i).getLength(), parsed.get(i).getLength());
+			assertEquals(entries.get(i).getContentMD5(), parsed.get(i).getContentMD5());
+		}
+		assertTrue(ArtifactPack.parseIndex("").isEmpty());
+	}
+
+	@Test
+	public void testPackAndIndexNames() {
+		String prefix = ArtifactPack.getPrefix("build/", "set1");
+		assertEquals("build/.azpack/set1-", prefix);
+		assertEquals(".azpack/set1-", ArtifactPack.getPrefix(null, "set1"));
+
+		String pack = prefix + "0" + ArtifactPack.PACK_SUFFIX;
+		String index = ArtifactPack.getIndexName(pack);
+		assertEquals("build/.azpack/set1-0.azpack.idx", index);
+		assertEquals(pack, ArtifactPack.getPackName(index));
+		assertTrue(ArtifactPack.isIndex(index));
+		assertFalse(ArtifactPack.isIndex(pack));
+	}
+
+	@Test
+	public void testIsPackBlob() {
+		assertTrue(ArtifactPack.isPackBlob(".azpack/set1-0.azpack"));
+		assertTrue(ArtifactPack.isPackBlob("build/.azpack/set1-0.azpack.idx"));
+		assertFalse(ArtifactPack.isPackBlob("build/a.azpack"));
+		assertFalse(ArtifactPack.isPackBlob("build/x.azpack/a.txt"));
+		assertFalse(ArtifactPack.isIndex("build/a.azpack.idx"));
+	}
+}
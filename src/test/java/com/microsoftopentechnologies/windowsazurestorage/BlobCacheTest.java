@@ -0,0 +1,90 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class BlobCacheTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("cache-test").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void testDownloadOverALinkedFileKeepsTheCacheEntry() throws Exception {
+		File cacheDir = new File(dir, "cache");
+		BlobCache cache = new BlobCache(cacheDir, Long.MAX_VALUE);
+		File target = new File(dir, "workspace/lib/a.jar");
+		String key = BlobCache.getKey("https://acct/c/a.jar", "etag1");
+
+		assertFalse(cache.fill(key, target, new BlobCache.Loader() {
+			public void load(File file) throws Exception {
+				FileUtils.writeStringToFile(file, "cached content", "UTF-8");
+			}
+		}));
+		assertEquals("cached content", FileUtils.readFileToString(target, "UTF-8"));
+
+		// The next download of the file, without the cache
+		OutputStream out = WAStorageClient.openReplacedFile(target);
+		try {
+			out.write("new content".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		assertEquals("new content", FileUtils.readFileToString(target, "UTF-8"));
+		File entry = new File(cacheDir, key);
+		assertEquals("cached content", FileUtils.readFileToString(entry, "UTF-8"));
+		assertTrue(isReadOnly(entry));
+
+		// Another build still gets the cached content
+		File other = new File(dir, "other/a.jar");
+		assertTrue(cache.fill(key, other, new BlobCache.Loader() {
+			public void load(File file) throws Exception {
+				fail("cached");
+			}
+		}));
+		assertEquals("cached content", FileUtils.readFileToString(other, "UTF-8"));
+	}
+
+	@Test
+	public void testEvictionLeavesTheLinkedFilesReadOnly() throws Exception {
+		File cacheDir = new File(dir, "cache");
+		BlobCache cache = new BlobCache(cacheDir, 10);
+		File target = new File(dir, "workspace/a.txt");
+		cache.fill(BlobCache.getKey("https://acct/c/a.txt", "1"), target,
+				new BlobCache.Loader() {
+					public void load(File file) throws Exception {
+						FileUtils.writeStringToFile(file, "more than ten bytes", "UTF-8");
+					}
+				});
+		// Over the maximum size, evicted once released
+		assertEquals(0, cacheDir.list().length);
+		assertEquals("more than ten bytes", FileUtils.readFileToString(target, "UTF-8"));
+		assertTrue(isReadOnly(target));
+	}
+
+	private static boolean isReadOnly(File file) throws Exception {
+		// By its mode, also for a user who can write anything
+		if (Files.getFileAttributeView(file.toPath(), PosixFileAttributeView.class) != null) {
+			return !Files.getPosixFilePermissions(file.toPath()).contains(
+					PosixFilePermission.OWNER_WRITE);
+		}
+		return !file.canWrite();
+	}
+}
@@ -0,0 +1,102 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoftopentechnologies.windowsazurestorage.exceptions.WAStorageException;
+
+import junit.framework.TestCase;
+
+public class ContentAddressedStoreTest extends TestCase {
+
+	@Test
+	public void testGetKeyShardsByTheFirstTwoDigits() {
+		assertEquals("sha256/ab/abcdef", ContentAddressedStore.getKey("abcdef"));
+	}
+
+	@Test
+	public void testKeysAreGroupedByShardInListingOrder() {
+		Map<String, SortedSet<String>> shards = ContentAddressedStore.groupByShard(
+				Arrays.asList("sha256/ab/abff", "sha256/cd/cd00", "sha256/ab/ab01"));
+		assertEquals(Arrays.asList("sha256/ab/", "sha256/cd/"),
+				new ArrayList<String>(shards.keySet()));
+		assertEquals(Arrays.asList("sha256/ab/ab01", "sha256/ab/abff"),
+				new ArrayList<String>(shards.get("sha256/ab/")));
+	}
+
+	@Test
+	public void testKeysAfterAPartialListingAreLeftToCheck() {
+		SortedSet<String> keys = new TreeSet<String>(Arrays.asList(
+				"sha256/ab/ab01", "sha256/ab/ab02", "sha256/ab/abff"));
+		assertEquals(keys, ContentAddressedStore.getKeysAfter(keys, null));
+		// The last listed name is answered by the listing
+		assertEquals(Arrays.asList("sha256/ab/abff"), new ArrayList<String>(
+				ContentAddressedStore.getKeysAfter(keys, "sha256/ab/ab02")));
+		assertEquals(Arrays.asList("sha256/ab/ab02", "sha256/ab/abff"),
+				new ArrayList<String>(ContentAddressedStore.getKeysAfter(keys,
+						"sha256/ab/ab01a")));
+		assertTrue(ContentAddressedStore.getKeysAfter(keys, "sha256/ab/ac")
+				.isEmpty());
+	}
+
+	@Test
+	public void testReferencedLengthComesFromTheMetadata() throws Exception {
+		CloudBlockBlob reference = new CloudBlockBlob(new URI(
+				"https://acct.blob.core.windows.net/job/tool.zip"));
+		// References written before the length was recorded
+		assertNull(ContentAddressedStore.getReferencedLength(reference));
+		reference.getMetadata().put(ContentAddressedStore.LENGTH_METADATA,
+				"536870912");
+		reference.getMetadata().put(ContentAddressedStore.MD5_METADATA,
+				"1B2M2Y8AsgTpgAmY7PhCfg==");
+		assertEquals(Long.valueOf(536870912L),
+				ContentAddressedStore.getReferencedLength(reference));
+		assertEquals("1B2M2Y8AsgTpgAmY7PhCfg==",
+				ContentAddressedStore.getReferencedMD5(reference));
+	}
+
+	@Test
+	public void testKnownKeysEvictTheLeastRecentlyUsed() {
+		ContentAddressedStore.KnownKeys knownKeys = new ContentAddressedStore.KnownKeys();
+		assertFalse(knownKeys.contains("first"));
+		knownKeys.add("first");
+		knownKeys.add("second");
+		assertTrue(knownKeys.contains("first"));
+
+		// "first" was just used, "second" goes first
+		for (int i = 0; i < 99999; i++) {
+			knownKeys.add("key" + i);
+		}
+		assertTrue(knownKeys.contains("first"));
+		assertFalse(knownKeys.contains("second"));
+		assertTrue(knownKeys.contains("key99998"));
+	}
+
+	@Test
+	public void testStoreContainersComeFromTheSignedStores() throws Exception {
+		CloudBlobClient client = new CloudBlobClient(new URI("https://acct.blob.core.windows.net"));
+		assertEquals("shared", ContentAddressedStore.getStoreContainer(client,
+				"shared", null).getName());
+
+		CloudBlobContainer signed = new CloudBlobContainer(
+				new URI("https://acct.blob.core.windows.net/shared?sig=abc"));
+		Map<String, CloudBlobContainer> stores = Collections.singletonMap("shared", signed);
+		assertSame(signed, ContentAddressedStore.getStoreContainer(client, "shared", stores));
+		try {
+			ContentAddressedStore.getStoreContainer(client, "other", stores);
+			fail("not a signed store");
+		} catch (WAStorageException e) {
+			// expected
+		}
+	}
+}
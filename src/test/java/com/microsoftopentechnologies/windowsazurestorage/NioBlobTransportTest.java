@@ -0,0 +1,107 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import com.microsoft.azure.storage.core.Base64;
+import com.microsoftopentechnologies.windowsazurestorage.helper.NioHttpClient.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Requests signed by the SDK 4.4.0 for the account "acct", captured with
+ * their headers and Authorization header, must get the same signature.
+ */
+public class NioBlobTransportTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] KEY = "0123456789abcdef0123456789abcdef"
+			.getBytes(UTF8);
+
+	private static final String DATE = "Sun, 18 Oct 2026 19:45:00 GMT";
+
+	@Test
+	public void testPutBlockIsSignedAsByTheSdk() throws Exception {
+		Request request = new Request("PUT", new URI(
+				"http://127.0.0.1:36321/acct/cont/dir%20a/f+b=%C3%BC.txt"
+						+ "?blockid=YmxrLTAwMDErLw%3D%3D&comp=block"));
+		request.header("Content-Type", "");
+		request.header("x-ms-client-request-id",
+				"e410170c-ef0f-40b7-87da-97c39b580795");
+		request.header("x-ms-date", DATE);
+		request.header("x-ms-version", "2015-12-11");
+		request.body(new byte[10], 0, 10);
+
+		assertEquals("7xeuu224GV4zauEpS70lvqiyKh4ZM4/lAtgYKvTB+oU=",
+				sign(request));
+	}
+
+	@Test
+	public void testConditionalRangeGetIsSignedAsByTheSdk() throws Exception {
+		Request request = new Request("GET", new URI(
+				"http://127.0.0.1:36321/acct/cont/dir%20a/f+b=%C3%BC.txt"));
+		request.header("Content-Type", "");
+		request.header("If-Match", "\"0x8D\"");
+		request.header("x-ms-client-request-id",
+				"398ad071-702d-43ab-9a51-fde8a1d8b026");
+		request.header("x-ms-date", DATE);
+		request.header("x-ms-range", "bytes=100-149");
+		request.header("x-ms-version", "2015-12-11");
+
+		assertEquals("m1U7LW3rP/8v14doHe23UTyhSnScvTMzImDMxWpwD2I=",
+				sign(request));
+	}
+
+	@Test
+	public void testListIsSignedAsByTheSdk() throws Exception {
+		Request request = new Request("GET", new URI(
+				"http://127.0.0.1:36321/acct/cont?restype=container&comp=list"
+						+ "&prefix=dir%20a%2F&maxresults=5000"));
+		request.header("Content-Type", "");
+		request.header("x-ms-client-request-id",
+				"f2dfade5-ce24-4223-a429-58d91981be1f");
+		request.header("x-ms-date", DATE);
+		request.header("x-ms-version", "2015-12-11");
+
+		// Query parameters decoded, by name
+		assertEquals("GET\n\n\n\n\n\n\n\n\n\n\n\n"
+				+ "x-ms-client-request-id:f2dfade5-ce24-4223-a429-58d91981be1f\n"
+				+ "x-ms-date:" + DATE + "\n"
+				+ "x-ms-version:2015-12-11\n"
+				+ "/acct/acct/cont\n"
+				+ "comp:list\n"
+				+ "maxresults:5000\n"
+				+ "prefix:dir a/\n"
+				+ "restype:container",
+				NioBlobTransport.getStringToSign(request, "acct"));
+		assertEquals("P3bRlqGNWYSLhtR0ydwatVwlcGOrshx+Ws9CVT2A8/k=",
+				sign(request));
+	}
+
+	@Test
+	public void testDeleteIsSignedAsByTheSdk() throws Exception {
+		Request request = new Request("DELETE", new URI(
+				"http://127.0.0.1:36321/acct/cont/dir%20a/f+b=%C3%BC.txt"));
+		request.header("Content-Type", "");
+		request.header("x-ms-client-request-id",
+				"e8cf80c2-b975-49f0-86ef-511bda0134ed");
+		request.header("x-ms-date", DATE);
+		request.header("x-ms-version", "2015-12-11");
+
+		assertEquals("hRuCNK7kUfjRHDO3Z+YnglWQbKhKbPVeVUI03Do1FxA=",
+				sign(request));
+	}
+
+	private static String sign(Request request) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+		return Base64.encode(mac.doFinal(NioBlobTransport.getStringToSign(
+				request, "acct").getBytes(UTF8)));
+	}
+}
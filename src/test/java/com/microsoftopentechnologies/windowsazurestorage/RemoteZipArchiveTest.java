@@ -0,0 +1,261 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+
+import junit.framework.TestCase;
+
+public class RemoteZipArchiveTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Test
+	public void testEntriesAreReadFromTheDirectory() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.setComment("archive comment");
+		put(zip, "dir/", null, ZipEntry.DEFLATED);
+		put(zip, "dir/\u00e9t\u00e9.txt", "summer".getBytes(UTF8),
+				ZipEntry.DEFLATED);
+		put(zip, "stored.bin", random(1, 1000), ZipEntry.STORED);
+		zip.close();
+
+		ByteArchive archive = new ByteArchive(bytes.toByteArray());
+		List<RemoteZipArchive.Entry> entries = archive.readEntries();
+		assertEquals(3, entries.size());
+		assertEquals("dir/", entries.get(0).getName());
+		assertTrue(entries.get(0).isDirectory());
+		assertEquals("dir/\u00e9t\u00e9.txt", entries.get(1).getName());
+		assertFalse(entries.get(1).isDirectory());
+		assertEquals(6, entries.get(1).getSize());
+		assertEquals(1000, entries.get(2).getSize());
+
+		Map<String, byte[]> contents = extract(archive,
+				RemoteZipArchive.coalesce(entries));
+		assertEquals("summer",
+				new String(contents.get("dir/\u00e9t\u00e9.txt"), UTF8));
+		assertTrue(Arrays.equals(random(1, 1000), contents.get("stored.bin")));
+	}
+
+	@Test
+	public void testZip64SizesAndOffsetsAreRead() throws Exception {
+		byte[] content = "zip64 content".getBytes(UTF8);
+		ByteArchive archive = new ByteArchive(zip64("stored.txt", content));
+		List<RemoteZipArchive.Entry> entries = archive.readEntries();
+		assertEquals(1, entries.size());
+		assertEquals("stored.txt", entries.get(0).getName());
+		assertEquals(content.length, entries.get(0).getSize());
+		assertTrue(Arrays.equals(content, extract(archive,
+				RemoteZipArchive.coalesce(entries)).get("stored.txt")));
+	}
+
+	@Test
+	public void testZip64EndRecordIsFollowed() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		// More entries than the end record can count
+		int count = 70000;
+		for (int i = 0; i < count; i++) {
+			put(zip, "files/" + i + ".txt", ("file " + i).getBytes(UTF8),
+					ZipEntry.DEFLATED);
+		}
+		zip.close();
+
+		ByteArchive archive = new ByteArchive(bytes.toByteArray());
+		List<RemoteZipArchive.Entry> entries = archive.readEntries();
+		assertEquals(count, entries.size());
+		RemoteZipArchive.Entry last = entries.get(count - 1);
+		assertEquals("files/69999.txt", last.getName());
+		List<RemoteZipArchive.Entry> group = new ArrayList<RemoteZipArchive.Entry>();
+		group.add(last);
+		assertEquals("file 69999", new String(extract(archive,
+				RemoteZipArchive.coalesce(group)).get(last.getName()), UTF8));
+	}
+
+	@Test
+	public void testCloseEntriesAreFetchedWithOneRange() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		put(zip, "a.txt", "first".getBytes(UTF8), ZipEntry.DEFLATED);
+		put(zip, "b.txt", "second".getBytes(UTF8), ZipEntry.DEFLATED);
+		// Wider than the largest gap read and skipped
+		put(zip, "large.bin", random(2, (int) RemoteZipArchive.MAX_GAP + 1),
+				ZipEntry.STORED);
+		put(zip, "c.txt", "third".getBytes(UTF8), ZipEntry.DEFLATED);
+		zip.close();
+
+		ByteArchive archive = new ByteArchive(bytes.toByteArray());
+		List<RemoteZipArchive.Entry> entries = archive.readEntries();
+		assertEquals(4, entries.size());
+
+		// Asked out of order, grouped in archive order
+		List<RemoteZipArchive.Entry> wanted = Arrays.asList(entries.get(3),
+				entries.get(1), entries.get(0));
+		List<List<RemoteZipArchive.Entry>> groups = RemoteZipArchive
+				.coalesce(wanted);
+		assertEquals(2, groups.size());
+		assertEquals(Arrays.asList(entries.get(0), entries.get(1)),
+				groups.get(0));
+		assertEquals(Arrays.asList(entries.get(3)), groups.get(1));
+
+		// The first group ends where the large entry starts
+		long largeOffset = indexOf(archive.data, "large.bin".getBytes(UTF8)) - 30;
+		assertEquals(largeOffset, RemoteZipArchive.getRangeLength(groups.get(0)));
+
+		archive.reads = 0;
+		Map<String, byte[]> contents = extract(archive, groups.subList(0, 1));
+		assertEquals(1, archive.reads);
+		assertEquals("first", new String(contents.get("a.txt"), UTF8));
+		assertEquals("second", new String(contents.get("b.txt"), UTF8));
+
+		// The gap of a small entry is read and skipped
+		groups = RemoteZipArchive.coalesce(Arrays.asList(entries.get(0),
+				entries.get(2), entries.get(3)));
+		assertEquals(1, groups.size());
+	}
+
+	@Test
+	public void testBlobOtherThanAZipIsRejected() throws Exception {
+		ByteArchive archive = new ByteArchive(random(3, 100000));
+		try {
+			archive.readEntries();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("not a zip"));
+		}
+	}
+
+	private static Map<String, byte[]> extract(RemoteZipArchive archive,
+			List<List<RemoteZipArchive.Entry>> groups) throws Exception {
+		final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+		for (List<RemoteZipArchive.Entry> group : groups) {
+			archive.extract(group, new RemoteZipArchive.EntryHandler() {
+				public void entry(RemoteZipArchive.Entry entry,
+						InputStream content) throws IOException {
+					contents.put(entry.getName(), IOUtils.toByteArray(content));
+				}
+			});
+		}
+		return contents;
+	}
+
+	private static void put(ZipOutputStream zip, String name, byte[] data,
+			int method) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(method);
+		if (method == ZipEntry.STORED) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		zip.putNextEntry(entry);
+		if (data != null) {
+			zip.write(data);
+		}
+		zip.closeEntry();
+	}
+
+	/**
+	 * Stored entry whose sizes and offset are only in its zip64 extra field,
+	 * with a directory only found through the zip64 end record.
+	 */
+	private static byte[] zip64(String name, byte[] content) {
+		byte[] nameBytes = name.getBytes(UTF8);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		int directoryOffset = 30 + nameBytes.length + 20 + content.length;
+		int directoryLength = 46 + nameBytes.length + 28;
+		ByteBuffer zip = ByteBuffer.allocate(directoryOffset + directoryLength
+				+ 56 + 20 + 22).order(ByteOrder.LITTLE_ENDIAN);
+
+		zip.putInt(0x04034b50).putShort((short) 45).putShort((short) 0)
+				.putShort((short) ZipEntry.STORED).putInt(0)
+				.putInt((int) crc.getValue()).putInt(0xFFFFFFFF)
+				.putInt(0xFFFFFFFF).putShort((short) nameBytes.length)
+				.putShort((short) 20).put(nameBytes);
+		zip.putShort((short) 0x0001).putShort((short) 16)
+				.putLong(content.length).putLong(content.length);
+		zip.put(content);
+
+		zip.putInt(0x02014b50).putShort((short) 45).putShort((short) 45)
+				.putShort((short) 0).putShort((short) ZipEntry.STORED)
+				.putInt(0).putInt((int) crc.getValue()).putInt(0xFFFFFFFF)
+				.putInt(0xFFFFFFFF).putShort((short) nameBytes.length)
+				.putShort((short) 28).putShort((short) 0).putShort((short) 0)
+				.putShort((short) 0).putInt(0).putInt(0xFFFFFFFF)
+				.put(nameBytes);
+		zip.putShort((short) 0x0001).putShort((short) 24)
+				.putLong(content.length).putLong(content.length).putLong(0);
+
+		int zip64End = zip.position();
+		zip.putInt(0x06064b50).putLong(44).putShort((short) 45)
+				.putShort((short) 45).putInt(0).putInt(0).putLong(1)
+				.putLong(1).putLong(directoryLength).putLong(directoryOffset);
+		zip.putInt(0x07064b50).putInt(0).putLong(zip64End).putInt(1);
+		zip.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+				.putShort((short) 0xFFFF).putShort((short) 0xFFFF)
+				.putInt(0xFFFFFFFF).putInt(0xFFFFFFFF).putShort((short) 0);
+		return zip.array();
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern) {
+		for (int i = 0; i + pattern.length <= data.length; i++) {
+			if (Arrays.equals(pattern,
+					Arrays.copyOfRange(data, i, i + pattern.length))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] random(long seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Archive served from memory instead of range requests.
+	 */
+	private static final class ByteArchive extends RemoteZipArchive {
+
+		private final byte[] data;
+
+		private int reads;
+
+		ByteArchive(byte[] data) throws Exception {
+			super(new CloudBlockBlob(new URI(
+					"http://account.blob.core.windows.net/container/archive.zip")),
+					null);
+			this.data = data;
+			setLength(data.length);
+		}
+
+		@Override
+		byte[] read(long offset, int count) throws IOException {
+			reads++;
+			return Arrays.copyOfRange(data, (int) offset, (int) offset + count);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.net.URL;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class StorageConnectionsTest extends TestCase {
+
+	@Test
+	public void testCountsAreKeptByHost() throws Exception {
+		StorageConnections.Counts before = StorageConnections.Counts
+				.current("first.blob.core.windows.net");
+		StorageConnections.Counts other = StorageConnections.Counts
+				.current("second.blob.core.windows.net");
+
+		// One new connection, then two requests on it
+		StorageConnections.requestSent(new URL(
+				"https://first.blob.core.windows.net/container/a"));
+		StorageConnections.handshakeCompleted("First.blob.core.windows.net");
+		StorageConnections.requestSent(new URL(
+				"https://FIRST.blob.core.windows.net/container/b"));
+		StorageConnections.requestSent(new URL(
+				"https://first.blob.core.windows.net/container/c"));
+
+		StorageConnections.Counts counts = before.sinceThen();
+		assertEquals(3, counts.getRequests());
+		assertEquals(3, counts.getSecureRequests());
+		assertEquals(1, counts.getHandshakes());
+		assertEquals(2, counts.getPooled());
+		assertEquals(0, other.sinceThen().getRequests());
+	}
+
+	@Test
+	public void testPlainRequestsAreNotCountedAsPooled() throws Exception {
+		StorageConnections.Counts before = StorageConnections.Counts
+				.current("127.0.0.1");
+		StorageConnections.requestSent(new URL(
+				"http://127.0.0.1:10000/devstoreaccount1/container/a"));
+		StorageConnections.requestSent(new URL(
+				"http://127.0.0.1:10000/devstoreaccount1/container/b"));
+
+		StorageConnections.Counts counts = before.sinceThen();
+		assertEquals(2, counts.getRequests());
+		assertEquals(0, counts.getSecureRequests());
+		assertEquals(0, counts.getPooled());
+	}
+}
@@ -0,0 +1,69 @@
+package com.microsoftopentechnologies.windowsazurestorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+import com.microsoftopentechnologies.windowsazurestorage.WAStorageClient.ScannedFiles;
+import com.microsoftopentechnologies.windowsazurestorage.WAStorageClient.WorkspaceFile;
+
+public class WAStorageClientTest extends TestCase {
+
+	@Test
+	public void testScannedFilesQueuesCompleteBatches() throws Exception {
+		List<WorkspaceFile> first = new ArrayList<WorkspaceFile>();
+		first.add(new WorkspaceFile("a/b.txt", 12, "md5==", null));
+		first.add(new WorkspaceFile("c.bin", 1L << 33, null, "abcdef"));
+		List<WorkspaceFile> second = new ArrayList<WorkspaceFile>();
+		second.add(new WorkspaceFile("d/\u00e9.txt", 0, null, null));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		ScannedFiles.writeBatch(out, first);
+		ScannedFiles.writeBatch(out, second);
+		byte[] frames = bytes.toByteArray();
+
+		// Frames arrive split at arbitrary points, as from a remote stream
+		ScannedFiles scanned = new ScannedFiles();
+		for (int i = 0; i < frames.length; i += 3) {
+			scanned.write(frames, i, Math.min(3, frames.length - i));
+		}
+		scanned.close();
+
+		List<WorkspaceFile> batch = scanned.take();
+		assertEquals(2, batch.size());
+		assertEquals("a/b.txt", batch.get(0).getRelativePath());
+		assertEquals(12, batch.get(0).getLength());
+		assertEquals("md5==", batch.get(0).getContentMD5());
+		assertNull(batch.get(0).getContentHash());
+		assertEquals(1L << 33, batch.get(1).getLength());
+		assertNull(batch.get(1).getContentMD5());
+		assertEquals("abcdef", batch.get(1).getContentHash());
+
+		batch = scanned.take();
+		assertEquals(1, batch.size());
+		assertEquals("d/\u00e9.txt", batch.get(0).getRelativePath());
+
+		// The end is seen by every later call
+		assertNull(scanned.take());
+		assertNull(scanned.take());
+	}
+
+	@Test
+	public void testListingPrefixesCoverPackDirectoriesAbove() {
+		assertEquals(Arrays.asList(".azpack/", "build/.azpack/", "build/libs/",
+				"build/reports/"), WAStorageClient.getListingPrefixes(
+				new String[] { "build/libs/*.jar", "build/reports/**" }));
+		assertEquals(Arrays.asList(".azpack/", "a/.azpack/", "a/b.txt"),
+				WAStorageClient.getListingPrefixes(new String[] { "a/b.txt" }));
+		// A pattern starting with a wildcard lists the whole container
+		assertEquals(Arrays.asList(""), WAStorageClient.getListingPrefixes(
+				new String[] { "**/*", "build/*.log" }));
+	}
+}
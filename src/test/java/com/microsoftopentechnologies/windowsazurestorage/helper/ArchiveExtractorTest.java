@@ -0,0 +1,138 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class ArchiveExtractorTest extends TestCase {
+
+	private File dir;
+
+	private File targetDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("extract-test").toFile();
+		targetDir = new File(dir, "target");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void testSafeEntryNames() {
+		assertTrue(ArchiveExtractor.isSafeEntryName("a.txt"));
+		assertTrue(ArchiveExtractor.isSafeEntryName("dir/sub/a.txt"));
+		assertTrue(ArchiveExtractor.isSafeEntryName("dir/"));
+		assertTrue(ArchiveExtractor.isSafeEntryName("dir/..a/b..txt"));
+		assertTrue(ArchiveExtractor.isSafeEntryName("./a.txt"));
+
+		assertFalse(ArchiveExtractor.isSafeEntryName("/etc/passwd"));
+		assertFalse(ArchiveExtractor.isSafeEntryName("\\windows\\a.txt"));
+		assertFalse(ArchiveExtractor.isSafeEntryName("C:/a.txt"));
+		assertFalse(ArchiveExtractor.isSafeEntryName("c:a.txt"));
+		assertFalse(ArchiveExtractor.isSafeEntryName(".."));
+		assertFalse(ArchiveExtractor.isSafeEntryName("../a.txt"));
+		assertFalse(ArchiveExtractor.isSafeEntryName("dir/../../a.txt"));
+		assertFalse(ArchiveExtractor.isSafeEntryName("dir\\..\\..\\a.txt"));
+	}
+
+	@Test
+	public void testFilesAndLinksWithinTheTargetAreExtracted()
+			throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = tar(bytes);
+		file(tar, "dir/a.txt", "content a");
+		link(tar, "dir/link", "a.txt");
+		link(tar, "dir/sub/link", "../a.txt");
+		tar.close();
+
+		assertEquals(3, extract(bytes.toByteArray()));
+		assertEquals("content a", FileUtils.readFileToString(new File(
+				targetDir, "dir/link"), "UTF-8"));
+		assertEquals("content a", FileUtils.readFileToString(new File(
+				targetDir, "dir/sub/link"), "UTF-8"));
+		assertTrue(Files.isSymbolicLink(new File(targetDir, "dir/link")
+				.toPath()));
+	}
+
+	@Test
+	public void testEntriesOutsideOfTheTargetAreRejected() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = tar(bytes);
+		file(tar, "dir/a.txt", "content a");
+		file(tar, "../outside.txt", "escaped");
+		tar.close();
+
+		assertExtractionFails(bytes.toByteArray());
+		assertFalse(new File(dir, "outside.txt").exists());
+	}
+
+	@Test
+	public void testLinksOutsideOfTheTargetAreRejected() throws Exception {
+		String[] targets = { "../../outside.txt", "../sub/../../outside.txt",
+				new File(dir, "outside.txt").getAbsolutePath() };
+		for (String target : targets) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			TarArchiveOutputStream tar = tar(bytes);
+			link(tar, "dir/link", target);
+			tar.close();
+
+			assertExtractionFails(bytes.toByteArray());
+			assertFalse(target, Files.exists(new File(targetDir, "dir/link")
+					.toPath(), LinkOption.NOFOLLOW_LINKS));
+		}
+	}
+
+	private void assertExtractionFails(byte[] archive) throws Exception {
+		try {
+			extract(archive);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("outside of"));
+		}
+	}
+
+	private int extract(byte[] archive) throws Exception {
+		return new ArchiveExtractor(targetDir, 2).extract(
+				new ByteArrayInputStream(archive), ArchiveFormat.TAR_GZ);
+	}
+
+	private static TarArchiveOutputStream tar(ByteArrayOutputStream bytes)
+			throws IOException {
+		return new TarArchiveOutputStream(new GZIPOutputStream(bytes), "UTF-8");
+	}
+
+	private static void file(TarArchiveOutputStream tar, String name,
+			String content) throws IOException {
+		byte[] data = content.getBytes(Charset.forName("UTF-8"));
+		TarArchiveEntry entry = new TarArchiveEntry(name);
+		entry.setSize(data.length);
+		tar.putArchiveEntry(entry);
+		tar.write(data);
+		tar.closeArchiveEntry();
+	}
+
+	private static void link(TarArchiveOutputStream tar, String name,
+			String target) throws IOException {
+		TarArchiveEntry entry = new TarArchiveEntry(name,
+				TarArchiveEntry.LF_SYMLINK);
+		entry.setLinkName(target);
+		tar.putArchiveEntry(entry);
+		tar.closeArchiveEntry();
+	}
+}
@@ -0,0 +1,108 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class ContentDefinedChunkerTest extends TestCase {
+
+	@Test
+	public void testChunksRebuildTheStreamWithinSizeBounds() throws Exception {
+		byte[] data = random(1, 20 * 1024 * 1024 + 777);
+		List<byte[]> chunks = chunk(data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < chunks.size(); i++) {
+			byte[] chunk = chunks.get(i);
+			assertTrue(chunk.length <= ContentDefinedChunker.MAX_CHUNK_SIZE);
+			if (i < chunks.size() - 1) {
+				assertTrue(chunk.length > ContentDefinedChunker.MIN_CHUNK_SIZE);
+			}
+			out.write(chunk);
+		}
+		assertTrue(java.util.Arrays.equals(data, out.toByteArray()));
+		assertTrue(chunks.size() > 3);
+	}
+
+	@Test
+	public void testBoundariesAreStableAfterAnInsert() throws Exception {
+		byte[] data = random(2, 24 * 1024 * 1024);
+		int offset = 5 * 1024 * 1024 + 13;
+		byte[] inserted = random(3, 1000);
+		byte[] edited = new byte[data.length + inserted.length];
+		System.arraycopy(data, 0, edited, 0, offset);
+		System.arraycopy(inserted, 0, edited, offset, inserted.length);
+		System.arraycopy(data, offset, edited, offset + inserted.length, data.length - offset);
+
+		List<String> before = digests(chunk(data));
+		List<String> after = digests(chunk(edited));
+
+		// Only the chunks around the insert change, the ones after it resync
+		Set<String> common = new HashSet<String>(before);
+		common.retainAll(after);
+		assertTrue(before.size() - common.size() <= 2);
+		assertEquals(before.get(before.size() - 1), after.get(after.size() - 1));
+		assertEquals(before.get(0), after.get(0));
+	}
+
+	@Test
+	public void testShortAndEmptyStreams() throws Exception {
+		assertTrue(chunk(new byte[0]).isEmpty());
+		byte[] data = random(4, 1000);
+		List<byte[]> chunks = chunk(data);
+		assertEquals(1, chunks.size());
+		assertTrue(java.util.Arrays.equals(data, chunks.get(0)));
+	}
+
+	@Test
+	public void testCutPointIsDeterministic() {
+		byte[] data = random(5, ContentDefinedChunker.MAX_CHUNK_SIZE);
+		int cut = ContentDefinedChunker.cutPoint(data, data.length);
+		assertTrue(cut > ContentDefinedChunker.MIN_CHUNK_SIZE);
+		assertTrue(cut <= ContentDefinedChunker.MAX_CHUNK_SIZE);
+		assertEquals(cut, ContentDefinedChunker.cutPoint(data.clone(), data.length));
+	}
+
+	private static List<byte[]> chunk(byte[] data) throws IOException {
+		// Short reads, the chunker must not depend on how the stream is read
+		InputStream in = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 65521));
+			}
+		};
+		ContentDefinedChunker chunker = new ContentDefinedChunker(in);
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		byte[] chunk;
+		while ((chunk = chunker.next()) != null) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	private static List<String> digests(List<byte[]> chunks) {
+		List<String> digests = new ArrayList<String>();
+		for (byte[] chunk : chunks) {
+			digests.add(Hex.encodeHexString(DigestUtils.sha256(chunk)));
+		}
+		return digests;
+	}
+
+	private static byte[] random(long seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,233 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class ParallelZipArchiverTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = Files.createTempDirectory("zip-test").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void testRoundTripThroughZipFileAndZipInputStream() throws Exception {
+		Map<String, byte[]> contents = new HashMap<String, byte[]>();
+		// Several chunks, with repeats across the chunk boundaries
+		StringBuilder text = new StringBuilder();
+		Random random = new Random(42);
+		while (text.length() < 3 * 1024 * 1024 + 12345) {
+			text.append("line ").append(random.nextInt(5000)).append('\n');
+		}
+		contents.put("logs/build.log", text.toString().getBytes(Charset.forName("UTF-8")));
+		byte[] binary = new byte[200000];
+		random.nextBytes(binary);
+		contents.put("lib/app.jar", binary);
+		contents.put("empty.txt", new byte[0]);
+		contents.put("dir/\u00e9t\u00e9.txt", "summer".getBytes(Charset.forName("UTF-8")));
+
+		File zip = archive(contents, -1);
+
+		ZipFile zipFile = new ZipFile(zip);
+		try {
+			assertEquals(contents.size(), zipFile.size());
+			for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+				ZipEntry entry = zipFile.getEntry(content.getKey());
+				assertNotNull(content.getKey(), entry);
+				assertEquals(content.getValue().length, entry.getSize());
+				InputStream in = zipFile.getInputStream(entry);
+				try {
+					assertTrue(content.getKey(), java.util.Arrays.equals(
+							content.getValue(), IOUtils.toByteArray(in)));
+				} finally {
+					in.close();
+				}
+			}
+			assertEquals(ZipEntry.STORED, zipFile.getEntry("lib/app.jar").getMethod());
+			assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("logs/build.log").getMethod());
+			assertTrue(zipFile.getEntry("logs/build.log").getCompressedSize()
+					< contents.get("logs/build.log").length / 2);
+		} finally {
+			zipFile.close();
+		}
+
+		ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(
+				FileUtils.readFileToByteArray(zip)));
+		int count = 0;
+		ZipEntry entry;
+		while ((entry = in.getNextEntry()) != null) {
+			assertTrue(entry.getName(), java.util.Arrays.equals(
+					contents.get(entry.getName()), IOUtils.toByteArray(in)));
+			count++;
+		}
+		assertEquals(contents.size(), count);
+	}
+
+	@Test
+	public void testLevelZeroStoresEverything() throws Exception {
+		Map<String, byte[]> contents = new HashMap<String, byte[]>();
+		contents.put("a.txt", "aaaaaaaaaaaaaaaaaaaaaaaa".getBytes(Charset.forName("UTF-8")));
+		File zip = archive(contents, 0);
+		ZipFile zipFile = new ZipFile(zip);
+		try {
+			assertEquals(ZipEntry.STORED, zipFile.getEntry("a.txt").getMethod());
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	@Test
+	public void testMoreThan65535EntriesUseZip64() throws Exception {
+		File file = new File(dir, "small.txt");
+		FileUtils.writeStringToFile(file, "small content", "UTF-8");
+		File zip = new File(dir, "many.zip");
+		int count = 70000;
+		OutputStream out = new FileOutputStream(zip);
+		try {
+			ParallelZipArchiver archiver = new ParallelZipArchiver(out, -1, 4);
+			try {
+				for (int i = 0; i < count; i++) {
+					archiver.addFile(file, "files/" + i + ".txt");
+				}
+				archiver.finish();
+				assertEquals(count, archiver.countEntries());
+			} finally {
+				archiver.close();
+			}
+		} finally {
+			out.close();
+		}
+
+		ZipFile zipFile = new ZipFile(zip);
+		try {
+			assertEquals(count, zipFile.size());
+			InputStream in = zipFile.getInputStream(zipFile.getEntry("files/69999.txt"));
+			try {
+				assertEquals("small content", IOUtils.toString(in, "UTF-8"));
+			} finally {
+				in.close();
+			}
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	/**
+	 * A deflated entry past 4 GB has 8 byte sizes in its data descriptor,
+	 * which streaming readers only find with the zip64 field of the local
+	 * header. The entry after it is only read right if they do.
+	 */
+	@Test
+	public void testDeflatedEntryLargerThan4GBIsStreamable() throws Exception {
+		File large = new File(dir, "large.bin");
+		long largeLength = 0x100000000L + 1234567;
+		RandomAccessFile raf = new RandomAccessFile(large, "rw");
+		try {
+			// Sparse, zeros compress to almost nothing
+			raf.setLength(largeLength);
+		} finally {
+			raf.close();
+		}
+		File small = new File(dir, "after.txt");
+		FileUtils.writeStringToFile(small, "after the large entry", "UTF-8");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ParallelZipArchiver archiver = new ParallelZipArchiver(bytes, 1,
+				Runtime.getRuntime().availableProcessors());
+		try {
+			archiver.addFile(large, "large.bin");
+			archiver.addFile(small, "after.txt");
+			archiver.finish();
+		} finally {
+			archiver.close();
+		}
+		byte[] zip = bytes.toByteArray();
+
+		// Local header: zip64 version, placeholder sizes and zip64 extra field
+		ByteBuffer header = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0x04034b50, header.getInt(0));
+		assertEquals(45, header.getShort(4));
+		assertEquals(0xFFFFFFFF, header.getInt(18));
+		assertEquals(0xFFFFFFFF, header.getInt(22));
+		int nameLength = header.getShort(26);
+		assertEquals(20, header.getShort(28));
+		assertEquals(0x0001, header.getShort(30 + nameLength));
+		assertEquals(16, header.getShort(32 + nameLength));
+
+		ZipArchiveInputStream commons = new ZipArchiveInputStream(
+				new ByteArrayInputStream(zip));
+		ZipArchiveEntry commonsEntry = commons.getNextZipEntry();
+		assertEquals("large.bin", commonsEntry.getName());
+		assertNotNull(commonsEntry.getExtraField(new ZipShort(0x0001)));
+		assertEquals(largeLength, IOUtils.skip(commons, Long.MAX_VALUE));
+		commonsEntry = commons.getNextZipEntry();
+		assertEquals("after.txt", commonsEntry.getName());
+		assertEquals("after the large entry", IOUtils.toString(commons, "UTF-8"));
+		assertNull(commons.getNextZipEntry());
+		commons.close();
+
+		ZipInputStream jdk = new ZipInputStream(new ByteArrayInputStream(zip));
+		assertEquals("large.bin", jdk.getNextEntry().getName());
+		assertEquals(largeLength, IOUtils.skip(jdk, Long.MAX_VALUE));
+		ZipEntry entry = jdk.getNextEntry();
+		assertEquals("after.txt", entry.getName());
+		assertEquals("after the large entry", IOUtils.toString(jdk, "UTF-8"));
+		assertNull(jdk.getNextEntry());
+		jdk.close();
+	}
+
+	private File archive(Map<String, byte[]> contents, int level)
+			throws IOException, InterruptedException {
+		File zip = new File(dir, "archive.zip");
+		OutputStream out = new FileOutputStream(zip);
+		try {
+			ParallelZipArchiver archiver = new ParallelZipArchiver(out, level, 4);
+			try {
+				int i = 0;
+				for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+					File file = new File(dir, "file" + i++);
+					FileUtils.writeByteArrayToFile(file, content.getValue());
+					archiver.addFile(file, content.getKey());
+				}
+				archiver.finish();
+			} finally {
+				archiver.close();
+			}
+		} finally {
+			out.close();
+		}
+		return zip;
+	}
+}
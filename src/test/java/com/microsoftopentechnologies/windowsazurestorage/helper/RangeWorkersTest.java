@@ -0,0 +1,38 @@
+package com.microsoftopentechnologies.windowsazurestorage.helper;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class RangeWorkersTest extends TestCase {
+
+	@Test
+	public void testGrantsAtMostTheWantedWorkers() throws Exception {
+		int granted = RangeWorkers.acquire(3, 1024);
+		try {
+			assertTrue(granted >= 1 && granted <= 3);
+		} finally {
+			RangeWorkers.release(granted, 1024);
+		}
+	}
+
+	@Test
+	public void testLaterTransfersGetWhatIsLeft() throws Exception {
+		int bufferSize = 64 * 1024 * 1024;
+		int first = RangeWorkers.acquire(Integer.MAX_VALUE, bufferSize);
+		try {
+			// The first transfer took the whole budget, the next one only
+			// gets a worker once one is released
+			assertTrue(first >= 1);
+			RangeWorkers.release(1, bufferSize);
+			int second = RangeWorkers.acquire(8, bufferSize);
+			assertEquals(1, second);
+			RangeWorkers.release(second, bufferSize);
+		} finally {
+			RangeWorkers.release(first - 1, bufferSize);
+		}
+		int again = RangeWorkers.acquire(2, bufferSize);
+		RangeWorkers.release(again, bufferSize);
+		assertTrue(again >= 1);
+	}
+}